@@ -0,0 +1,97 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Time of a library search over a 50k tracks corpus, for the first page of a query (which ranks every match) and
+ * for the following pages.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LibraryIndexBenchmark {
+    private static final int CORPUS_SIZE = 50_000;
+    private static final int PAGE_SIZE = 64;
+    private static final String QUERY = "lo";
+
+    private static final String[] WORDS = {
+            "love", "night", "light", "heart", "dream", "fire", "rain", "summer", "dance", "blue",
+            "road", "home", "star", "river", "moon", "gold", "wild", "young", "forever", "alone",
+            "city", "ocean", "shadow", "echo", "storm", "silver", "paradise", "memory", "lonely", "sky",
+    };
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @BeforeClass
+    public static void fill() {
+        Context context = ApplicationProvider.getApplicationContext();
+        context.deleteDatabase("library_index.db");
+        LibraryIndex.release();
+
+        LibraryIndex index = LibraryIndex.getInstance(context);
+        Random random = new Random(0);
+        HashMap<String, HashMap<String, String>> page = new HashMap<>();
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            HashMap<String, String> metadata = new HashMap<>();
+            metadata.put("title", WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]);
+            metadata.put("artist", "Artist " + random.nextInt(2000));
+            metadata.put("album", "Album " + random.nextInt(5000));
+            metadata.put("genre", "Pop");
+            page.put("/storage/emulated/0/Music/" + i + ".mp3", metadata);
+
+            if (page.size() == PAGE_SIZE) {
+                index.index(page);
+                page.clear();
+            }
+        }
+
+        index.index(page);
+    }
+
+    @AfterClass
+    public static void release() {
+        LibraryIndex.release();
+        ApplicationProvider.getApplicationContext().deleteDatabase("library_index.db");
+    }
+
+    @Test
+    public void firstPage() {
+        LibraryIndex index = LibraryIndex.getInstance(ApplicationProvider.getApplicationContext());
+        BenchmarkState state = benchmarkRule.getState();
+        int generation = 0;
+        while (state.keepRunning()) {
+            // Any write drops the ranking of the previous iteration
+            state.pauseTiming();
+            index.setTitle("/storage/emulated/0/Music/0.mp3", "Title " + generation++);
+            state.resumeTiming();
+
+            index.search(QUERY, 0, PAGE_SIZE);
+        }
+    }
+
+    @Test
+    public void nextPages() {
+        LibraryIndex index = LibraryIndex.getInstance(ApplicationProvider.getApplicationContext());
+        int total = index.search(QUERY, 0, PAGE_SIZE).total;
+
+        BenchmarkState state = benchmarkRule.getState();
+        int offset = PAGE_SIZE;
+        while (state.keepRunning()) {
+            index.search(QUERY, offset, PAGE_SIZE);
+            offset = offset + PAGE_SIZE < total ? offset + PAGE_SIZE : PAGE_SIZE;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.test.annotation.UiThreadTest;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Time and allocations of the playback service paths that scale with the queue size.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaybackBenchmark {
+    private static final int QUEUE_SIZE = 10_000;
+    private static final int WINDOW_RADIUS = 32;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private static ArrayList<Bundle> bundles(int size) {
+        ArrayList<Bundle> bundles = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            bundles.add(
+                    PlaybackSnapshot.createMediaItem(
+                            "/storage/emulated/0/Music/" + i + ".mp3",
+                            "Track " + i,
+                            "Artist " + i % 100,
+                            null,
+                            null
+                    ).toBundle()
+            );
+        }
+
+        return bundles;
+    }
+
+    @Test
+    public void fromBundles() {
+        ArrayList<Bundle> bundles = bundles(QUEUE_SIZE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PlaybackQueue.fromBundles(bundles);
+        }
+    }
+
+    /**
+     * The state update sent every 250 ms while playing, with the up next list of a shuffled windowed queue.
+     */
+    @Test
+    @UiThreadTest
+    public void createState() {
+        Context context = ApplicationProvider.getApplicationContext();
+        ExoPlayer player = new ExoPlayer.Builder(context).build();
+        try {
+            PlaybackQueue queue = new PlaybackQueue(player);
+            queue.setWindowRadius(WINDOW_RADIUS);
+            queue.load(bundles(QUEUE_SIZE), QUEUE_SIZE / 2);
+            queue.toggleShuffle();
+
+            BenchmarkState state = benchmarkRule.getState();
+            while (state.keepRunning()) {
+                MediaPlayerService.createState(player, queue, 1);
+            }
+        } finally {
+            player.release();
+        }
+    }
+}
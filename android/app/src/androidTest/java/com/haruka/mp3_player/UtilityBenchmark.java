@@ -0,0 +1,54 @@
+package com.haruka.mp3_player;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class UtilityBenchmark {
+    // The size of an embedded artwork
+    private static final int ARTWORK_SIZE = 512;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void format() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utility.format("Downloaded %s/%s (%.2f%%)", "1.50 MB", "3.00 MB", 50.0);
+        }
+    }
+
+    @Test
+    public void formatBytes() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utility.format(3 << 20);
+        }
+    }
+
+    @Test
+    public void getDominantColor() {
+        Bitmap bitmap = Bitmap.createBitmap(ARTWORK_SIZE, ARTWORK_SIZE, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < ARTWORK_SIZE; y++) {
+            for (int x = 0; x < ARTWORK_SIZE; x++) {
+                bitmap.setPixel(x, y, Color.rgb(x % 256, y % 256, (x + y) % 256));
+            }
+        }
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utility.getDominantColor(bitmap);
+        }
+
+        bitmap.recycle();
+    }
+}
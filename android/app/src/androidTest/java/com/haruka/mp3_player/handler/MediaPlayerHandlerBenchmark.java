@@ -0,0 +1,54 @@
+package com.haruka.mp3_player.handler;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Time and allocations of converting the tracks of a {@code play} call, which runs on the platform thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaPlayerHandlerBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private static JSONArray tracks(int size) throws JSONException {
+        JSONArray tracks = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject track = new JSONObject();
+            track.put("uri", "/storage/emulated/0/Music/" + i + ".mp3");
+            track.put("title", "Track " + i);
+            track.put("artist", "Artist " + i % 100);
+            track.put("thumbnailPath", "/data/user/0/com.haruka.mp3_player/cache/" + i + ".png");
+            track.put("cacheKey", JSONObject.NULL);
+            tracks.put(track);
+        }
+
+        return tracks;
+    }
+
+    private void getTracksList(int size) throws JSONException {
+        JSONArray tracks = tracks(size);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            MediaPlayerHandler.getTracksList(tracks);
+        }
+    }
+
+    @Test
+    public void getTracksList1k() throws JSONException {
+        getTracksList(1_000);
+    }
+
+    @Test
+    public void getTracksList10k() throws JSONException {
+        getTracksList(10_000);
+    }
+}
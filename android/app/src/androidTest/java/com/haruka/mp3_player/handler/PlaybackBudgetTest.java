@@ -0,0 +1,102 @@
+package com.haruka.mp3_player.handler;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.rule.ServiceTestRule;
+
+import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Holds the commands that scale with the queue to the {@link PlaybackProtocol#SLOW_COMMAND_MS} budget on a device,
+ * from the conversion of their tracks to the end of their handling by the service. A {@code play} is split into one
+ * message per {@link PlaybackProtocol#MAX_ITEMS_PER_MESSAGE} tracks, each handled as its own main looper task, so
+ * it gets one budget per message.
+ */
+@RunWith(Parameterized.class)
+public class PlaybackBudgetTest {
+    private static final int WINDOW_RADIUS = 32;
+    private static final int REPEATS = 5;
+
+    /**
+     * A command sent through a {@link PlaybackClient}.
+     */
+    private interface Command {
+        void run() throws Exception;
+    }
+
+    @Parameterized.Parameters(name = "{0} tracks")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1_000}, {10_000}, {50_000}});
+    }
+
+    @Rule
+    public ServiceTestRule serviceRule = new ServiceTestRule();
+
+    private final int size;
+
+    public PlaybackBudgetTest(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Run a command {@link #REPEATS} times, after a first run that loads and compiles its path.
+     *
+     * @return The median end-to-end latency, in milliseconds
+     */
+    private static long measure(PlaybackClient client, Command command) throws Exception {
+        command.run();
+        client.await();
+
+        long[] latencies = new long[REPEATS];
+        for (int i = 0; i < REPEATS; i++) {
+            long start = System.nanoTime();
+            command.run();
+            client.await();
+            latencies[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+
+        Arrays.sort(latencies);
+        return latencies[REPEATS / 2];
+    }
+
+    private void assertWithinBudget(String name, long latencyMs, int messages) {
+        assertTrue(
+                String.format("%s took %d ms with %d tracks", name, latencyMs, size),
+                latencyMs <= messages * PlaybackProtocol.SLOW_COMMAND_MS
+        );
+    }
+
+    @Test
+    public void commandsStayWithinBudget() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        try (PlaybackClient client = new PlaybackClient(serviceRule.bindService(new Intent(context, MediaPlayerService.class)))) {
+            JSONArray tracks = PlaybackClient.tracks(size);
+            JSONArray track = PlaybackClient.tracks(1);
+
+            int playMessages = (size + PlaybackProtocol.MAX_ITEMS_PER_MESSAGE - 1) / PlaybackProtocol.MAX_ITEMS_PER_MESSAGE;
+            assertWithinBudget("play", measure(client, () -> client.play(tracks, size / 2, WINDOW_RADIUS)), playMessages);
+            assertWithinBudget("add", measure(client, () -> client.add(track)), 1);
+            assertWithinBudget("remove", measure(client, () -> client.remove(size / 4)), 1);
+            assertWithinBudget("seek", measure(client, () -> client.seek(1000)), 1);
+            assertWithinBudget("toggleShuffle", measure(client, () -> client.send(PlaybackProtocol.TOGGLE_SHUFFLE, null)), 1);
+            assertWithinBudget("next", measure(client, () -> client.send(PlaybackProtocol.NEXT, null)), 1);
+
+            client.send(PlaybackProtocol.STOP, null);
+            client.await();
+        }
+    }
+}
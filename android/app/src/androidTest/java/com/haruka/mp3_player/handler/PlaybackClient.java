@@ -0,0 +1,127 @@
+package com.haruka.mp3_player.handler;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link PlaybackProtocol} commands to a {@link MediaPlayerService} the way {@link MediaPlayerHandler} does,
+ * converting the tracks on the calling thread, and waits until the service has handled them.
+ */
+class PlaybackClient implements AutoCloseable {
+    private static final long REPLY_TIMEOUT_S = 30;
+
+    @NonNull
+    private final HandlerThread thread = new HandlerThread("PlaybackClient");
+
+    // The request IDs of the replies received so far
+    @NonNull
+    private final LinkedBlockingQueue<Integer> replies = new LinkedBlockingQueue<>();
+
+    @NonNull
+    private final Messenger client;
+    @NonNull
+    private final Messenger service;
+    private int nextRequestId = 0;
+
+    PlaybackClient(@NonNull IBinder binder) {
+        thread.start();
+        client = new Messenger(
+                new Handler(
+                        thread.getLooper(),
+                        message -> {
+                            replies.add(message.arg1);
+                            return true;
+                        }
+                )
+        );
+        service = new Messenger(binder);
+    }
+
+    /**
+     * Wait until the service has handled every command sent so far. Commands are handled in order, so a request
+     * sent after them is answered once they are done.
+     */
+    void await() throws RemoteException, InterruptedException {
+        int requestId = nextRequestId++;
+        Message request = PlaybackProtocol.obtain(PlaybackProtocol.GET_POWER_STATS, null);
+        request.arg1 = requestId;
+        request.replyTo = client;
+        service.send(request);
+
+        while (true) {
+            Integer reply = replies.poll(REPLY_TIMEOUT_S, TimeUnit.SECONDS);
+            if (reply == null) throw new AssertionError("The service did not answer");
+            if (reply == requestId) return;
+        }
+    }
+
+    void play(@NonNull JSONArray tracks, int index, int windowRadius) throws JSONException, RemoteException {
+        Bundle arguments = new Bundle();
+        arguments.putInt(PlaybackProtocol.PLAYLIST_ID_KEY, 1);
+        arguments.putInt(PlaybackProtocol.INDEX_KEY, index);
+        arguments.putInt(PlaybackProtocol.WINDOW_RADIUS_KEY, windowRadius);
+        PlaybackProtocol.sendWithItems(service, PlaybackProtocol.PLAY, arguments, MediaPlayerHandler.getTracksList(tracks));
+    }
+
+    void add(@NonNull JSONArray tracks) throws JSONException, RemoteException {
+        PlaybackProtocol.sendWithItems(service, PlaybackProtocol.ADD, new Bundle(), MediaPlayerHandler.getTracksList(tracks));
+    }
+
+    void remove(int index) throws RemoteException {
+        Bundle arguments = new Bundle();
+        arguments.putInt(PlaybackProtocol.INDEX_KEY, index);
+        send(PlaybackProtocol.REMOVE, arguments);
+    }
+
+    void seek(long positionMs) throws RemoteException {
+        Bundle arguments = new Bundle();
+        arguments.putLong(PlaybackProtocol.POSITION_MS_KEY, positionMs);
+        send(PlaybackProtocol.SEEK, arguments);
+    }
+
+    void send(int what, @Nullable Bundle data) throws RemoteException {
+        service.send(PlaybackProtocol.obtain(what, data));
+    }
+
+    /**
+     * The tracks of a {@code play} or {@code add} call, as sent by the Flutter side.
+     */
+    @NonNull
+    static JSONArray tracks(int size) throws JSONException {
+        JSONArray tracks = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject track = new JSONObject();
+            track.put("uri", "file:///music/" + i + ".mp3");
+            track.put("title", "Track " + i);
+            track.put("artist", JSONObject.NULL);
+            track.put("thumbnailPath", JSONObject.NULL);
+            track.put("cacheKey", JSONObject.NULL);
+            tracks.put(track);
+        }
+
+        return tracks;
+    }
+
+    @Override
+    public void close() {
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,135 @@
+package com.haruka.mp3_player.handler;
+
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.rule.ServiceTestRule;
+
+import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Time and allocations of each command that scales with the queue, from the conversion of its tracks to the end of
+ * its handling by the service, including every {@link PlaybackProtocol#STAGE_ITEMS} message of a {@code play}.
+ */
+@RunWith(Parameterized.class)
+public class PlaybackCommandBenchmark {
+    private static final int WINDOW_RADIUS = 32;
+
+    @Parameterized.Parameters(name = "{0} tracks")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1_000}, {10_000}, {50_000}});
+    }
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Rule
+    public ServiceTestRule serviceRule = new ServiceTestRule();
+
+    private final int size;
+    private JSONArray tracks;
+    private PlaybackClient client;
+
+    public PlaybackCommandBenchmark(int size) {
+        this.size = size;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        client = new PlaybackClient(serviceRule.bindService(new Intent(context, MediaPlayerService.class)));
+
+        tracks = PlaybackClient.tracks(size);
+        client.play(tracks, size / 2, WINDOW_RADIUS);
+        client.await();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.send(PlaybackProtocol.STOP, null);
+        client.await();
+        client.close();
+    }
+
+    @Test
+    public void play() throws Exception {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.play(tracks, size / 2, WINDOW_RADIUS);
+            client.await();
+        }
+    }
+
+    @Test
+    public void add() throws Exception {
+        JSONArray track = PlaybackClient.tracks(1);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.add(track);
+            client.await();
+
+            // Keep the queue at the same size
+            state.pauseTiming();
+            client.remove(size);
+            client.await();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void remove() throws Exception {
+        JSONArray track = PlaybackClient.tracks(1);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.remove(size / 4);
+            client.await();
+
+            state.pauseTiming();
+            client.add(track);
+            client.await();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void seek() throws Exception {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.seek(1000);
+            client.await();
+        }
+    }
+
+    @Test
+    public void toggleShuffle() throws Exception {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.send(PlaybackProtocol.TOGGLE_SHUFFLE, null);
+            client.await();
+        }
+    }
+
+    @Test
+    public void next() throws Exception {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            client.send(PlaybackProtocol.NEXT, null);
+            client.await();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.haruka.mp3_player;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Bundle;
+import android.util.LruCache;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of decoded artwork and their dominant colors, keyed by file path.
+ * <p>
+ * Entries can be decoded ahead of time with {@link #prefetch(String)} from a background thread. Lookups through
+ * {@link #decodeFile(String)} are counted, so that the hit rate of prefetching can be reported.
+ */
+public class BitmapCache extends LruCache<String, Bitmap> implements CacheRegistry.TrimmableCache {
+    private static final int MAX_COLORS = 256;
+
+    @NonNull
+    private final String name;
+
+    // A color takes a few bytes, so they outlive the bitmaps they were computed from
+    @NonNull
+    private final LruCache<String, Integer> colors = new LruCache<>(MAX_COLORS);
+
+    @NonNull
+    private final AtomicLong hits = new AtomicLong();
+    @NonNull
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a new {@link BitmapCache}.
+     *
+     * @param name     The name reported to {@link CacheRegistry}.
+     * @param maxBytes The maximum number of bytes of decoded bitmaps to keep.
+     */
+    public BitmapCache(@NonNull String name, int maxBytes) {
+        super(maxBytes);
+        this.name = name;
+    }
+
+    @Override
+    protected int sizeOf(@NonNull String key, @NonNull Bitmap value) {
+        return value.getByteCount();
+    }
+
+    /**
+     * Get the decoded image at a path, decoding it if it is not cached.
+     *
+     * @return The bitmap, or {@code null} if the file cannot be decoded
+     */
+    @Nullable
+    public Bitmap decodeFile(@NonNull String path) {
+        Bitmap bitmap = get(path);
+        if (bitmap != null) {
+            hits.incrementAndGet();
+            return bitmap;
+        }
+
+        misses.incrementAndGet();
+        return decode(path);
+    }
+
+    @Nullable
+    private Bitmap decode(@NonNull String path) {
+        Bitmap bitmap = BitmapFactory.decodeFile(path);
+        if (bitmap != null) put(path, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decode the image at a path and compute its dominant color, unless they are already cached. Not counted as a
+     * lookup.
+     */
+    public void prefetch(@NonNull String path) {
+        Bitmap bitmap = get(path);
+        if (bitmap == null) bitmap = decode(path);
+        if (bitmap != null) getDominantColor(path, bitmap);
+    }
+
+    /**
+     * @param path   The path the bitmap was decoded from.
+     * @param bitmap The bitmap decoded from {@code path}.
+     * @return The dominant color of the bitmap, computed once per path
+     */
+    @ColorInt
+    public int getDominantColor(@NonNull String path, @NonNull Bitmap bitmap) {
+        Integer color = colors.get(path);
+        if (color == null) {
+            color = Utility.getDominantColor(bitmap);
+            colors.put(path, color);
+        }
+
+        return color;
+    }
+
+    /**
+     * @return The number of lookups ({@code hits} and {@code misses}) and the bytes of cached bitmaps
+     * ({@code sizeBytes})
+     */
+    @NonNull
+    public Bundle getStats() {
+        Bundle result = new Bundle();
+        result.putLong("hits", hits.get());
+        result.putLong("misses", misses.get());
+        result.putLong("sizeBytes", size());
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return size();
+    }
+
+    @Override
+    public void shrink() {
+        trimToSize(size() / 2);
+    }
+
+    @Override
+    public void clear() {
+        evictAll();
+    }
+}
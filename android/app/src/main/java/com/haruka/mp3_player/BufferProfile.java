@@ -0,0 +1,89 @@
+package com.haruka.mp3_player;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.LoadControl;
+
+/**
+ * Buffering strategies for the {@link androidx.media3.exoplayer.ExoPlayer} of {@link MediaPlayerService}.
+ * <p>
+ * The default {@link LoadControl} is sized for network video. Local MP3 files are small and cheap to read,
+ * so they can either be buffered very little (to save memory) or far past the end of the current track (so
+ * that the next track is already loaded when the transition happens).
+ */
+public enum BufferProfile {
+    /**
+     * Keep only a few seconds of audio in memory. Suitable for local files on low-end devices.
+     */
+    LOW_MEMORY_LOCAL(5_000, 15_000, 500, 1_000, 0, 1 << 20, false, false),
+
+    /**
+     * Buffer whole local tracks ahead, so that the next item in the queue is loaded before the current one ends.
+     */
+    GAPLESS_LOCAL(60_000, 600_000, 1_000, 2_000, 0, 16 << 20, false, true),
+
+    /**
+     * Tolerate network jitter and keep some back buffer so that seeking backwards does not refetch data.
+     */
+    NETWORK_STREAM(15_000, 60_000, 2_500, 5_000, 30_000, C.LENGTH_UNSET, true, false);
+
+    public final int minBufferMs;
+    public final int maxBufferMs;
+    public final int bufferForPlaybackMs;
+    public final int bufferForPlaybackAfterRebufferMs;
+    public final int backBufferDurationMs;
+    public final int targetBufferBytes;
+    public final boolean prioritizeTimeOverSizeThresholds;
+
+    /**
+     * Whether {@link MediaPlayerService} should warm up the next item of the queue on every transition.
+     */
+    public final boolean prepareNextItem;
+
+    BufferProfile(
+            int minBufferMs,
+            int maxBufferMs,
+            int bufferForPlaybackMs,
+            int bufferForPlaybackAfterRebufferMs,
+            int backBufferDurationMs,
+            int targetBufferBytes,
+            boolean prioritizeTimeOverSizeThresholds,
+            boolean prepareNextItem
+    ) {
+        this.minBufferMs = minBufferMs;
+        this.maxBufferMs = maxBufferMs;
+        this.bufferForPlaybackMs = bufferForPlaybackMs;
+        this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+        this.backBufferDurationMs = backBufferDurationMs;
+        this.targetBufferBytes = targetBufferBytes;
+        this.prioritizeTimeOverSizeThresholds = prioritizeTimeOverSizeThresholds;
+        this.prepareNextItem = prepareNextItem;
+    }
+
+    @NonNull
+    public LoadControl createLoadControl() {
+        return new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(minBufferMs, maxBufferMs, bufferForPlaybackMs, bufferForPlaybackAfterRebufferMs)
+                .setBackBuffer(backBufferDurationMs, false)
+                .setTargetBufferBytes(targetBufferBytes)
+                .setPrioritizeTimeOverSizeThresholds(prioritizeTimeOverSizeThresholds)
+                .build();
+    }
+
+    /**
+     * Parse a {@link BufferProfile} from its name.
+     *
+     * @param name The name of the profile, may be {@code null}.
+     * @return The matching profile, or {@link #GAPLESS_LOCAL} if no profile matches.
+     */
+    @NonNull
+    public static BufferProfile fromName(@Nullable String name) {
+        for (BufferProfile profile : values()) {
+            if (profile.name().equals(name)) return profile;
+        }
+
+        return GAPLESS_LOCAL;
+    }
+}
@@ -0,0 +1,139 @@
+package com.haruka.mp3_player;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The registry of every native in-memory cache, which shrinks or drops them when the system reports memory
+ * pressure through {@link ComponentCallbacks2#onTrimMemory(int)}.
+ * <p>
+ * Caches are trimmed in priority order: {@link Priority#LOW} caches go first, {@link Priority#HIGH} caches (e.g.
+ * what the playback notification displays) are only touched when the process is about to be killed.
+ */
+public class CacheRegistry {
+    public enum Priority {
+        LOW,
+        NORMAL,
+        HIGH,
+    }
+
+    /**
+     * A cache that can release memory on demand.
+     */
+    public interface TrimmableCache {
+        @NonNull
+        String getName();
+
+        /**
+         * @return The approximate number of bytes held by this cache
+         */
+        long getSizeBytes();
+
+        /**
+         * Release about half of the memory held.
+         */
+        void shrink();
+
+        /**
+         * Release everything that can be rebuilt later.
+         */
+        void clear();
+    }
+
+    private static class Entry {
+        @NonNull
+        final TrimmableCache cache;
+        @NonNull
+        final Priority priority;
+
+        Entry(@NonNull TrimmableCache cache, @NonNull Priority priority) {
+            this.cache = cache;
+            this.priority = priority;
+        }
+
+        // Entries are identified by their cache alone, so that a cache is registered at most once
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && ((Entry) other).cache == cache;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(cache);
+        }
+    }
+
+    @NonNull
+    private static final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Register a cache, unless it is already registered.
+     */
+    public static void register(@NonNull TrimmableCache cache, @NonNull Priority priority) {
+        entries.addIfAbsent(new Entry(cache, priority));
+    }
+
+    public static void unregister(@NonNull TrimmableCache cache) {
+        for (Entry entry : entries) {
+            if (entry.cache == cache) entries.remove(entry);
+        }
+    }
+
+    /**
+     * React to a memory pressure level from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void onTrimMemory(int level) {
+        // Caches below this priority are dropped, caches of this priority are shrunk
+        Priority limit;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            limit = Priority.HIGH;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            limit = Priority.NORMAL;
+        } else {
+            limit = Priority.LOW;
+        }
+
+        long before = getTotalBytes();
+        for (Priority priority : Priority.values()) {
+            if (priority.compareTo(limit) > 0) break;
+            for (Entry entry : entries) {
+                if (entry.priority != priority) continue;
+                if (priority == limit) {
+                    entry.cache.shrink();
+                } else {
+                    entry.cache.clear();
+                }
+            }
+        }
+
+        Logger.log(Utility.LogLevel.INFO, "Trim memory level %d: released %d bytes", level, before - getTotalBytes());
+    }
+
+    public static long getTotalBytes() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.cache.getSizeBytes();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return The number of bytes held by every registered cache, by name
+     */
+    @NonNull
+    public static HashMap<String, Long> getSizes() {
+        HashMap<String, Long> result = new HashMap<>();
+        for (Entry entry : entries) {
+            Long size = result.get(entry.cache.getName());
+            result.put(entry.cache.getName(), (size != null ? size : 0) + entry.cache.getSizeBytes());
+        }
+
+        return result;
+    }
+}
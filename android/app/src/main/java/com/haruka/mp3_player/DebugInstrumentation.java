@@ -0,0 +1,144 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug-build instrumentation catching work that should not happen on the main thread.
+ * <p>
+ * {@link StrictMode} reports disk and network access on the main thread, and a watchdog thread detects main
+ * looper stalls longer than {@link #STALL_THRESHOLD_MS}. Both are written with their stack traces to report
+ * files under {@code files/diagnostics}, which can be pulled from test devices.
+ */
+public class DebugInstrumentation {
+    private static final String DIRECTORY_NAME = "diagnostics";
+    private static final String STRICT_MODE_REPORT = "strict_mode.txt";
+    private static final String STALL_REPORT = "stalls.txt";
+    private static final long WATCHDOG_PERIOD_MS = 500;
+    private static final long STALL_THRESHOLD_MS = 2_000;
+
+    private static boolean installed = false;
+
+    // Reports are appended one at a time, away from the thread being reported
+    @NonNull
+    private static final ExecutorService reportExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Enable the instrumentation in the current process. Does nothing in release builds.
+     */
+    public static synchronized void install(@NonNull Context context) {
+        if (!BuildConfig.DEBUG || installed) return;
+        installed = true;
+
+        File directory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.log(Utility.LogLevel.ERROR, "Unable to create %s", directory);
+        }
+
+        enableStrictMode(new File(directory, STRICT_MODE_REPORT));
+        startWatchdog(new File(directory, STALL_REPORT));
+    }
+
+    private static void enableStrictMode(@NonNull File report) {
+        StrictMode.ThreadPolicy.Builder builder = new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .detectCustomSlowCalls();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            addPenaltyListener(builder, report);
+        } else {
+            builder.penaltyLog();
+        }
+
+        StrictMode.setThreadPolicy(builder.build());
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    private static void addPenaltyListener(@NonNull StrictMode.ThreadPolicy.Builder builder, @NonNull File report) {
+        builder.penaltyListener(
+                reportExecutor,
+                (violation) -> {
+                    Logger.log(Utility.LogLevel.ERROR, "StrictMode violation: %s", violation);
+                    write(report, "StrictMode violation", violation.getStackTrace(), violation.toString());
+                }
+        );
+    }
+
+    private static void startWatchdog(@NonNull File report) {
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        Thread mainThread = Looper.getMainLooper().getThread();
+
+        Thread watchdog = new Thread(
+                () -> {
+                    // The uptime at which the main looper last ran a tick
+                    AtomicLong lastTick = new AtomicLong(SystemClock.uptimeMillis());
+                    boolean reported = false;
+                    while (true) {
+                        mainHandler.post(() -> lastTick.set(SystemClock.uptimeMillis()));
+                        try {
+                            Thread.sleep(WATCHDOG_PERIOD_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+
+                        long stalledMs = SystemClock.uptimeMillis() - lastTick.get();
+                        if (stalledMs > STALL_THRESHOLD_MS) {
+                            // Report every stall once, with the stack captured while it is still stalled
+                            if (!reported) {
+                                reported = true;
+                                String title = Utility.format("Main thread stalled for %d ms", stalledMs);
+                                Logger.log(Utility.LogLevel.ERROR, title);
+                                write(report, title, mainThread.getStackTrace(), null);
+                            }
+                        } else {
+                            reported = false;
+                        }
+                    }
+                },
+                "MainThreadWatchdog"
+        );
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private static void write(
+            @NonNull File report,
+            @NonNull String title,
+            @NonNull StackTraceElement[] stackTrace,
+            @Nullable String detail
+    ) {
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date());
+        try (PrintWriter writer = new PrintWriter(new FileWriter(report, true))) {
+            writer.println(Utility.format("%s %s", timestamp, title));
+            if (detail != null) writer.println(detail);
+            for (StackTraceElement element : stackTrace) {
+                writer.println(Utility.format("    at %s", element));
+            }
+
+            writer.println();
+        } catch (IOException error) {
+            Logger.log(Utility.LogLevel.ERROR, "Unable to write %s: %s", report, error);
+        }
+    }
+}
@@ -5,21 +5,37 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Build;
 import android.R.drawable;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
 
 public class DownloadController {
+    /**
+     * Receives the number of bytes copied so far by {@link #copy}.
+     */
+    @VisibleForTesting
+    interface ProgressListener {
+        void onProgress(int copied);
+    }
+
     private static final int NOTIFICATION_ID = 1;
     private static final String NOTIFICATION_CHANNEL_ID = "mp3_player/dnc";
     private static final String NOTIFICATION_CHANNEL_NAME = "DownloaderNotificationChannel";
@@ -40,8 +56,12 @@ public class DownloadController {
 
     @NonNull
     private final NotificationCompat.Builder builder;
+    // The icon fetched for the notification, reused as the artwork of the downloaded file
+    @Nullable
+    private volatile Bitmap icon;
     private int progress = -1;
     private int total = -1;
+    private boolean completionNotified = false;
     private static int completedNotificationId = 2;
 
     public DownloadController(
@@ -65,45 +85,40 @@ public class DownloadController {
         // https://stackoverflow.com/a/15758953
         task = new Utility.ThreadingTask<>(
                 () -> {
-                    Utility.log("Downloading %s from %s to %s", description, url, outputFilePath);
+                    Logger.log(Utility.LogLevel.INFO, "Downloading %s from %s to %s", description, url, outputFilePath);
 
                     URLConnection connection = url.openConnection();
                     connection.connect();
 
                     total = connection.getContentLength();
                     BufferedInputStream input = new BufferedInputStream(url.openStream(), 4096);
+
+                    // The file is overwritten, it is indexed again once the download is ingested
+                    LibraryIndex.getInstance(context).remove(Collections.singletonList(outputFilePath));
                     FileOutputStream output = new FileOutputStream(outputFilePath);
 
                     progress = 0;
-                    byte[] writer = new byte[1024];
-                    int chunk;
-
-                    long timer = System.currentTimeMillis();
-                    boolean notifyCompletion = false;
-                    while ((chunk = input.read(writer)) != -1) {
-                        progress += chunk;
-                        output.write(writer, 0, chunk);
-                        if (System.currentTimeMillis() - timer > NOTIFICATION_UPDATE_PERIOD_MS) {
-                            notifyCompletion = notifyCompletion || updateNotification();
-                            timer = System.currentTimeMillis();
-                        }
-                    }
+                    progress = copy(
+                            input,
+                            output,
+                            (copied) -> {
+                                progress = copied;
+                                if (!completionNotified) updateNotification();
+                            }
+                    );
 
                     output.flush();
                     output.close();
                     input.close();
 
-                    if (!notifyCompletion) updateNotification();
+                    if (!completionNotified) updateNotification();
 
                     return true;
                 }
         )
                 .addDoneCallback(this::updateNotification)
                 .addErrorCallback(
-                        (error) -> Utility.log(
-                                Utility.LogLevel.ERROR,
-                                Utility.format("Error downloading %s from %s: %s", description, url, error.toString())
-                        )
+                        (error) -> Logger.log(Utility.LogLevel.ERROR, "Error downloading %s from %s: %s", description, url, error)
                 ).addErrorCallback(
                         () -> {
                             builder.setContentText("Download failed")
@@ -131,7 +146,12 @@ public class DownloadController {
         }
 
         new Utility.ThreadingTask<>(() -> Utility.bitmapFromUrl(iconUrl))
-                .addDoneCallback(builder::setLargeIcon)
+                .addDoneCallback(
+                        (bitmap) -> {
+                            icon = bitmap;
+                            builder.setLargeIcon(bitmap);
+                        }
+                )
                 .addErrorCallback(
                         (error) -> {
                             error.printStackTrace();
@@ -147,8 +167,62 @@ public class DownloadController {
                 .run();
     }
 
+    /**
+     * Prepare the downloaded file for the library: extract its metadata and artwork and index it, so that it shows
+     * up fully populated. The notification icon is used as the artwork if the file has none embedded. Should be
+     * called from a background thread once {@link #task} is done.
+     *
+     * @return The extracted item, in the same format as the items of the {@code hydratePlaylist} method
+     */
+    @NonNull
+    public HashMap<String, Object> ingest() {
+        return ingest(context, outputFilePath, icon);
+    }
+
+    /**
+     * Prepare a file that was just saved for the library, see {@link #ingest()}.
+     *
+     * @param artwork The artwork to use if the file has none embedded, if any.
+     */
+    @NonNull
+    public static HashMap<String, Object> ingest(@NonNull Context context, @NonNull String path, @Nullable Bitmap artwork) {
+        MetadataExtractor.removeStaleThumbnails(context);
+
+        HashMap<String, Object> item = MetadataExtractor.extract(path, context.getCacheDir(), artwork);
+
+        LibraryIndex.getInstance(context).update(Collections.singletonList(item));
+
+        Logger.log(Utility.LogLevel.INFO, "Ingested %s: %s", path, item.get("thumbnailPath"));
+        return item;
+    }
+
+    /**
+     * Copy a download to its file, reporting the progress at most every {@link #NOTIFICATION_UPDATE_PERIOD_MS}.
+     *
+     * @return The number of bytes copied
+     */
+    @VisibleForTesting
+    static int copy(@NonNull InputStream input, @NonNull OutputStream output, @NonNull ProgressListener listener) throws IOException {
+        byte[] writer = new byte[1024];
+        int copied = 0;
+        int chunk;
+
+        long timer = System.currentTimeMillis();
+        while ((chunk = input.read(writer)) != -1) {
+            copied += chunk;
+            output.write(writer, 0, chunk);
+            if (System.currentTimeMillis() - timer > NOTIFICATION_UPDATE_PERIOD_MS) {
+                listener.onProgress(copied);
+                timer = System.currentTimeMillis();
+            }
+        }
+
+        return copied;
+    }
+
     private synchronized boolean updateNotification() {
         if (task.isFinished()) {
+            completionNotified = true;
             builder.setContentText(Utility.format("Download completed (%s)", Utility.format(progress)))
                     .setOngoing(false)
                     .setProgress(0, 0, false)
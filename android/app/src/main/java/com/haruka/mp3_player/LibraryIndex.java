@@ -0,0 +1,492 @@
+package com.haruka.mp3_player;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A full-text index over the title, artist, album and genre of every local track whose metadata has been
+ * extracted, so that the library can be searched without loading it into the Flutter side.
+ * <p>
+ * Rows live in a plain {@code tracks} table and are mirrored into an FTS4 table with prefix indexes (FTS5 is not
+ * compiled into the framework SQLite). Tracks are indexed or dropped by {@link #update(List)} as the metadata
+ * extractor reports on them, and {@link #prune()} catches up with files deleted or modified outside of the
+ * application.
+ * <p>
+ * The framework SQLite cannot rank with custom weights, so matches are ranked in Java. The ranking of the last query
+ * is kept until the index changes, so that the following pages of a search only load their own rows.
+ */
+public class LibraryIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "library_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // Column weights of the rank function, in the order of the FTS table columns
+    private static final double[] WEIGHTS = {4.0, 2.0, 2.0, 1.0};
+
+    // The rows of a page are loaded in batches below SQLite's default limit of 999 variables per statement
+    private static final int MAX_QUERY_ARGUMENTS = 500;
+
+    @Nullable
+    private static LibraryIndex instance;
+
+    // Incremented after every write, so that a ranking computed before the write is not reused
+    @NonNull
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // The ranked docids of the last query, guarded by this
+    @Nullable
+    private String rankedQuery;
+    @NonNull
+    private long[] rankedIds = new long[0];
+    private int rankedGeneration = -1;
+
+    /**
+     * A page of search results.
+     */
+    public static class SearchResult {
+        /**
+         * The total number of matching tracks.
+         */
+        public final int total;
+
+        @NonNull
+        public final ArrayList<HashMap<String, Object>> items;
+
+        /**
+         * The time spent executing the query, in microseconds.
+         */
+        public final long elapsedMicros;
+
+        SearchResult(int total, @NonNull ArrayList<HashMap<String, Object>> items, long elapsedMicros) {
+            this.total = total;
+            this.items = items;
+            this.elapsedMicros = elapsedMicros;
+        }
+
+        @NonNull
+        public HashMap<String, Object> toMap() {
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("total", total);
+            result.put("items", items);
+            result.put("elapsedMicros", elapsedMicros);
+            return result;
+        }
+    }
+
+    private static class Match {
+        final long id;
+        final double score;
+
+        Match(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    private LibraryIndex(@NonNull Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @NonNull
+    public static synchronized LibraryIndex getInstance(@NonNull Context context) {
+        if (instance == null) instance = new LibraryIndex(context.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Close the index, the next {@link #getInstance(Context)} opens it again.
+     */
+    @VisibleForTesting
+    public static synchronized void release() {
+        if (instance != null) instance.close();
+        instance = null;
+    }
+
+    @Override
+    public void onCreate(@NonNull SQLiteDatabase database) {
+        database.execSQL(
+                "CREATE TABLE tracks (" +
+                        "id INTEGER PRIMARY KEY, " +
+                        "path TEXT NOT NULL UNIQUE, " +
+                        "modified INTEGER NOT NULL, " +
+                        "title TEXT NOT NULL, " +
+                        "artist TEXT, " +
+                        "album TEXT, " +
+                        "genre TEXT)"
+        );
+        database.execSQL(
+                "CREATE VIRTUAL TABLE tracks_fts USING fts4(title, artist, album, genre, tokenize=unicode61, prefix=\"1,2,3\")"
+        );
+    }
+
+    @Override
+    public void onUpgrade(@NonNull SQLiteDatabase database, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * The default title of a track, same as the Flutter side: the embedded title, or the file name without its
+     * extension.
+     */
+    @NonNull
+    private static String defaultTitle(@NonNull String path, @Nullable String title) {
+        if (title != null) return title;
+
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void writeFts(@NonNull SQLiteDatabase database, long id, @NonNull ContentValues row) {
+        database.delete("tracks_fts", "docid = ?", new String[]{Long.toString(id)});
+
+        ContentValues values = new ContentValues();
+        values.put("docid", id);
+        values.put("title", row.getAsString("title"));
+        values.put("artist", row.getAsString("artist"));
+        values.put("album", row.getAsString("album"));
+        values.put("genre", row.getAsString("genre"));
+        database.insert("tracks_fts", null, values);
+    }
+
+    /**
+     * Add or update tracks in the index, in a single transaction.
+     * <p>
+     * The title of a track that is already indexed is kept, since it may have been edited by the user (see
+     * {@link #setTitle(String, String)}).
+     *
+     * @param tracks Track path -> metadata, as returned by the {@code extractMetadata} method.
+     */
+    public void index(@NonNull Map<String, ? extends Map<String, String>> tracks) {
+        if (tracks.isEmpty()) return;
+
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (Map.Entry<String, ? extends Map<String, String>> track : tracks.entrySet()) {
+                String path = track.getKey();
+                Map<String, String> metadata = track.getValue();
+
+                ContentValues row = new ContentValues();
+                row.put("path", path);
+                row.put("modified", new File(path).lastModified());
+                row.put("artist", metadata.get("artist"));
+                row.put("album", metadata.get("album"));
+                row.put("genre", metadata.get("genre"));
+
+                long id = -1;
+                try (Cursor cursor = database.query("tracks", new String[]{"id", "title"}, "path = ?", new String[]{path}, null, null, null)) {
+                    if (cursor.moveToFirst()) {
+                        id = cursor.getLong(0);
+                        row.put("title", cursor.getString(1));
+                    }
+                }
+
+                if (id == -1) {
+                    row.put("title", defaultTitle(path, metadata.get("title")));
+                    id = database.insert("tracks", null, row);
+                } else {
+                    database.update("tracks", row, "id = ?", new String[]{Long.toString(id)});
+                }
+
+                writeFts(database, id, row);
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop tracks from the index, in a single transaction.
+     *
+     * @param paths The paths of the tracks, those that are not indexed are ignored.
+     */
+    public void remove(@NonNull Collection<String> paths) {
+        if (paths.isEmpty()) return;
+
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (String path : paths) {
+                try (Cursor cursor = database.query("tracks", new String[]{"id"}, "path = ?", new String[]{path}, null, null, null)) {
+                    if (cursor.moveToFirst()) delete(database, Long.toString(cursor.getLong(0)));
+                }
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Apply the result of {@link MetadataExtractor#extract} to the index, in a single transaction: tracks with
+     * metadata are indexed, the others were deleted, are not audio files or cannot be read, and are dropped.
+     *
+     * @param items The extracted items, with their {@code path} and {@code metadata}.
+     */
+    public void update(@NonNull List<? extends Map<String, Object>> items) {
+        HashMap<String, Map<String, String>> extracted = new HashMap<>();
+        ArrayList<String> gone = new ArrayList<>();
+        for (Map<String, Object> item : items) {
+            String path = (String) item.get("path");
+            @SuppressWarnings("unchecked")
+            Map<String, String> metadata = (Map<String, String>) item.get("metadata");
+            if (metadata != null) {
+                extracted.put(path, metadata);
+            } else {
+                gone.add(path);
+            }
+        }
+
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            index(extracted);
+            remove(gone);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static void delete(@NonNull SQLiteDatabase database, @NonNull String id) {
+        database.delete("tracks", "id = ?", new String[]{id});
+        database.delete("tracks_fts", "docid = ?", new String[]{id});
+    }
+
+    /**
+     * Update the title of an indexed track. Does nothing if the track is not indexed yet.
+     */
+    public void setTitle(@NonNull String path, @NonNull String title) {
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            try (Cursor cursor = database.query("tracks", null, "path = ?", new String[]{path}, null, null, null)) {
+                if (cursor.moveToFirst()) {
+                    long id = cursor.getLong(cursor.getColumnIndexOrThrow("id"));
+
+                    ContentValues row = new ContentValues();
+                    row.put("title", title);
+                    row.put("artist", cursor.getString(cursor.getColumnIndexOrThrow("artist")));
+                    row.put("album", cursor.getString(cursor.getColumnIndexOrThrow("album")));
+                    row.put("genre", cursor.getString(cursor.getColumnIndexOrThrow("genre")));
+
+                    ContentValues update = new ContentValues();
+                    update.put("title", title);
+                    database.update("tracks", update, "id = ?", new String[]{Long.toString(id)});
+                    writeFts(database, id, row);
+                }
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the tracks whose files no longer exist or were modified since they were indexed. Should be called
+     * from a background thread.
+     *
+     * @return The number of removed tracks
+     */
+    public int prune() {
+        SQLiteDatabase database = getWritableDatabase();
+        ArrayList<String> stale = new ArrayList<>();
+        try (Cursor cursor = database.query("tracks", new String[]{"id", "path", "modified"}, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                File file = new File(cursor.getString(1));
+                if (!file.isFile() || file.lastModified() != cursor.getLong(2)) {
+                    stale.add(Long.toString(cursor.getLong(0)));
+                }
+            }
+        }
+
+        database.beginTransaction();
+        try {
+            for (String id : stale) {
+                delete(database, id);
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            generation.incrementAndGet();
+        }
+
+        if (!stale.isEmpty()) Logger.log(Utility.LogLevel.INFO, "Pruned %d tracks from the library index", stale.size());
+        return stale.size();
+    }
+
+    /**
+     * Build an FTS query matching every word of {@code query} as a prefix.
+     *
+     * @return The FTS query, or {@code null} if {@code query} has no words
+     */
+    @Nullable
+    private static String toMatchQuery(@NonNull String query) {
+        StringBuilder builder = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (builder.length() > 0) builder.append(' ');
+            builder.append(word).append('*');
+        }
+
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    /**
+     * Score a row from its {@code matchinfo(tracks_fts, 'pcx')} blob: the weighted sum, over every word and
+     * column, of the hits in this row relative to the hits in all rows.
+     */
+    private static double score(@NonNull byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int offset = 4 * (2 + 3 * (phrase * columns + column));
+                int hitsInRow = buffer.getInt(offset);
+                int hitsInAllRows = buffer.getInt(offset + 4);
+                if (hitsInRow > 0) score += WEIGHTS[column] * hitsInRow / hitsInAllRows;
+            }
+        }
+
+        return score;
+    }
+
+    /**
+     * Rank every match of an FTS query, best first, reusing the ranking of the previous call if neither the query
+     * nor the index changed since.
+     *
+     * @return The docids of the matches
+     */
+    @NonNull
+    private long[] rank(@NonNull SQLiteDatabase database, @NonNull String match) {
+        int currentGeneration = generation.get();
+        synchronized (this) {
+            if (currentGeneration == rankedGeneration && match.equals(rankedQuery)) return rankedIds;
+        }
+
+        ArrayList<Match> matches = new ArrayList<>();
+        try (Cursor cursor = database.rawQuery("SELECT docid, matchinfo(tracks_fts, 'pcx') FROM tracks_fts WHERE tracks_fts MATCH ?", new String[]{match})) {
+            while (cursor.moveToNext()) {
+                matches.add(new Match(cursor.getLong(0), score(cursor.getBlob(1))));
+            }
+        }
+
+        Collections.sort(
+                matches,
+                (first, second) -> {
+                    int compare = Double.compare(second.score, first.score);
+                    return compare != 0 ? compare : Long.compare(first.id, second.id);
+                }
+        );
+
+        long[] ids = new long[matches.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = matches.get(i).id;
+        }
+
+        synchronized (this) {
+            rankedQuery = match;
+            rankedIds = ids;
+            rankedGeneration = currentGeneration;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Load the rows of {@code ids[start]} to {@code ids[end - 1]} into {@code rows}, by ID.
+     */
+    private static void loadRows(@NonNull SQLiteDatabase database, @NonNull long[] ids, int start, int end, @NonNull HashMap<Long, HashMap<String, Object>> rows) {
+        String[] arguments = new String[end - start];
+        char[] placeholders = new char[2 * arguments.length - 1];
+        Arrays.fill(placeholders, ',');
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = Long.toString(ids[start + i]);
+            placeholders[2 * i] = '?';
+        }
+
+        try (Cursor cursor = database.rawQuery("SELECT id, path, title, artist, album, genre FROM tracks WHERE id IN (" + new String(placeholders) + ")", arguments)) {
+            while (cursor.moveToNext()) {
+                HashMap<String, Object> row = new HashMap<>();
+                row.put("path", cursor.getString(1));
+                row.put("title", cursor.getString(2));
+                row.put("artist", cursor.getString(3));
+                row.put("album", cursor.getString(4));
+                row.put("genre", cursor.getString(5));
+                rows.put(cursor.getLong(0), row);
+            }
+        }
+    }
+
+    /**
+     * Search the index, matching every word of {@code query} as a prefix of a word in the title, artist, album or
+     * genre. Results are ranked with title matches first.
+     * <p>
+     * The first page of a query ranks every match, the following pages only load their own rows (see
+     * {@link #rank}).
+     *
+     * @param query  The search query.
+     * @param offset The number of results to skip.
+     * @param limit  The maximum number of results to return.
+     */
+    @NonNull
+    public SearchResult search(@NonNull String query, int offset, int limit) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        ArrayList<HashMap<String, Object>> items = new ArrayList<>();
+
+        String match = toMatchQuery(query);
+        if (match == null) return new SearchResult(0, items, 0);
+
+        SQLiteDatabase database = getReadableDatabase();
+        long[] ranked = rank(database, match);
+
+        int start = Math.min(Math.max(offset, 0), ranked.length);
+        int end = start + Math.min(Math.max(limit, 0), ranked.length - start);
+        if (start < end) {
+            HashMap<Long, HashMap<String, Object>> rows = new HashMap<>();
+            for (int batch = start; batch < end; batch += MAX_QUERY_ARGUMENTS) {
+                loadRows(database, ranked, batch, Math.min(batch + MAX_QUERY_ARGUMENTS, end), rows);
+            }
+
+            for (int i = start; i < end; i++) {
+                HashMap<String, Object> row = rows.get(ranked[i]);
+                if (row != null) items.add(row);
+            }
+        }
+
+        long elapsedMicros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        Logger.log(Utility.LogLevel.DEBUG, "Searched \"%s\": %d results in %d us", query, ranked.length, elapsedMicros);
+        return new SearchResult(ranked.length, items, elapsedMicros);
+    }
+}
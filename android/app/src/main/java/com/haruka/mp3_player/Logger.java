@@ -0,0 +1,144 @@
+package com.haruka.mp3_player;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import io.flutter.Log;
+
+/**
+ * Level-gated logging into logcat and a fixed-size in-memory ring buffer.
+ * <p>
+ * Messages are only formatted once their level is known to be enabled, the fixed-arity overloads avoid
+ * allocating a varargs array and the {@code long} overloads avoid boxing numbers, so disabled log calls cost a
+ * single comparison. The ring buffer keeps the last
+ * {@link #CAPACITY} messages, which can be written to a file with {@link #dump(File)} for diagnostics.
+ */
+public class Logger {
+    private static final String LOG_TAG = "HARUKA.MP3_PLAYER.NATIVE";
+    private static final int CAPACITY = 512;
+
+    @NonNull
+    private static volatile Utility.LogLevel minLevel = BuildConfig.DEBUG ? Utility.LogLevel.DEBUG : Utility.LogLevel.INFO;
+
+    // The ring buffer, guarded by the class lock
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final Utility.LogLevel[] levels = new Utility.LogLevel[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static int next = 0;
+    private static int count = 0;
+
+    @NonNull
+    public static Utility.LogLevel getMinLevel() {
+        return minLevel;
+    }
+
+    public static void setMinLevel(@NonNull Utility.LogLevel level) {
+        minLevel = level;
+    }
+
+    public static boolean isEnabled(@NonNull Utility.LogLevel level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String message) {
+        if (isEnabled(level)) write(level, message);
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, @Nullable Object arg) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg));
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, long arg) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg));
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg1, arg2));
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, long arg1, long arg2) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg1, arg2));
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, @Nullable Object arg1, long arg2, long arg3) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg1, arg2, arg3));
+    }
+
+    public static void log(@NonNull Utility.LogLevel level, @NonNull String format, long arg1, long arg2, long arg3) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg1, arg2, arg3));
+    }
+
+    public static void log(
+            @NonNull Utility.LogLevel level,
+            @NonNull String format,
+            @Nullable Object arg1,
+            @Nullable Object arg2,
+            @Nullable Object arg3
+    ) {
+        if (isEnabled(level)) write(level, Utility.format(format, arg1, arg2, arg3));
+    }
+
+    private static void write(@NonNull Utility.LogLevel level, @NonNull String message) {
+        switch (level) {
+            case DEBUG:
+                Log.d(LOG_TAG, message);
+                break;
+
+            case INFO:
+                Log.i(LOG_TAG, message);
+                break;
+
+            case ERROR:
+                Log.e(LOG_TAG, message);
+        }
+
+        synchronized (Logger.class) {
+            timestamps[next] = System.currentTimeMillis();
+            levels[next] = level;
+            messages[next] = message;
+            next = (next + 1) % CAPACITY;
+            if (count < CAPACITY) count++;
+        }
+    }
+
+    /**
+     * Write the content of the ring buffer to a file, oldest message first. Should be called from a background
+     * thread.
+     *
+     * @param output The file to write to, overwritten if it exists.
+     */
+    public static void dump(@NonNull File output) throws IOException {
+        long[] timestamps = new long[CAPACITY];
+        Utility.LogLevel[] levels = new Utility.LogLevel[CAPACITY];
+        String[] messages = new String[CAPACITY];
+        int start, size;
+        synchronized (Logger.class) {
+            System.arraycopy(Logger.timestamps, 0, timestamps, 0, CAPACITY);
+            System.arraycopy(Logger.levels, 0, levels, 0, CAPACITY);
+            System.arraycopy(Logger.messages, 0, messages, 0, CAPACITY);
+            size = count;
+            start = (next - count + CAPACITY) % CAPACITY;
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % CAPACITY;
+                writer.write(dateFormat.format(new Date(timestamps[index])));
+                writer.write(' ');
+                writer.write(levels[index].name());
+                writer.write(' ');
+                writer.write(messages[index]);
+                writer.newLine();
+            }
+        }
+    }
+}
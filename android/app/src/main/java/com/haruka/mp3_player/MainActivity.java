@@ -1,6 +1,15 @@
 package com.haruka.mp3_player;
 
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.haruka.mp3_player.handler.DownloaderHandler;
 import com.haruka.mp3_player.handler.MediaMetadataHandler;
@@ -9,25 +18,176 @@ import com.haruka.mp3_player.handler.UtilsHandler;
 
 import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
 import io.flutter.embedding.engine.plugins.PluginRegistry;
 
 /**
  * The main {@link FlutterActivity} of the application
  */
 public class MainActivity extends FlutterActivity {
+    /**
+     * The ID of the pre-warmed {@link FlutterEngine} in {@link FlutterEngineCache}, which displays the playing screen
+     */
+    public static final String PLAYING_SCREEN_ENGINE_ID = "com.haruka.mp3_player/playing";
+    public static final String PLAYING_SCREEN_ROUTE = "/playing";
+
+    /**
+     * Opens the playing screen engine, creating it first if necessary. Used by the playback notification, since the
+     * engine may have been released under memory pressure or never created in this process.
+     */
+    public static final String SHOW_PLAYING_SCREEN_ACTION = "com.haruka.mp3_player.SHOW_PLAYING_SCREEN";
+
+    /**
+     * Releases the playing screen engine under memory pressure, unless an activity displays it. It is created again
+     * the next time it is needed.
+     */
+    private static final CacheRegistry.TrimmableCache playingScreenEngineCache = new CacheRegistry.TrimmableCache() {
+        @NonNull
+        @Override
+        public String getName() {
+            return "playingScreenEngine";
+        }
+
+        @Override
+        public long getSizeBytes() {
+            // Held by the Dart VM and the native engine, which cannot be measured from here
+            return 0;
+        }
+
+        @Override
+        public void shrink() {
+        }
+
+        @Override
+        public void clear() {
+            if (playingScreenHosts > 0) return;
+
+            FlutterEngine flutterEngine = FlutterEngineCache.getInstance().get(PLAYING_SCREEN_ENGINE_ID);
+            if (flutterEngine == null) return;
+
+            FlutterEngineCache.getInstance().remove(PLAYING_SCREEN_ENGINE_ID);
+            flutterEngine.destroy();
+            CacheRegistry.unregister(this);
+            Logger.log(Utility.LogLevel.INFO, "Released the playing screen engine");
+        }
+    };
+
+    // The number of activities displaying the playing screen engine, which must not be destroyed meanwhile
+    private static int playingScreenHosts = 0;
+    private static boolean playingScreenWarmUpScheduled = false;
+
+    private boolean hostsPlayingScreen = false;
+
+    @Nullable
+    @Override
+    public String getCachedEngineId() {
+        if (SHOW_PLAYING_SCREEN_ACTION.equals(getIntent().getAction())) {
+            getPlayingScreenEngine(this);
+            return PLAYING_SCREEN_ENGINE_ID;
+        }
+
+        return super.getCachedEngineId();
+    }
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        hostsPlayingScreen = PLAYING_SCREEN_ENGINE_ID.equals(getCachedEngineId());
+        if (hostsPlayingScreen) playingScreenHosts++;
+        super.onCreate(savedInstanceState);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (hostsPlayingScreen) playingScreenHosts--;
+    }
+
     @Override
     public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
         super.configureFlutterEngine(flutterEngine);
+        registerPlugins(flutterEngine);
 
-        DownloaderHandler downloaderHandler = new DownloaderHandler(this);
-        MediaMetadataHandler mediaMetadataHandler = new MediaMetadataHandler(this);
-        MediaPlayerHandler mediaPlayerHandler = new MediaPlayerHandler(this);
-        UtilsHandler utilsHandler = new UtilsHandler(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Logger.log(
+                    Utility.LogLevel.DEBUG,
+                    "Engine configured %d ms after process start",
+                    SystemClock.uptimeMillis() - Process.getStartUptimeMillis()
+            );
+        }
+    }
 
+    /**
+     * Register the application plugins to a {@link FlutterEngine}, unless they are already registered.
+     * <p>
+     * This runs before the first frame, so plugins only create their channels here and defer the rest of their
+     * initialization to their first call. Each step is a {@link Trace} section, visible in system traces.
+     *
+     * @param flutterEngine The engine to register plugins to.
+     */
+    public static void registerPlugins(@NonNull FlutterEngine flutterEngine) {
         PluginRegistry pluginRegistry = flutterEngine.getPlugins();
-        pluginRegistry.add(downloaderHandler);
-        pluginRegistry.add(mediaMetadataHandler);
-        pluginRegistry.add(mediaPlayerHandler);
-        pluginRegistry.add(utilsHandler);
+        if (pluginRegistry.has(MediaPlayerHandler.class)) return;
+
+        Trace.beginSection("registerPlugins");
+        try {
+            pluginRegistry.add(new DownloaderHandler());
+            pluginRegistry.add(new MediaMetadataHandler());
+            pluginRegistry.add(new MediaPlayerHandler());
+            pluginRegistry.add(new UtilsHandler());
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Create the playing screen engine the next time the main thread is idle, so that it is ready when the user opens
+     * the playing screen without delaying the current work.
+     * <p>
+     * This must be called from the main thread.
+     */
+    public static void warmUpPlayingScreenEngine(@NonNull Context context) {
+        if (playingScreenWarmUpScheduled || FlutterEngineCache.getInstance().contains(PLAYING_SCREEN_ENGINE_ID)) return;
+
+        playingScreenWarmUpScheduled = true;
+        Context applicationContext = context.getApplicationContext();
+        Looper.myQueue().addIdleHandler(
+                () -> {
+                    playingScreenWarmUpScheduled = false;
+                    getPlayingScreenEngine(applicationContext);
+                    return false;
+                }
+        );
+    }
+
+    /**
+     * Get the cached {@link FlutterEngine} displaying the playing screen, create and start one if necessary. A new
+     * engine is registered to {@link CacheRegistry}, which releases it under memory pressure.
+     * <p>
+     * This must be called from the main thread.
+     *
+     * @param context The context to create the engine from.
+     * @return The cached engine, registered as {@link #PLAYING_SCREEN_ENGINE_ID}
+     */
+    @NonNull
+    public static FlutterEngine getPlayingScreenEngine(@NonNull Context context) {
+        FlutterEngineCache cache = FlutterEngineCache.getInstance();
+        FlutterEngine flutterEngine = cache.get(PLAYING_SCREEN_ENGINE_ID);
+        if (flutterEngine == null) {
+            Trace.beginSection("getPlayingScreenEngine");
+            try {
+                flutterEngine = new FlutterEngine(context.getApplicationContext());
+                registerPlugins(flutterEngine);
+
+                flutterEngine.getNavigationChannel().setInitialRoute(PLAYING_SCREEN_ROUTE);
+                flutterEngine.getDartExecutor().executeDartEntrypoint(DartExecutor.DartEntrypoint.createDefault());
+                cache.put(PLAYING_SCREEN_ENGINE_ID, flutterEngine);
+                CacheRegistry.register(playingScreenEngineCache, CacheRegistry.Priority.NORMAL);
+            } finally {
+                Trace.endSection();
+            }
+        }
+
+        return flutterEngine;
     }
 }
@@ -0,0 +1,26 @@
+package com.haruka.mp3_player;
+
+import android.app.Application;
+
+/**
+ * The {@link Application} of the app, shared by the activity and {@link MediaPlayerService}
+ */
+public class MainApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DebugInstrumentation.install(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        CacheRegistry.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        CacheRegistry.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+}
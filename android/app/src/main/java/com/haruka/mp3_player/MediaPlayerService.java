@@ -11,37 +11,59 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.IBinder;
 import android.R.drawable;
 import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.os.BundleCompat;
 import androidx.media3.common.AudioAttributes;
 import androidx.media3.common.C;
 import androidx.media3.common.MediaItem;
 import androidx.media3.common.Player;
+import androidx.media3.exoplayer.DefaultRenderersFactory;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
 import androidx.media3.session.MediaSession;
 import androidx.media3.session.MediaStyleNotificationHelper;
 
-import com.haruka.mp3_player.handler.MediaPlayerHandler.PlayerStateReceiver;
-
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import io.flutter.embedding.android.FlutterActivity;
 
 public class MediaPlayerService extends Service {
     private static final int NOTIFICATION_ID = 1;
     private static final String NOTIFICATION_CHANNEL_ID = "com.haruka.mp3_player.MediaPlayerNotificationChannel";
     private static final String NOTIFICATION_CHANNEL_NAME = "MediaPlayerNotificationChannel";
     private static final int PLAYER_UPDATE_PERIOD_MS = 250;
+    private static final int PREPARE_NEXT_ITEM_BYTES = 256 << 10;
+    private static final int UP_NEXT_COUNT = 10;
+    private static final long DEFAULT_IDLE_RELEASE_MS = 30_000;
+    private static final long DEFAULT_IDLE_STOP_MS = 600_000;
+    private static final int ARTWORK_CACHE_BYTES = 8 << 20;
+    private static final int ARTWORK_LOOKAHEAD = 3;
 
     public class MediaControlReceiver extends BroadcastReceiver {
         public static final String ADD_ACTION = "com.haruka.mp3_player.ADD";
@@ -52,6 +74,7 @@ public class MediaPlayerService extends Service {
         public static final String REMOVE_ACTION = "com.haruka.mp3_player.REMOVE";
         public static final String RESUME_ACTION = "com.haruka.mp3_player.RESUME";
         public static final String SEEK_ACTION = "com.haruka.mp3_player.SEEK";
+        public static final String START_ACTION = "com.haruka.mp3_player.START";
         public static final String STOP_ACTION = "com.haruka.mp3_player.STOP";
         public static final String SWITCH_REPEAT_ACTION = "com.haruka.mp3_player.SWITCH_REPEAT_ACTION";
         public static final String SWITCH_SHUFFLE_ACTION = "com.haruka.mp3_player.SWITCH_SHUFFLE_ACTION";
@@ -65,6 +88,8 @@ public class MediaPlayerService extends Service {
         public static final String INITIAL_INDEX_KEY = "INITIAL_INDEX_KEY";
         public static final String PLAYLIST_BUNDLE_KEY = "PLAYLIST_BUNDLE_KEY";
         public static final String PLAYLIST_BUNDLE_LIST_KEY = "PLAYLIST_BUNDLE_LIST_KEY";
+        public static final String WINDOW_RADIUS_KEY = "WINDOW_RADIUS_KEY";
+        public static final String BUFFER_PROFILE_KEY = "BUFFER_PROFILE_KEY";
 
         // For removing a track
         public static final String REMOVE_INDEX_KEY = "REMOVE_INDEX_KEY";
@@ -73,112 +98,243 @@ public class MediaPlayerService extends Service {
         public static final String POSITION_MS_KEY = "POSITION_MS_KEY";
 
         @NonNull
-        private ArrayList<MediaItem> fromBundles(ArrayList<Bundle> bundles) {
-            ArrayList<MediaItem> items = new ArrayList<>();
-            for (Bundle item : bundles) {
-                MediaItem mediaItem = MediaItem.CREATOR.fromBundle(item);
-                mediaItem = mediaItem.buildUpon()
-                        .setUri(mediaItem.requestMetadata.mediaUri)
-                        .build();
-
-                items.add(mediaItem);
-            }
-
-            return items;
+        private ArrayList<Bundle> getBundles(@NonNull Intent intent, @NonNull String bundleKey, @NonNull String listKey) {
+            Bundle bundle = intent.getBundleExtra(bundleKey);
+            ArrayList<Bundle> bundles = BundleCompat.getParcelableArrayList(bundle, listKey, Bundle.class);
+            return bundles != null ? bundles : new ArrayList<>();
         }
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            Player player = getMediaSession().getPlayer();
-            try {
-                switch (intent.getAction()) {
-                    case ADD_ACTION:
-                        Bundle addBundle = intent.getBundleExtra(TRACK_BUNDLE_KEY);
-                        ArrayList<Bundle> addBundles;
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                            addBundles = addBundle.getParcelableArrayList(TRACKS_BUNDLE_LIST_KEY, Bundle.class);
-                        } else {
-                            addBundles = addBundle.getParcelableArrayList(TRACKS_BUNDLE_LIST_KEY);
-                        }
+            switch (intent.getAction()) {
+                case ADD_ACTION:
+                    add(getBundles(intent, TRACK_BUNDLE_KEY, TRACKS_BUNDLE_LIST_KEY));
+                    break;
 
-                        player.addMediaItems(fromBundles(addBundles));
-                        break;
+                case NEXT_ACTION:
+                    next();
+                    break;
 
-                    case NEXT_ACTION:
-                        player.seekToNextMediaItem();
-                        break;
+                case PAUSE_ACTION:
+                    pause();
+                    break;
 
-                    case PAUSE_ACTION:
-                        player.pause();
-                        break;
+                case PLAY_ACTION:
+                    play(
+                            getBundles(intent, PLAYLIST_BUNDLE_KEY, PLAYLIST_BUNDLE_LIST_KEY),
+                            intent.getIntExtra(PLAYLIST_ID_KEY, -1),
+                            intent.getIntExtra(INITIAL_INDEX_KEY, 0),
+                            intent.getIntExtra(WINDOW_RADIUS_KEY, 0),
+                            BufferProfile.fromName(intent.getStringExtra(BUFFER_PROFILE_KEY))
+                    );
+                    break;
 
-                    case PLAY_ACTION:
-                        playlistId = intent.getIntExtra(PLAYLIST_ID_KEY, -1);
-                        int index = intent.getIntExtra(INITIAL_INDEX_KEY, 0);
+                case PREVIOUS_ACTION:
+                    previous();
+                    break;
 
-                        Bundle bundle = intent.getBundleExtra(PLAYLIST_BUNDLE_KEY);
-                        ArrayList<Bundle> playlistBundle;
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                            playlistBundle = bundle.getParcelableArrayList(PLAYLIST_BUNDLE_LIST_KEY, Bundle.class);
-                        } else {
-                            playlistBundle = bundle.getParcelableArrayList(PLAYLIST_BUNDLE_LIST_KEY);
-                        }
+                case REMOVE_ACTION:
+                    remove(intent.getIntExtra(REMOVE_INDEX_KEY, -1));
+                    break;
 
-                        player.setMediaItems(fromBundles(playlistBundle));
-                        player.prepare();
-                        player.seekTo(index, 0);
-                        player.play();
-                        break;
+                case RESUME_ACTION:
+                    resume();
+                    break;
 
-                    case PREVIOUS_ACTION:
-                        player.seekToPreviousMediaItem();
-                        break;
+                case SEEK_ACTION:
+                    seek(intent.getIntExtra(POSITION_MS_KEY, 0));
+                    break;
 
-                    case REMOVE_ACTION:
-                        int removeIndex = intent.getIntExtra(REMOVE_INDEX_KEY, -1);
-                        player.removeMediaItem(removeIndex);
-                        break;
+                case START_ACTION:
+                    // Started by a client, which sends its commands through the messenger once connected
+                    break;
 
-                    case RESUME_ACTION:
-                        player.play();
-                        break;
+                case STOP_ACTION:
+                    stop();
+                    break;
 
-                    case SEEK_ACTION:
-                        long position = intent.getIntExtra(POSITION_MS_KEY, 0);
-                        player.seekTo(position);
-                        break;
+                case SWITCH_REPEAT_ACTION:
+                    toggleRepeat();
+                    break;
 
-                    case STOP_ACTION:
-                        stopSelf();
-                        break;
+                case SWITCH_SHUFFLE_ACTION:
+                    toggleShuffle();
+                    break;
 
-                    case SWITCH_REPEAT_ACTION:
-                        player.setRepeatMode((player.getRepeatMode() + 2) % 3);
-                        break;
+                default:
+                    throw new UnsupportedOperationException(Utility.format("Unsupported action %s", intent.getAction()));
+            }
+        }
+    }
 
-                    case SWITCH_SHUFFLE_ACTION:
-                        player.setShuffleModeEnabled(!player.getShuffleModeEnabled());
-                        break;
+    /**
+     * Counters showing how often the service wakes up and how long it holds playback resources, to verify the
+     * effect of the power-saving mode.
+     */
+    public static class PowerStats {
+        public long stateUpdates = 0;
+        public long decoderReleases = 0;
+        public long decoderRestores = 0;
+        public long idleStops = 0;
+        public long offloadSleeps = 0;
+        public boolean offloadSchedulingEnabled = false;
+        public boolean resourcesHeld = false;
 
-                    default:
-                        throw new UnsupportedOperationException(Utility.format("Unsupported action %s", intent.getAction()));
-                }
+        // The process hosting playback, to compare the footprint of a separate process with a shared one
+        public boolean separateProcess = false;
+        public int pid = 0;
+        public long totalPssKb = 0;
 
-            } finally {
-                createTrackNotification();
-            }
+        @NonNull
+        public Bundle toBundle() {
+            Bundle result = new Bundle();
+            result.putLong("stateUpdates", stateUpdates);
+            result.putLong("decoderReleases", decoderReleases);
+            result.putLong("decoderRestores", decoderRestores);
+            result.putLong("idleStops", idleStops);
+            result.putLong("offloadSleeps", offloadSleeps);
+            result.putBoolean("offloadSchedulingEnabled", offloadSchedulingEnabled);
+            result.putBoolean("resourcesHeld", resourcesHeld);
+            result.putBoolean("separateProcess", separateProcess);
+            result.putInt("pid", pid);
+            result.putLong("totalPssKb", totalPssKb);
+            return result;
+        }
+
+        /**
+         * Convert a bundle made by {@link #toBundle()} to a map for the Flutter side.
+         */
+        @NonNull
+        public static HashMap<String, Object> toMap(@NonNull Bundle bundle) {
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("stateUpdates", bundle.getLong("stateUpdates"));
+            result.put("decoderReleases", bundle.getLong("decoderReleases"));
+            result.put("decoderRestores", bundle.getLong("decoderRestores"));
+            result.put("idleStops", bundle.getLong("idleStops"));
+            result.put("offloadSleeps", bundle.getLong("offloadSleeps"));
+            result.put("offloadSchedulingEnabled", bundle.getBoolean("offloadSchedulingEnabled"));
+            result.put("resourcesHeld", bundle.getBoolean("resourcesHeld"));
+            result.put("separateProcess", bundle.getBoolean("separateProcess"));
+            result.put("pid", bundle.getInt("pid"));
+            result.put("totalPssKb", bundle.getLong("totalPssKb"));
+            return result;
         }
     }
 
     private int playlistId = -1;
     private boolean shouldSendState = false;
 
+    // Set once the service has left the foreground to stop, so that a state update does not bring the notification
+    // back before onDestroy. Cleared by the next command.
+    private boolean stopping = false;
+
+    // Power-saving mode: audio offload, idle decoder release and idle stop. Offload is fixed when the player is
+    // built, so a change only reaches the renderers with the next player.
+    private boolean powerSaving = false;
+    private boolean playerOffloadEnabled = false;
+    private long idleReleaseMs = DEFAULT_IDLE_RELEASE_MS;
+    private long idleStopMs = DEFAULT_IDLE_STOP_MS;
+
+    @NonNull
+    private final PowerStats powerStats = new PowerStats();
+
+    // Kept across player rebuilds, so that the histograms cover the whole lifetime of the service
+    @NonNull
+    private final PlaybackQos qos = new PlaybackQos();
+
+    // The notification is rebuilt on every command, so decoded artwork is kept around
+    @NonNull
+    private final BitmapCache artworkCache = new BitmapCache("artwork", ARTWORK_CACHE_BYTES);
+
+    @NonNull
+    private final CacheRegistry.TrimmableCache notificationIconCache = new CacheRegistry.TrimmableCache() {
+        @NonNull
+        @Override
+        public String getName() {
+            return "notification_icon";
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return notificationIcon != null ? notificationIcon.getByteCount() : 0;
+        }
+
+        @Override
+        public void shrink() {
+        }
+
+        @Override
+        public void clear() {
+            // Restored by the next createTrackNotification
+            if (notificationBuilder != null) notificationBuilder.setLargeIcon((Bitmap) null);
+            notificationIcon = null;
+        }
+    };
+
+    @Nullable
+    private Bitmap notificationIcon;
+
+    @NonNull
+    private BufferProfile bufferProfile = BufferProfile.GAPLESS_LOCAL;
+
     @NonNull
     private final MediaControlReceiver receiver = new MediaControlReceiver();
 
+    // Commands are handled on the main thread, in the order they were sent
+    @NonNull
+    private final Messenger messenger = new Messenger(new Handler(Looper.getMainLooper(), this::handleMessage));
+
+    // The messengers of the bound clients, which receive state updates
+    @NonNull
+    private final ArrayList<Messenger> clients = new ArrayList<>();
+
+    // Items of the next PLAY or ADD command, sent ahead in several messages
+    @NonNull
+    private final ArrayList<Bundle> stagedItems = new ArrayList<>();
+
+    private boolean destroyed = false;
+
+    @NonNull
+    private final Handler stateHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Runnable sendStateRunner = new Runnable() {
+        @Override
+        public void run() {
+            sendState();
+
+            // Nothing moves while paused, so the loop sleeps until the next command or playback starts again
+            if (!powerSaving || player != null && player.isPlaying()) {
+                stateHandler.postDelayed(this, PLAYER_UPDATE_PERIOD_MS);
+            }
+        }
+    };
+
+    @NonNull
+    private final Runnable idleReleaseRunner = this::releaseIdleResources;
+
+    @NonNull
+    private final Runnable idleStopRunner = this::stopIdle;
+
+    // Snapshot writes must be serialized, so that an older state never overwrites a newer one
+    @NonNull
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+    private int snapshotGeneration = -1;
+
+    // Artwork of the upcoming items is decoded ahead, one at a time, so that transitions render from memory
+    @NonNull
+    private final ExecutorService artworkExecutor = Executors.newSingleThreadExecutor();
+
+    // Reads ahead the next item at every transition, a single thread however short the tracks are
+    @NonNull
+    private final ExecutorService prepareExecutor = Executors.newSingleThreadExecutor();
+
     @Nullable
     private ExoPlayer player;
 
+    @Nullable
+    private PlaybackQueue queue;
+
     @Nullable
     private MediaSession mediaSession;
 
@@ -186,7 +342,13 @@ public class MediaPlayerService extends Service {
     private synchronized MediaSession getMediaSession() {
         if (mediaSession == null) {
             if (player == null) {
-                player = new ExoPlayer.Builder(getApplicationContext())
+                playerOffloadEnabled = powerSaving;
+                DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(getApplicationContext())
+                        .setEnableAudioOffload(playerOffloadEnabled);
+
+                player = new ExoPlayer.Builder(getApplicationContext(), renderersFactory)
+                        .setLoadControl(bufferProfile.createLoadControl())
+                        .setMediaSourceFactory(new DefaultMediaSourceFactory(StreamCache.createDataSourceFactory(this)))
                         .setAudioAttributes(
                                 new AudioAttributes.Builder()
                                         .setContentType(C.AUDIO_CONTENT_TYPE_MUSIC)
@@ -197,6 +359,50 @@ public class MediaPlayerService extends Service {
                         .setPauseAtEndOfMediaItems(false)
                         .setHandleAudioBecomingNoisy(true)
                         .build();
+                player.experimentalSetOffloadSchedulingEnabled(playerOffloadEnabled);
+                player.addAnalyticsListener(qos);
+                powerStats.offloadSchedulingEnabled = playerOffloadEnabled;
+
+                queue = new PlaybackQueue(player);
+                player.addListener(
+                        new Player.Listener() {
+                            @Override
+                            public void onMediaItemTransition(@Nullable MediaItem mediaItem, int reason) {
+                                prepareNextItem();
+                                saveSnapshot();
+
+                                // Commands refresh the notification themselves, automatic transitions do not
+                                if (reason == Player.MEDIA_ITEM_TRANSITION_REASON_AUTO) createTrackNotification();
+                                prefetchArtwork();
+                            }
+
+                            @Override
+                            public void onIsPlayingChanged(boolean isPlaying) {
+                                if (!isPlaying) saveSnapshot();
+                                requestStateUpdate();
+                                scheduleIdle();
+                            }
+
+                            @Override
+                            public void onPlayWhenReadyChanged(boolean playWhenReady, int reason) {
+                                // Controllers such as the notification or a headset may resume a released player
+                                if (playWhenReady) restoreIdleResources();
+                            }
+                        }
+                );
+                player.addAudioOffloadListener(
+                        new ExoPlayer.AudioOffloadListener() {
+                            @Override
+                            public void onExperimentalOffloadSchedulingEnabledChanged(boolean offloadSchedulingEnabled) {
+                                powerStats.offloadSchedulingEnabled = offloadSchedulingEnabled;
+                            }
+
+                            @Override
+                            public void onExperimentalSleepingForOffloadChanged(boolean sleepingForOffload) {
+                                if (sleepingForOffload) powerStats.offloadSleeps++;
+                            }
+                        }
+                );
             }
 
             mediaSession = new MediaSession.Builder(getApplicationContext(), player)
@@ -207,6 +413,239 @@ public class MediaPlayerService extends Service {
         return mediaSession;
     }
 
+    @NonNull
+    private synchronized PlaybackQueue getQueue() {
+        getMediaSession();
+        assert queue != null;
+        return queue;
+    }
+
+    /**
+     * Switch the {@link BufferProfile} of the player. Since the {@link androidx.media3.exoplayer.LoadControl} is
+     * fixed once an {@link ExoPlayer} is built, the player and its session are released and rebuilt lazily when the
+     * profile changes.
+     */
+    private synchronized void setBufferProfile(@NonNull BufferProfile profile) {
+        if (profile == bufferProfile) return;
+        bufferProfile = profile;
+        releasePlayer();
+    }
+
+    private synchronized void releasePlayer() {
+        if (mediaSession != null) mediaSession.release();
+        if (player != null) player.release();
+        mediaSession = null;
+        player = null;
+        queue = null;
+        snapshotGeneration = -1;
+    }
+
+    /**
+     * Rebuild the player lazily if its offload setting no longer matches the power-saving mode.
+     */
+    private synchronized void applyOffload() {
+        if (player != null && playerOffloadEnabled != powerSaving) releasePlayer();
+    }
+
+    /**
+     * Configure the power-saving mode. While enabled, the player uses audio offload where the device supports it,
+     * the state polling loop stops while paused, decoders are released after {@code idleReleaseMs} of pause and
+     * the service stops itself after {@code idleStopMs} without playback.
+     * <p>
+     * Toggling offload requires a new player, so it takes effect from the next {@link #play} request.
+     *
+     * @param enabled       Whether the power-saving mode is enabled.
+     * @param idleReleaseMs The paused duration after which decoders are released, or a non-positive value for the
+     *                      default.
+     * @param idleStopMs    The idle duration after which the service stops, or a non-positive value for the
+     *                      default.
+     */
+    public void setPowerSaving(boolean enabled, long idleReleaseMs, long idleStopMs) {
+        powerSaving = enabled;
+        this.idleReleaseMs = idleReleaseMs > 0 ? idleReleaseMs : DEFAULT_IDLE_RELEASE_MS;
+        this.idleStopMs = idleStopMs > 0 ? idleStopMs : DEFAULT_IDLE_STOP_MS;
+        scheduleIdle();
+        requestStateUpdate();
+    }
+
+    @NonNull
+    public PowerStats getPowerStats() {
+        powerStats.resourcesHeld = player != null && player.getPlaybackState() != Player.STATE_IDLE;
+        powerStats.separateProcess = isSeparateProcess();
+        powerStats.pid = Process.myPid();
+
+        Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        powerStats.totalPssKb = memoryInfo.getTotalPss();
+        return powerStats;
+    }
+
+    /**
+     * @return Whether this service runs in its own process, without any Flutter engine
+     */
+    private boolean isSeparateProcess() {
+        return this instanceof RemoteMediaPlayerService;
+    }
+
+    /**
+     * Run {@link #sendStateRunner} now. It reschedules itself for as long as updates are needed.
+     */
+    private void requestStateUpdate() {
+        stateHandler.removeCallbacks(sendStateRunner);
+        stateHandler.post(sendStateRunner);
+    }
+
+    /**
+     * Arm or cancel the idle timers according to the current playback state.
+     */
+    private void scheduleIdle() {
+        stateHandler.removeCallbacks(idleReleaseRunner);
+        stateHandler.removeCallbacks(idleStopRunner);
+        if (powerSaving && (player == null || !player.isPlaying())) {
+            stateHandler.postDelayed(idleReleaseRunner, idleReleaseMs);
+            stateHandler.postDelayed(idleStopRunner, idleStopMs);
+        }
+    }
+
+    /**
+     * Release the decoders and loaded media of a paused player, keeping its playlist and position.
+     */
+    private void releaseIdleResources() {
+        // A player that is only buffering still wants to play
+        if (player == null || player.getPlayWhenReady() || player.getPlaybackState() == Player.STATE_IDLE) return;
+
+        saveSnapshot();
+        player.stop();
+        powerStats.decoderReleases++;
+    }
+
+    /**
+     * Prepare a player released by {@link #releaseIdleResources()} again.
+     */
+    private void restoreIdleResources() {
+        if (player == null || player.getPlaybackState() != Player.STATE_IDLE || player.getMediaItemCount() == 0) return;
+
+        player.prepare();
+        powerStats.decoderRestores++;
+    }
+
+    private void stopIdle() {
+        if (player != null && player.getPlayWhenReady()) return;
+
+        Logger.log(Utility.LogLevel.INFO, "Stopping after %d ms without playback", idleStopMs);
+        powerStats.idleStops++;
+        stopWithNotification();
+    }
+
+    /**
+     * Remove the notification and stop the service. Stopping alone would leave the service in the foreground, with
+     * its notification, until it is destroyed.
+     */
+    private void stopWithNotification() {
+        stopping = true;
+        ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    /**
+     * Persist the current playback state with {@link PlaybackSnapshot}. The queue itself is only written again
+     * when it has changed since the last snapshot.
+     */
+    private void saveSnapshot() {
+        if (playlistId == -1 || player == null || queue == null || queue.size() == 0) return;
+
+        PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        snapshot.playlistId = playlistId;
+        snapshot.index = queue.getCurrentIndex();
+        snapshot.positionMs = player.getCurrentPosition();
+        snapshot.repeatMode = player.getRepeatMode();
+        snapshot.shuffled = queue.isShuffled();
+        snapshot.windowRadius = queue.getWindowRadius();
+        snapshot.bufferProfile = bufferProfile.name();
+        snapshot.powerSaving = powerSaving;
+        snapshot.idleReleaseMs = idleReleaseMs;
+        snapshot.idleStopMs = idleStopMs;
+
+        boolean queueChanged = queue.getGeneration() != snapshotGeneration;
+        snapshotGeneration = queue.getGeneration();
+        ArrayList<Bundle> items = queueChanged ? queue.getItems() : null;
+        byte[] shuffleOrder = queueChanged ? queue.getShuffleOrder() : null;
+
+        File directory = getFilesDir();
+        snapshotExecutor.execute(
+                () -> {
+                    try {
+                        if (items != null) {
+                            PlaybackSnapshot.writeQueue(directory, items, shuffleOrder);
+                        }
+
+                        snapshot.writeState(directory);
+                    } catch (IOException error) {
+                        Logger.log(Utility.LogLevel.ERROR, "Unable to save playback snapshot: %s", error);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Rebuild the player state from the last {@link PlaybackSnapshot}, without starting playback.
+     *
+     * @return Whether a snapshot was found and restored
+     */
+    private boolean restoreSnapshot() {
+        PlaybackSnapshot snapshot = PlaybackSnapshot.read(getFilesDir());
+        if (snapshot == null) return false;
+
+        setPowerSaving(snapshot.powerSaving, snapshot.idleReleaseMs, snapshot.idleStopMs);
+        setBufferProfile(BufferProfile.fromName(snapshot.bufferProfile));
+        applyOffload();
+        Player player = getMediaSession().getPlayer();
+        PlaybackQueue queue = getQueue();
+
+        playlistId = snapshot.playlistId;
+        player.setRepeatMode(snapshot.repeatMode);
+        queue.setWindowRadius(snapshot.windowRadius);
+        queue.restore(snapshot.items, snapshot.index, snapshot.positionMs, snapshot.shuffled, snapshot.shuffleOrder);
+        player.prepare();
+
+        // The queue on disk is already up to date
+        snapshotGeneration = queue.getGeneration();
+        scheduleIdle();
+        return true;
+    }
+
+    /**
+     * Read the beginning of the next local item in the queue on a background thread, so that its data is already
+     * in the page cache when the player opens it at the transition.
+     */
+    private void prepareNextItem() {
+        if (!bufferProfile.prepareNextItem) return;
+
+        Player player = getMediaSession().getPlayer();
+        int next = player.getNextMediaItemIndex();
+        if (next == C.INDEX_UNSET) return;
+
+        MediaItem.LocalConfiguration configuration = player.getMediaItemAt(next).localConfiguration;
+        if (configuration == null || !"file".equals(configuration.uri.getScheme())) return;
+
+        String path = configuration.uri.getPath();
+        if (path == null) return;
+
+        prepareExecutor.execute(
+                () -> {
+                    try (FileInputStream stream = new FileInputStream(path)) {
+                        byte[] buffer = new byte[8192];
+                        int total = 0, chunk;
+                        while (total < PREPARE_NEXT_ITEM_BYTES && (chunk = stream.read(buffer)) != -1) {
+                            total += chunk;
+                        }
+                    } catch (IOException error) {
+                        Logger.log(Utility.LogLevel.DEBUG, "Unable to read ahead %s: %s", path, error);
+                    }
+                }
+        );
+    }
+
     @Nullable
     private NotificationCompat.Builder notificationBuilder;
 
@@ -225,23 +664,207 @@ public class MediaPlayerService extends Service {
 
     @NonNull
     private PendingIntent getPlayingScreenPendingIntent() {
-        return PendingIntent.getActivity(
-                getApplicationContext(), 1,
-                new FlutterActivity.NewEngineIntentBuilder(MainActivity.class)
-                        .initialRoute("/playing")
-                        .build(getApplicationContext()),
-                PendingIntent.FLAG_IMMUTABLE
-        );
+        // The engine may not exist, e.g. after a restart or under memory pressure, the activity creates it on demand
+        Intent intent = new Intent(getApplicationContext(), MainActivity.class).setAction(MainActivity.SHOW_PLAYING_SCREEN_ACTION);
+
+        return PendingIntent.getActivity(getApplicationContext(), 1, intent, PendingIntent.FLAG_IMMUTABLE);
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return messenger.getBinder();
+    }
+
+    @NonNull
+    private ArrayList<Bundle> takeItems(@NonNull Bundle data) {
+        ArrayList<Bundle> items = new ArrayList<>(stagedItems);
+        stagedItems.clear();
+
+        ArrayList<Bundle> last = BundleCompat.getParcelableArrayList(data, PlaybackProtocol.ITEMS_KEY, Bundle.class);
+        if (last != null) items.addAll(last);
+        return items;
+    }
+
+    /**
+     * Handle a {@link PlaybackProtocol} message from a client, recording its latency in {@link PlaybackQos#commands}.
+     * <p>
+     * Commands run on the main looper, so a command exceeding {@link PlaybackProtocol#SLOW_COMMAND_MS} delays every
+     * following command and state update. Those are logged together with the queue size, which is what they scale
+     * with.
+     */
+    private boolean handleMessage(@NonNull Message message) {
+        // A client in another process may still hold the messenger of a destroyed service
+        if (destroyed) return true;
+
+        if (BuildConfig.DEBUG) checkMessageSize(message);
+
+        long start = SystemClock.elapsedRealtime();
+        boolean handled = dispatchMessage(message);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        qos.commands.record(elapsed);
+        if (elapsed > PlaybackProtocol.SLOW_COMMAND_MS) {
+            Logger.log(
+                    Utility.LogLevel.INFO,
+                    "Command %s took %s ms with %s queued items",
+                    message.what,
+                    elapsed,
+                    queue != null ? queue.size() : 0
+            );
+        }
+
+        return handled;
+    }
+
+    /**
+     * Warn about a message approaching the binder transaction limit, which would fail once the service runs in its
+     * own process. Only checked in debug builds, since measuring a message means parceling it once more.
+     */
+    private void checkMessageSize(@NonNull Message message) {
+        int size = PlaybackProtocol.getParcelSize(message.getData());
+        if (size > PlaybackProtocol.MESSAGE_SIZE_BUDGET_BYTES) {
+            Logger.log(Utility.LogLevel.ERROR, "Command %s carries %s bytes", message.what, size);
+        }
+    }
+
+    private boolean dispatchMessage(@NonNull Message message) {
+        Bundle data = message.getData();
+        data.setClassLoader(getClassLoader());
+        switch (message.what) {
+            case PlaybackProtocol.REGISTER_CLIENT:
+                if (message.replyTo != null && !clients.contains(message.replyTo)) clients.add(message.replyTo);
+                requestStateUpdate();
+                break;
+
+            case PlaybackProtocol.UNREGISTER_CLIENT:
+                clients.remove(message.replyTo);
+                break;
+
+            case PlaybackProtocol.STAGE_ITEMS:
+                ArrayList<Bundle> items = BundleCompat.getParcelableArrayList(data, PlaybackProtocol.ITEMS_KEY, Bundle.class);
+                if (items != null) stagedItems.addAll(items);
+                break;
+
+            case PlaybackProtocol.PLAY:
+                play(
+                        takeItems(data),
+                        data.getInt(PlaybackProtocol.PLAYLIST_ID_KEY, -1),
+                        data.getInt(PlaybackProtocol.INDEX_KEY, 0),
+                        data.getInt(PlaybackProtocol.WINDOW_RADIUS_KEY, 0),
+                        BufferProfile.fromName(data.getString(PlaybackProtocol.BUFFER_PROFILE_KEY))
+                );
+                break;
+
+            case PlaybackProtocol.ADD:
+                add(takeItems(data));
+                break;
+
+            case PlaybackProtocol.REMOVE:
+                remove(data.getInt(PlaybackProtocol.INDEX_KEY, -1));
+                break;
+
+            case PlaybackProtocol.PAUSE:
+                pause();
+                break;
+
+            case PlaybackProtocol.RESUME:
+                resume();
+                break;
+
+            case PlaybackProtocol.SEEK:
+                seek(data.getLong(PlaybackProtocol.POSITION_MS_KEY, 0));
+                break;
+
+            case PlaybackProtocol.NEXT:
+                next();
+                break;
+
+            case PlaybackProtocol.PREVIOUS:
+                previous();
+                break;
+
+            case PlaybackProtocol.STOP:
+                stop();
+                break;
+
+            case PlaybackProtocol.TOGGLE_REPEAT:
+                toggleRepeat();
+                break;
+
+            case PlaybackProtocol.TOGGLE_SHUFFLE:
+                toggleShuffle();
+                break;
+
+            case PlaybackProtocol.SET_POWER_SAVING:
+                setPowerSaving(
+                        data.getBoolean(PlaybackProtocol.ENABLED_KEY),
+                        data.getLong(PlaybackProtocol.IDLE_RELEASE_MS_KEY),
+                        data.getLong(PlaybackProtocol.IDLE_STOP_MS_KEY)
+                );
+                break;
+
+            case PlaybackProtocol.GET_POWER_STATS:
+                if (message.replyTo != null) {
+                    Message reply = PlaybackProtocol.obtain(PlaybackProtocol.POWER_STATS, getPowerStats().toBundle());
+                    reply.arg1 = message.arg1;
+                    send(message.replyTo, reply);
+                }
+                break;
+
+            case PlaybackProtocol.GET_QOS:
+                if (message.replyTo != null) {
+                    Bundle stats = qos.toBundle();
+                    stats.putBundle("artwork", artworkCache.getStats());
+
+                    Message reply = PlaybackProtocol.obtain(PlaybackProtocol.QOS, stats);
+                    reply.arg1 = message.arg1;
+                    send(message.replyTo, reply);
+                }
+                break;
+
+            case PlaybackProtocol.GET_CACHE_SIZES:
+                if (message.replyTo != null) {
+                    Bundle sizes = new Bundle();
+                    for (Map.Entry<String, Long> entry : CacheRegistry.getSizes().entrySet()) {
+                        sizes.putLong(entry.getKey(), entry.getValue());
+                    }
+
+                    Message reply = PlaybackProtocol.obtain(PlaybackProtocol.CACHE_SIZES, sizes);
+                    reply.arg1 = message.arg1;
+                    send(message.replyTo, reply);
+                }
+                break;
+
+            default:
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Send a message to a client, forgetting the client if its process has died.
+     */
+    private void send(@NonNull Messenger client, @NonNull Message message) {
+        try {
+            client.send(message);
+        } catch (RemoteException error) {
+            clients.remove(client);
+        }
+    }
+
+    private void sendToClients(int what, @Nullable Bundle data) {
+        for (Messenger client : new ArrayList<>(clients)) {
+            send(client, PlaybackProtocol.obtain(what, data));
+        }
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public void onCreate() {
+        super.onCreate();
+
+        // Notification actions are still delivered as broadcasts, register the receiver only once
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(MediaControlReceiver.ADD_ACTION);
         intentFilter.addAction(MediaControlReceiver.NEXT_ACTION);
@@ -255,48 +878,208 @@ public class MediaPlayerService extends Service {
         intentFilter.addAction(MediaControlReceiver.SWITCH_REPEAT_ACTION);
         intentFilter.addAction(MediaControlReceiver.SWITCH_SHUFFLE_ACTION);
         registerReceiver(receiver, intentFilter);
-        receiver.onReceive(getApplicationContext(), intent);
-
-        Handler handler = new Handler(Looper.myLooper());
-        Runnable sendStateRunner = new Runnable() {
-            @Override
-            public void run() {
-                sendState();
-                handler.postDelayed(this, PLAYER_UPDATE_PERIOD_MS);
+
+        CacheRegistry.register(artworkCache, CacheRegistry.Priority.NORMAL);
+        CacheRegistry.register(notificationIconCache, CacheRegistry.Priority.HIGH);
+
+        stateHandler.post(sendStateRunner);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        stopping = false;
+
+        // A null intent means that the service was restarted after its process had been killed
+        if (intent == null || intent.getAction() == null) {
+            if (restoreSnapshot()) {
+                createTrackNotification();
+            } else {
+                stopSelf();
             }
-        };
-        handler.postDelayed(sendStateRunner, 0);
+        } else {
+            receiver.onReceive(getApplicationContext(), intent);
+        }
 
         return START_STICKY;
     }
 
+    /**
+     * Replace the queue and start playing.
+     *
+     * @param items         The tracks, as {@link Bundle}s created by {@link MediaItem#toBundle()}.
+     * @param playlistId    The ID of the playlist being played.
+     * @param index         The index of the track to start from.
+     * @param windowRadius  The window radius of the {@link PlaybackQueue}.
+     * @param bufferProfile The {@link BufferProfile} of the player.
+     */
+    public void play(@NonNull List<Bundle> items, int playlistId, int index, int windowRadius, @NonNull BufferProfile bufferProfile) {
+        this.playlistId = playlistId;
+        setBufferProfile(bufferProfile);
+        applyOffload();
+
+        qos.onPlayRequested();
+        Player player = getMediaSession().getPlayer();
+        PlaybackQueue queue = getQueue();
+        queue.setWindowRadius(windowRadius);
+        queue.load(items, index);
+        player.prepare();
+        player.play();
+
+        prepareNextItem();
+        onCommand();
+    }
+
+    public void add(@NonNull List<Bundle> items) {
+        getQueue().add(items);
+        onCommand();
+    }
+
+    public void remove(int index) {
+        getQueue().remove(index);
+        onCommand();
+    }
+
+    public void pause() {
+        getMediaSession().getPlayer().pause();
+        onCommand();
+    }
+
+    public void resume() {
+        Player player = getMediaSession().getPlayer();
+        if (player.getMediaItemCount() == 0 && restoreSnapshot()) {
+            player = getMediaSession().getPlayer();
+        }
+
+        player.play();
+        onCommand();
+    }
+
+    public void seek(long positionMs) {
+        getMediaSession().getPlayer().seekTo(positionMs);
+        onCommand();
+    }
+
+    public void next() {
+        getMediaSession().getPlayer().seekToNextMediaItem();
+        onCommand();
+    }
+
+    public void previous() {
+        getMediaSession().getPlayer().seekToPreviousMediaItem();
+        onCommand();
+    }
+
+    public void stop() {
+        stopWithNotification();
+    }
+
+    public void toggleRepeat() {
+        getQueue().toggleRepeat();
+        onCommand();
+    }
+
+    public void toggleShuffle() {
+        getQueue().toggleShuffle();
+        onCommand();
+    }
+
+    private void onCommand() {
+        stopping = false;
+        createTrackNotification();
+        saveSnapshot();
+        requestStateUpdate();
+        prefetchArtwork();
+    }
+
+    /**
+     * Decode the artwork and the notification color of the next {@link #ARTWORK_LOOKAHEAD} items in the
+     * background, following the shuffle order and the repeat mode like the up next list.
+     */
+    private void prefetchArtwork() {
+        if (queue == null) return;
+
+        ArrayList<String> paths = new ArrayList<>();
+        for (int index : queue.getUpNext(ARTWORK_LOOKAHEAD)) {
+            String path = queue.getArtworkPath(index);
+            if (path != null) paths.add(path);
+        }
+
+        if (paths.isEmpty()) return;
+        artworkExecutor.execute(
+                () -> {
+                    for (String path : paths) {
+                        artworkCache.prefetch(path);
+                    }
+                }
+        );
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(receiver);
+        stateHandler.removeCallbacks(sendStateRunner);
+        stateHandler.removeCallbacks(idleReleaseRunner);
+        stateHandler.removeCallbacks(idleStopRunner);
+        CacheRegistry.unregister(artworkCache);
+        CacheRegistry.unregister(notificationIconCache);
+        saveSnapshot();
+        snapshotExecutor.shutdown();
+        artworkExecutor.shutdownNow();
+        prepareExecutor.shutdownNow();
+
         playlistId = -1;
-        sendState();
+        sendStoppedState();
+        sendToClients(PlaybackProtocol.DESTROYED, null);
+        clients.clear();
 
         // Only release resources at the end
         if (player != null) player.release();
         if (mediaSession != null) mediaSession.release();
+        destroyed = true;
+    }
+
+    /**
+     * Tell the clients that nothing is playing anymore. Unlike {@link #sendState()}, this never touches
+     * {@link #getMediaSession()}, which would build a new player for a service being destroyed.
+     */
+    private void sendStoppedState() {
+        Bundle state = new Bundle();
+        state.putInt(PlaybackProtocol.INDEX_KEY, -1);
+        state.putInt(PlaybackProtocol.PLAYLIST_ID_KEY, -1);
+        state.putLong(PlaybackProtocol.CURRENT_POSITION_KEY, 0);
+        state.putLong(PlaybackProtocol.DURATION_KEY, 0);
+        state.putBoolean(PlaybackProtocol.IS_PLAYING_KEY, false);
+        state.putInt(PlaybackProtocol.REPEAT_KEY, player != null ? player.getRepeatMode() : Player.REPEAT_MODE_OFF);
+        state.putBoolean(PlaybackProtocol.SHUFFLE_KEY, queue != null && queue.isShuffled());
+        state.putIntegerArrayList(PlaybackProtocol.UP_NEXT_KEY, new ArrayList<>());
+        sendToClients(PlaybackProtocol.STATE, state);
+    }
+
+    /**
+     * Build a {@link PlaybackProtocol#STATE} update, sent every {@link #PLAYER_UPDATE_PERIOD_MS} while playing.
+     */
+    @VisibleForTesting
+    @NonNull
+    static Bundle createState(@NonNull Player player, @NonNull PlaybackQueue queue, int playlistId) {
+        Bundle state = new Bundle();
+        state.putInt(PlaybackProtocol.INDEX_KEY, queue.getCurrentIndex());
+        state.putInt(PlaybackProtocol.PLAYLIST_ID_KEY, playlistId);
+        state.putLong(PlaybackProtocol.CURRENT_POSITION_KEY, player.getCurrentPosition());
+        state.putLong(PlaybackProtocol.DURATION_KEY, player.getDuration());
+        state.putBoolean(PlaybackProtocol.IS_PLAYING_KEY, player.isPlaying());
+        state.putInt(PlaybackProtocol.REPEAT_KEY, player.getRepeatMode());
+        state.putBoolean(PlaybackProtocol.SHUFFLE_KEY, queue.isShuffled());
+        state.putIntegerArrayList(PlaybackProtocol.UP_NEXT_KEY, queue.getUpNext(UP_NEXT_COUNT));
+        return state;
     }
 
     private synchronized void sendState() {
-        Context context = getApplicationContext();
         Player player = getMediaSession().getPlayer();
+        powerStats.stateUpdates++;
         if (playlistId != -1) shouldSendState = true;
         if (shouldSendState) {
-            Intent intent = new Intent(PlayerStateReceiver.UPDATE_STATE_ACTION);
-            intent.putExtra(PlayerStateReceiver.INDEX_KEY, player.getCurrentMediaItemIndex());
-            intent.putExtra(PlayerStateReceiver.PLAYLIST_ID_KEY, playlistId);
-            intent.putExtra(PlayerStateReceiver.CURRENT_POSITION_KEY, player.getCurrentPosition());
-            intent.putExtra(PlayerStateReceiver.DURATION_KEY, player.getDuration());
-            intent.putExtra(PlayerStateReceiver.IS_PLAYING_KEY, player.isPlaying());
-            intent.putExtra(PlayerStateReceiver.REPEAT_KEY, player.getRepeatMode());
-            intent.putExtra(PlayerStateReceiver.SHUFFLE_KEY, player.getShuffleModeEnabled());
-
-            context.sendBroadcast(intent);
+            sendToClients(PlaybackProtocol.STATE, createState(player, getQueue(), playlistId));
             updateTrackNotification();
 
             if (playlistId == -1) shouldSendState = false;
@@ -304,12 +1087,13 @@ public class MediaPlayerService extends Service {
     }
 
     @Nullable
-    private Bitmap getThumbnail() {
-        Player player = getMediaSession().getPlayer();
+    private Bitmap getThumbnail(@Nullable String path) {
         try {
-            assert player.getCurrentMediaItem() != null;
-            assert player.getCurrentMediaItem().mediaMetadata.artworkUri != null;
-            return BitmapFactory.decodeFile(player.getCurrentMediaItem().mediaMetadata.artworkUri.getPath());
+            assert path != null;
+
+            Bitmap bitmap = artworkCache.decodeFile(path);
+            if (bitmap != null) return bitmap;
+            throw new IllegalStateException(Utility.format("Unable to decode %s", path));
         } catch (Throwable e) {
             try {
                 return Utility.getApplicationIcon(getApplicationContext());
@@ -322,16 +1106,26 @@ public class MediaPlayerService extends Service {
     }
 
     private synchronized void createTrackNotification() {
+        if (stopping) return;
+
         Player player = getMediaSession().getPlayer();
         MediaSession mediaSession = getMediaSession();
 
         MediaItem current = player.getCurrentMediaItem();
         if (current == null) return;
 
+        Uri artworkUri = current.mediaMetadata.artworkUri;
+        String artworkPath = artworkUri != null ? artworkUri.getPath() : null;
+
         NotificationCompat.Builder builder = getNotificationBuilder();
-        Bitmap thumbnail = getThumbnail();
+        Bitmap thumbnail = getThumbnail(artworkPath);
+        notificationIcon = thumbnail;
         if (thumbnail != null) {
-            builder.setColor(Utility.getDominantColor(thumbnail))
+            builder.setColor(
+                            artworkPath != null
+                                    ? artworkCache.getDominantColor(artworkPath, thumbnail)
+                                    : Utility.getDominantColor(thumbnail)
+                    )
                     .setLargeIcon(thumbnail);
         }
 
@@ -353,6 +1147,8 @@ public class MediaPlayerService extends Service {
     }
 
     private synchronized void updateTrackNotification() {
+        if (stopping) return;
+
         Player player = getMediaSession().getPlayer();
 
         NotificationCompat.Builder builder = getNotificationBuilder();
@@ -0,0 +1,216 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static android.media.MediaMetadataRetriever.*;
+
+/**
+ * Metadata and artwork extraction of local audio files, shared by the metadata channel and the post-download
+ * ingest stage.
+ * <p>
+ * Artworks are written to {@code thumbnail_*.png} files in the cache directory, one per audio file, which are reused
+ * for as long as the audio file is unchanged. They are removed once per process by
+ * {@link #removeStaleThumbnails(Context)} when no playback service is using them.
+ */
+public class MetadataExtractor {
+    // Must match the audio MIME types of isAudioFile in the Flutter side
+    private static final HashSet<String> AUDIO_MIME_TYPES = new HashSet<>(
+            Arrays.asList("audio/x-wav", "audio/x-aiff", "audio/mpeg", "audio/mp4", "application/ogg")
+    );
+
+    private static boolean cleanedUp = false;
+
+    /**
+     * @return Whether {@code path} points to an audio file, with the same rules as {@code isAudioFile} in the
+     * Flutter side
+     */
+    public static boolean isAudioFile(@NonNull String path) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot > 0 ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1)) : null;
+        return mimeType != null && AUDIO_MIME_TYPES.contains(mimeType);
+    }
+
+    /**
+     * @return The metadata of the current data source of a retriever
+     */
+    @NonNull
+    public static HashMap<String, String> extractMetadata(@NonNull MediaMetadataRetriever retriever) {
+        HashMap<String, String> metadata = new HashMap<>();
+        metadata.put("album", retriever.extractMetadata(METADATA_KEY_ALBUM));
+        metadata.put("album_artist", retriever.extractMetadata(METADATA_KEY_ALBUMARTIST));
+        metadata.put("artist", retriever.extractMetadata(METADATA_KEY_ARTIST));
+        metadata.put("author", retriever.extractMetadata(METADATA_KEY_AUTHOR));
+        metadata.put("compilation", retriever.extractMetadata(METADATA_KEY_COMPILATION));
+        metadata.put("composer", retriever.extractMetadata(METADATA_KEY_COMPOSER));
+        metadata.put("date", retriever.extractMetadata(METADATA_KEY_DATE));
+        metadata.put("duration", retriever.extractMetadata(METADATA_KEY_DURATION));
+        metadata.put("genre", retriever.extractMetadata(METADATA_KEY_GENRE));
+        metadata.put("mimetype", retriever.extractMetadata(METADATA_KEY_MIMETYPE));
+        metadata.put("title", retriever.extractMetadata(METADATA_KEY_TITLE));
+        metadata.put("year", retriever.extractMetadata(METADATA_KEY_YEAR));
+        return metadata;
+    }
+
+    /**
+     * @return The thumbnail file of an audio file, named after its path, modification time and size so that a
+     * changed file gets a new thumbnail
+     */
+    @NonNull
+    public static File getThumbnailFile(@NonNull File cacheDir, @NonNull String path) {
+        File file = new File(path);
+        String key = path + ":" + file.lastModified() + ":" + file.length();
+
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException error) {
+            // Every platform implementation has SHA-1
+            throw new AssertionError(error);
+        }
+
+        StringBuilder name = new StringBuilder("thumbnail_");
+        for (byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return new File(cacheDir, name.append(".png").toString());
+    }
+
+    /**
+     * Write a thumbnail through a temporary file, so that a thumbnail being written by another thread is never
+     * reused half-written.
+     */
+    private static void writeThumbnailFile(@NonNull File outputFile, @NonNull byte[] artwork) throws IOException {
+        File temporaryFile = File.createTempFile("thumbnail_", ".tmp", outputFile.getParentFile());
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temporaryFile)) {
+                stream.write(artwork);
+            }
+
+            if (!temporaryFile.renameTo(outputFile)) throw new IOException("Unable to write " + outputFile);
+        } finally {
+            if (temporaryFile.exists() && !temporaryFile.delete()) temporaryFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Write the embedded picture of the current data source of a retriever to the thumbnail file of {@code path},
+     * unless it is already there.
+     *
+     * @param path The path to the current data source of {@code retriever}.
+     * @return The path to the thumbnail file, or {@code null} if there is no embedded picture
+     */
+    @Nullable
+    public static String writeThumbnail(@NonNull File cacheDir, @NonNull String path, @NonNull MediaMetadataRetriever retriever) throws IOException {
+        File outputFile = getThumbnailFile(cacheDir, path);
+        if (outputFile.isFile()) return outputFile.getAbsolutePath();
+
+        byte[] artwork = retriever.getEmbeddedPicture(); // May spit out errors when returns null, ignore it.
+        if (artwork == null) return null;
+
+        writeThumbnailFile(outputFile, artwork);
+        return outputFile.getAbsolutePath();
+    }
+
+    /**
+     * Write a decoded artwork to the thumbnail file of {@code path}, unless it is already there.
+     *
+     * @return The path to the thumbnail file
+     */
+    @NonNull
+    public static String writeThumbnail(@NonNull File cacheDir, @NonNull String path, @NonNull Bitmap artwork) throws IOException {
+        File outputFile = getThumbnailFile(cacheDir, path);
+        if (outputFile.isFile()) return outputFile.getAbsolutePath();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        artwork.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        writeThumbnailFile(outputFile, stream.toByteArray());
+        return outputFile.getAbsolutePath();
+    }
+
+    /**
+     * Check whether a file is an audio file and extract its metadata and artwork, with the same rules as the
+     * Flutter side ({@code isAudioFile}, {@code extractMetadata} and {@code getEmbeddedPicture}).
+     *
+     * @param path             The path to the file.
+     * @param cacheDir         The directory to write the artwork to, an artwork already written for the unchanged
+     *                         file is reused.
+     * @param fallbackArtwork  The artwork to write if the file has no embedded picture, if any.
+     * @return A map with the {@code path}, {@code isAudio}, {@code metadata} and {@code thumbnailPath} of the file.
+     * {@code metadata} is missing if the file is not an audio file or cannot be read.
+     */
+    @NonNull
+    public static HashMap<String, Object> extract(@NonNull String path, @NonNull File cacheDir, @Nullable Bitmap fallbackArtwork) {
+        HashMap<String, Object> item = new HashMap<>();
+        item.put("path", path);
+
+        boolean isAudio = isAudioFile(path);
+        item.put("isAudio", isAudio);
+        if (!isAudio) return item;
+
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            item.put("metadata", extractMetadata(retriever));
+
+            String thumbnailPath = writeThumbnail(cacheDir, path, retriever);
+            if (thumbnailPath == null && fallbackArtwork != null) thumbnailPath = writeThumbnail(cacheDir, path, fallbackArtwork);
+            item.put("thumbnailPath", thumbnailPath);
+        } catch (Exception error) {
+            Logger.log(Utility.LogLevel.ERROR, "Unable to read %s: %s", path, error);
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+
+        return item;
+    }
+
+    /**
+     * Remove the thumbnails left over by previous sessions, once per process. Must be called before writing the
+     * first thumbnail, so that it never races with a thumbnail being written, and off the main thread.
+     */
+    public static synchronized void removeStaleThumbnails(@NonNull Context context) {
+        if (cleanedUp) return;
+        cleanedUp = true;
+
+        if (Utility.anyServiceIsRunning(context, MediaPlayerService.class, RemoteMediaPlayerService.class)) return;
+
+        File[] files = context.getCacheDir().listFiles();
+        for (File file : files != null ? files : new File[]{}) {
+            if (file.getName().startsWith("thumbnail_")) removeFileEntity(file);
+        }
+    }
+
+    private static void removeFileEntity(@NonNull File entity) {
+        if (entity.isDirectory()) {
+            File[] content = entity.listFiles();
+            for (File f : content != null ? content : new File[]{}) {
+                removeFileEntity(f);
+            }
+        }
+
+        boolean result = entity.delete();
+        assert result;
+    }
+}
@@ -0,0 +1,236 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The messages exchanged between {@link MediaPlayerService} and its clients through {@link Messenger}s.
+ * <p>
+ * Messengers work the same whether the service runs in the process of its clients or in its own process
+ * ({@link RemoteMediaPlayerService}). Commands are sent to the messenger returned when binding to the service,
+ * with their arguments in {@link Message#getData()}. State updates are sent back to every client messenger
+ * registered with {@link #REGISTER_CLIENT}.
+ */
+public class PlaybackProtocol {
+    // Client -> service, with the client messenger in Message.replyTo
+    public static final int REGISTER_CLIENT = 1;
+    public static final int UNREGISTER_CLIENT = 2;
+
+    // Client -> service commands
+    public static final int STAGE_ITEMS = 10;
+    public static final int PLAY = 11;
+    public static final int ADD = 12;
+    public static final int REMOVE = 13;
+    public static final int PAUSE = 14;
+    public static final int RESUME = 15;
+    public static final int SEEK = 16;
+    public static final int NEXT = 17;
+    public static final int PREVIOUS = 18;
+    public static final int STOP = 19;
+    public static final int TOGGLE_REPEAT = 20;
+    public static final int TOGGLE_SHUFFLE = 21;
+    public static final int SET_POWER_SAVING = 22;
+
+    /**
+     * Request the {@link MediaPlayerService.PowerStats}, with a request ID in {@link Message#arg1}. Replied with
+     * {@link #POWER_STATS} and the same request ID.
+     */
+    public static final int GET_POWER_STATS = 23;
+
+    /**
+     * Request the {@link PlaybackQos} histograms, replied with {@link #QOS} like {@link #GET_POWER_STATS}.
+     */
+    public static final int GET_QOS = 24;
+
+    /**
+     * Request the sizes of the in-memory caches of the service process ({@link CacheRegistry#getSizes()}), replied
+     * with {@link #CACHE_SIZES} like {@link #GET_POWER_STATS}.
+     */
+    public static final int GET_CACHE_SIZES = 25;
+
+    // Service -> client
+    public static final int STATE = 100;
+    public static final int POWER_STATS = 101;
+    public static final int DESTROYED = 102;
+    public static final int QOS = 103;
+    public static final int CACHE_SIZES = 104;
+
+    // Command arguments
+    public static final String ITEMS_KEY = "ITEMS";
+    public static final String WINDOW_RADIUS_KEY = "WINDOW_RADIUS";
+    public static final String BUFFER_PROFILE_KEY = "BUFFER_PROFILE";
+    public static final String POSITION_MS_KEY = "POSITION_MS";
+    public static final String ENABLED_KEY = "ENABLED";
+    public static final String IDLE_RELEASE_MS_KEY = "IDLE_RELEASE_MS";
+    public static final String IDLE_STOP_MS_KEY = "IDLE_STOP_MS";
+
+    // State, also the keys of the map sent to the Flutter side. INDEX and PLAYLIST_ID are command arguments too.
+    public static final String INDEX_KEY = "INDEX";
+    public static final String CURRENT_POSITION_KEY = "CURRENT_POSITION";
+    public static final String DURATION_KEY = "DURATION";
+    public static final String IS_PLAYING_KEY = "IS_PLAYING";
+    public static final String PLAYLIST_ID_KEY = "PLAYLIST_ID";
+    public static final String REPEAT_KEY = "REPEAT";
+    public static final String SHUFFLE_KEY = "SHUFFLE";
+    public static final String UP_NEXT_KEY = "UP_NEXT";
+
+    /**
+     * The number of media items sent per message, so that a large playlist never exceeds the binder transaction
+     * limit. The rest are sent ahead with {@link #STAGE_ITEMS}.
+     */
+    public static final int MAX_ITEMS_PER_MESSAGE = 256;
+
+    /**
+     * The time budget of a single command on the main looper of the service: one frame.
+     */
+    public static final long SLOW_COMMAND_MS = 16;
+
+    /**
+     * The size budget of a single message, a quarter of the binder transaction buffer, which is shared by every
+     * transaction in flight of the process.
+     */
+    public static final int MESSAGE_SIZE_BUDGET_BYTES = 256 << 10;
+
+    private static final String PREFERENCES_NAME = "com.haruka.mp3_player.playback";
+    private static final String SEPARATE_PROCESS_PREFERENCE = "SEPARATE_PROCESS";
+
+    @Nullable
+    private static Boolean separateProcess;
+
+    /**
+     * @return Whether playback runs in its own process ({@link RemoteMediaPlayerService}). The preference is read
+     * once per process, so that all components of a process agree on it until it is changed from that process.
+     */
+    public static synchronized boolean isSeparateProcess(@NonNull Context context) {
+        if (separateProcess == null) {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            separateProcess = preferences.getBoolean(SEPARATE_PROCESS_PREFERENCE, false);
+        }
+
+        return separateProcess;
+    }
+
+    /**
+     * Choose whether playback runs in its own process, from the next start of the playback service. Must not be
+     * called while a playback service is running, or both would use the stream cache at once.
+     */
+    public static synchronized void setSeparateProcess(@NonNull Context context, boolean enabled) {
+        separateProcess = enabled;
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(SEPARATE_PROCESS_PREFERENCE, enabled)
+                .apply();
+    }
+
+    /**
+     * @return The service class hosting playback, according to {@link #isSeparateProcess(Context)}
+     */
+    @NonNull
+    public static Class<? extends MediaPlayerService> getServiceClass(@NonNull Context context) {
+        return isSeparateProcess(context) ? RemoteMediaPlayerService.class : MediaPlayerService.class;
+    }
+
+    /**
+     * Send a command carrying media items, split into as many {@link #STAGE_ITEMS} messages as necessary.
+     *
+     * @param messenger The service messenger.
+     * @param what      The command.
+     * @param arguments The other arguments of the command.
+     * @param items     The media items, as {@link Bundle}s created by {@link androidx.media3.common.MediaItem#toBundle()}.
+     */
+    public static void sendWithItems(
+            @NonNull Messenger messenger,
+            int what,
+            @NonNull Bundle arguments,
+            @NonNull List<Bundle> items
+    ) throws RemoteException {
+        int start = 0;
+        while (items.size() - start > MAX_ITEMS_PER_MESSAGE) {
+            Bundle data = new Bundle();
+            data.putParcelableArrayList(ITEMS_KEY, new ArrayList<>(items.subList(start, start + MAX_ITEMS_PER_MESSAGE)));
+            messenger.send(obtain(STAGE_ITEMS, data));
+            start += MAX_ITEMS_PER_MESSAGE;
+        }
+
+        arguments.putParcelableArrayList(ITEMS_KEY, new ArrayList<>(items.subList(start, items.size())));
+        messenger.send(obtain(what, arguments));
+    }
+
+    /**
+     * @return The number of bytes {@code data} takes once parceled, as it would cross the process boundary
+     */
+    public static int getParcelSize(@NonNull Bundle data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(data);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @NonNull
+    public static Message obtain(int what, @Nullable Bundle data) {
+        Message message = Message.obtain(null, what);
+        if (data != null) message.setData(data);
+        return message;
+    }
+
+    /**
+     * Convert a {@link #STATE} update to a map for the Flutter side.
+     */
+    @NonNull
+    public static HashMap<String, Object> stateToMap(@NonNull Bundle state) {
+        ArrayList<Integer> upNext = state.getIntegerArrayList(UP_NEXT_KEY);
+
+        HashMap<String, Object> result = new HashMap<>();
+        result.put(INDEX_KEY, state.getInt(INDEX_KEY));
+        result.put(PLAYLIST_ID_KEY, state.getInt(PLAYLIST_ID_KEY));
+        result.put(CURRENT_POSITION_KEY, state.getLong(CURRENT_POSITION_KEY));
+        result.put(DURATION_KEY, state.getLong(DURATION_KEY));
+        result.put(IS_PLAYING_KEY, state.getBoolean(IS_PLAYING_KEY));
+        result.put(REPEAT_KEY, state.getInt(REPEAT_KEY));
+        result.put(SHUFFLE_KEY, state.getBoolean(SHUFFLE_KEY));
+        result.put(UP_NEXT_KEY, upNext != null ? upNext : new ArrayList<Integer>());
+        return result;
+    }
+
+    /**
+     * Convert a {@link Bundle} of {@code long} values (e.g. the {@link #CACHE_SIZES} reply) to a map for the
+     * Flutter side.
+     */
+    @NonNull
+    public static HashMap<String, Object> longsToMap(@NonNull Bundle bundle) {
+        HashMap<String, Object> result = new HashMap<>();
+        for (String key : bundle.keySet()) {
+            result.put(key, bundle.getLong(key));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The elements of a {@code long} array read from a {@link Bundle}, for the Flutter side
+     */
+    @NonNull
+    public static ArrayList<Long> toList(@Nullable long[] array) {
+        ArrayList<Long> list = new ArrayList<>();
+        for (long element : array != null ? array : new long[0]) {
+            list.add(element);
+        }
+
+        return list;
+    }
+}
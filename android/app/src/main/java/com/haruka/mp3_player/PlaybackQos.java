@@ -0,0 +1,269 @@
+package com.haruka.mp3_player;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Playback quality-of-service telemetry, collected from the {@link AnalyticsListener} callbacks of the player.
+ * <p>
+ * Every callback runs on the application thread of the player, which is also the thread of the service, so the
+ * histograms are plain arrays and recording a sample is a few integer operations.
+ */
+public class PlaybackQos implements AnalyticsListener {
+    /**
+     * Histogram buckets: bucket {@code i} counts the samples below {@code 2^i} milliseconds, the last bucket
+     * counts the rest.
+     */
+    public static final int HISTOGRAM_BUCKETS = 20;
+
+    /**
+     * The span of a histogram window. The recent histogram covers the current and the previous window.
+     */
+    private static final long WINDOW_MS = 15 * 60_000;
+
+    /**
+     * A log2 histogram of durations, kept both since the service started and over a rolling recent window.
+     */
+    public static class Histogram {
+        private final long[] total = new long[HISTOGRAM_BUCKETS];
+        private long[] current = new long[HISTOGRAM_BUCKETS];
+        private long[] previous = new long[HISTOGRAM_BUCKETS];
+        private long windowStartMs = SystemClock.elapsedRealtime();
+        private long count = 0;
+        private long sumMs = 0;
+        private long maxMs = 0;
+
+        private void roll() {
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - windowStartMs;
+            if (elapsed < WINDOW_MS) return;
+
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+
+            // A whole window without samples leaves nothing recent
+            if (elapsed >= 2 * WINDOW_MS) Arrays.fill(current, 0);
+
+            previous = current;
+            current = recycled;
+            windowStartMs = now;
+        }
+
+        public void record(long ms) {
+            roll();
+
+            ms = Math.max(ms, 0);
+            int bucket = Math.min(ms > 0 ? 64 - Long.numberOfLeadingZeros(ms) : 0, HISTOGRAM_BUCKETS - 1);
+            total[bucket]++;
+            current[bucket]++;
+            count++;
+            sumMs += ms;
+            maxMs = Math.max(maxMs, ms);
+        }
+
+        @NonNull
+        public Bundle toBundle() {
+            roll();
+
+            long[] recent = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                recent[i] = current[i] + previous[i];
+            }
+
+            Bundle result = new Bundle();
+            result.putLong("count", count);
+            result.putLong("meanMs", count > 0 ? sumMs / count : 0);
+            result.putLong("maxMs", maxMs);
+            result.putLongArray("histogram", total.clone());
+            result.putLongArray("recent", recent);
+            return result;
+        }
+
+        /**
+         * Convert a bundle made by {@link #toBundle()} to a map for the Flutter side.
+         */
+        @NonNull
+        public static HashMap<String, Object> toMap(@NonNull Bundle bundle) {
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("count", bundle.getLong("count"));
+            result.put("meanMs", bundle.getLong("meanMs"));
+            result.put("maxMs", bundle.getLong("maxMs"));
+            result.put("histogram", PlaybackProtocol.toList(bundle.getLongArray("histogram")));
+            result.put("recent", PlaybackProtocol.toList(bundle.getLongArray("recent")));
+            return result;
+        }
+    }
+
+    @NonNull
+    public final Histogram playToReady = new Histogram();
+    @NonNull
+    public final Histogram playToFirstAudio = new Histogram();
+    @NonNull
+    public final Histogram transitionGaps = new Histogram();
+    @NonNull
+    public final Histogram rebuffers = new Histogram();
+    @NonNull
+    public final Histogram decoderInit = new Histogram();
+    @NonNull
+    public final Histogram underrunStarvation = new Histogram();
+
+    /**
+     * The time to handle each {@link PlaybackProtocol} command, recorded by {@link MediaPlayerService}.
+     */
+    @NonNull
+    public final Histogram commands = new Histogram();
+
+    // Request times of the pending play request in both clocks, since the first audio output is reported in
+    // wall-clock time. -1 when no request is pending.
+    private long playRequestedMs = -1;
+    private long playRequestedWallMs = -1;
+    private boolean waitingForAudio = false;
+
+    // The start of the current rebuffer or transition stall, or -1
+    private long rebufferStartMs = -1;
+    private long transitionMs = -1;
+
+    // Buffering right after a seek is expected, it is not counted as a rebuffer
+    private boolean seeking = false;
+    private boolean ready = false;
+
+    /**
+     * Mark the start of a play request, from which {@link #playToReady} and {@link #playToFirstAudio} are measured.
+     */
+    public void onPlayRequested() {
+        playRequestedMs = SystemClock.elapsedRealtime();
+        playRequestedWallMs = System.currentTimeMillis();
+        waitingForAudio = true;
+        rebufferStartMs = -1;
+        transitionMs = -1;
+        ready = false;
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+        long now = SystemClock.elapsedRealtime();
+        switch (state) {
+            case Player.STATE_READY:
+                if (playRequestedMs != -1) {
+                    playToReady.record(now - playRequestedMs);
+                    playRequestedMs = -1;
+                }
+
+                if (rebufferStartMs != -1) {
+                    rebuffers.record(now - rebufferStartMs);
+                    rebufferStartMs = -1;
+                }
+
+                if (transitionMs != -1) {
+                    transitionGaps.record(now - transitionMs);
+                    transitionMs = -1;
+                }
+
+                ready = true;
+                seeking = false;
+                break;
+
+            case Player.STATE_BUFFERING:
+                // Only a stall of a player that was already playing is a rebuffer
+                if (ready && !seeking && transitionMs == -1 && playRequestedMs == -1) rebufferStartMs = now;
+                ready = false;
+                break;
+
+            default:
+                ready = false;
+                rebufferStartMs = -1;
+                transitionMs = -1;
+        }
+    }
+
+    @Override
+    public void onMediaItemTransition(@NonNull EventTime eventTime, @Nullable MediaItem mediaItem, int reason) {
+        if (reason != Player.MEDIA_ITEM_TRANSITION_REASON_AUTO) return;
+
+        // A gapless transition keeps the player ready, any stall is measured until it is ready again
+        if (ready) {
+            transitionGaps.record(0);
+        } else {
+            transitionMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(
+            @NonNull EventTime eventTime,
+            @NonNull Player.PositionInfo oldPosition,
+            @NonNull Player.PositionInfo newPosition,
+            int reason
+    ) {
+        if (reason == Player.DISCONTINUITY_REASON_SEEK) {
+            seeking = true;
+            rebufferStartMs = -1;
+        }
+    }
+
+    @Override
+    public void onAudioPositionAdvancing(@NonNull EventTime eventTime, long playoutStartSystemTimeMs) {
+        if (waitingForAudio) {
+            playToFirstAudio.record(playoutStartSystemTimeMs - playRequestedWallMs);
+            waitingForAudio = false;
+        }
+    }
+
+    @Override
+    public void onAudioDecoderInitialized(
+            @NonNull EventTime eventTime,
+            @NonNull String decoderName,
+            long initializedTimestampMs,
+            long initializationDurationMs
+    ) {
+        decoderInit.record(initializationDurationMs);
+    }
+
+    @Override
+    public void onAudioUnderrun(@NonNull EventTime eventTime, int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
+        underrunStarvation.record(elapsedSinceLastFeedMs);
+    }
+
+    /**
+     * @return All histograms, by name. The number of rebuffers and underruns is the count of their histograms.
+     */
+    @NonNull
+    public Bundle toBundle() {
+        Bundle result = new Bundle();
+        result.putBundle("playToReady", playToReady.toBundle());
+        result.putBundle("playToFirstAudio", playToFirstAudio.toBundle());
+        result.putBundle("transitionGaps", transitionGaps.toBundle());
+        result.putBundle("rebuffers", rebuffers.toBundle());
+        result.putBundle("decoderInit", decoderInit.toBundle());
+        result.putBundle("underruns", underrunStarvation.toBundle());
+        result.putBundle("commands", commands.toBundle());
+        return result;
+    }
+
+    /**
+     * Convert a bundle made by {@link #toBundle()} to a map for the Flutter side. Other statistics added to it
+     * (e.g. the artwork cache) must be bundles of {@code long} values.
+     */
+    @NonNull
+    public static HashMap<String, Object> toMap(@NonNull Bundle bundle) {
+        HashMap<String, Object> result = new HashMap<>();
+        for (String key : bundle.keySet()) {
+            Bundle stats = bundle.getBundle(key);
+            if (stats == null) continue;
+
+            // Histograms are told apart by their buckets
+            result.put(key, stats.containsKey("histogram") ? Histogram.toMap(stats) : PlaybackProtocol.longsToMap(stats));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,467 @@
+package com.haruka.mp3_player;
+
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
+import androidx.media3.exoplayer.ExoPlayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The logical playback queue of {@link MediaPlayerService}.
+ * <p>
+ * For small playlists, every {@link MediaItem} is handed to the {@link ExoPlayer} up front. For large
+ * playlists, the queue switches to windowed mode: the player only holds the current item plus up to
+ * {@link #getWindowRadius()} items on each side, while the rest of the playlist stays in a backing store of
+ * {@link Bundle}s. The window slides as playback advances, and shuffle and repeat are applied to the whole
+ * logical playlist instead of the player's window.
+ */
+public class PlaybackQueue implements Player.Listener {
+    @NonNull
+    private final ExoPlayer player;
+
+    // Backing store of the whole logical playlist
+    @NonNull
+    private final ArrayList<Bundle> items = new ArrayList<>();
+
+    // Playback order in windowed mode, or null when the queue is played in item order
+    @Nullable
+    private SeededShuffleOrder shuffleOrder;
+
+    @NonNull
+    private final Random random = new Random();
+
+    private int windowRadius = 0;
+    private boolean windowed = false;
+    private boolean shuffled = false;
+
+    // Set while the queue itself edits the player, so that the resulting events do not slide the window
+    private boolean updating = false;
+
+    // The queue position of the first item held by the player
+    private int windowStart = 0;
+
+    // Incremented every time the content or the order of the queue changes
+    private int generation = 0;
+
+    /**
+     * Construct a new {@link PlaybackQueue} driving the given player.
+     *
+     * @param player The {@link ExoPlayer} to hold the queue window.
+     */
+    public PlaybackQueue(@NonNull ExoPlayer player) {
+        this.player = player;
+        player.addListener(this);
+
+        // Every shuffle order the player derives from now on is seeded
+        player.setShuffleOrder(new SeededShuffleOrder(0, random.nextLong()));
+    }
+
+    /**
+     * Convert a {@link Bundle} created by {@link MediaItem#toBundle()} back to a playable {@link MediaItem}.
+     */
+    @NonNull
+    public static MediaItem fromBundle(@NonNull Bundle bundle) {
+        MediaItem mediaItem = MediaItem.CREATOR.fromBundle(bundle);
+        return mediaItem.buildUpon()
+                .setUri(mediaItem.requestMetadata.mediaUri)
+                .setCustomCacheKey(StreamCache.getCacheKey(mediaItem))
+                .build();
+    }
+
+    @NonNull
+    public static ArrayList<MediaItem> fromBundles(@NonNull List<Bundle> bundles) {
+        ArrayList<MediaItem> items = new ArrayList<>();
+        for (Bundle item : bundles) {
+            items.add(fromBundle(item));
+        }
+
+        return items;
+    }
+
+    public int getWindowRadius() {
+        return windowRadius;
+    }
+
+    /**
+     * Set the number of items the player holds on each side of the current item. Takes effect on the
+     * next {@link #load(List, int)}.
+     *
+     * @param windowRadius The window radius, or a non-positive value to disable windowed mode.
+     */
+    public void setWindowRadius(int windowRadius) {
+        this.windowRadius = windowRadius;
+    }
+
+    public boolean isWindowed() {
+        return windowed;
+    }
+
+    public boolean isShuffled() {
+        return windowed ? shuffled : player.getShuffleModeEnabled();
+    }
+
+    /**
+     * @return The number of items in the whole logical playlist
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return A counter that changes every time the content or the order of the queue changes
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return A copy of the whole logical playlist, as {@link Bundle}s created by {@link MediaItem#toBundle()}
+     */
+    @NonNull
+    public ArrayList<Bundle> getItems() {
+        return new ArrayList<>(items);
+    }
+
+    /**
+     * @return The shuffle order of the whole logical playlist serialized by {@link SeededShuffleOrder#writeTo},
+     * or {@code null} if shuffle mode is disabled
+     */
+    @Nullable
+    public byte[] getShuffleOrder() {
+        SeededShuffleOrder order = shuffleOrder;
+        if (!windowed && player.getShuffleModeEnabled()) {
+            // The player does not expose its shuffle order, read it back from the timeline
+            Timeline timeline = player.getCurrentTimeline();
+            int[] result = new int[timeline.getWindowCount()];
+            int index = timeline.getFirstWindowIndex(true);
+            for (int i = 0; i < result.length && index != C.INDEX_UNSET; i++) {
+                result[i] = index;
+                index = timeline.getNextWindowIndex(index, Player.REPEAT_MODE_OFF, true);
+            }
+
+            order = SeededShuffleOrder.fromArray(result, random.nextLong());
+        }
+
+        if (order == null) return null;
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            order.writeTo(new DataOutputStream(stream));
+        } catch (IOException error) {
+            throw new RuntimeException(error); // Unreachable, ByteArrayOutputStream never throws
+        }
+
+        return stream.toByteArray();
+    }
+
+    /**
+     * Get the items that will be played after the current one, following the shuffle order and the repeat mode.
+     *
+     * @param count The maximum number of items to return.
+     * @return The logical indices of the upcoming items
+     */
+    @NonNull
+    public ArrayList<Integer> getUpNext(int count) {
+        ArrayList<Integer> result = new ArrayList<>();
+        boolean wrap = player.getRepeatMode() == Player.REPEAT_MODE_ALL;
+        if (windowed) {
+            int size = items.size();
+            if (size == 0) return result;
+
+            int position = getCurrentPosition();
+            for (int i = 1; i <= count && i < size; i++) {
+                if (position + i >= size && !wrap) break;
+                result.add(itemIndexAt(mod(position + i, size)));
+            }
+
+            return result;
+        }
+
+        Timeline timeline = player.getCurrentTimeline();
+        if (timeline.isEmpty()) return result;
+
+        int index = player.getCurrentMediaItemIndex();
+        int repeatMode = wrap ? Player.REPEAT_MODE_ALL : Player.REPEAT_MODE_OFF;
+        for (int i = 0; i < count && i < timeline.getWindowCount() - 1; i++) {
+            index = timeline.getNextWindowIndex(index, repeatMode, player.getShuffleModeEnabled());
+            if (index == C.INDEX_UNSET) break;
+            result.add(index);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param index The index of an item in the logical playlist.
+     * @return The path to the artwork of the item, or {@code null} if it has none
+     */
+    @Nullable
+    public String getArtworkPath(int index) {
+        if (index < 0 || index >= items.size()) return null;
+
+        Uri artworkUri = MediaItem.CREATOR.fromBundle(items.get(index)).mediaMetadata.artworkUri;
+        return artworkUri != null ? artworkUri.getPath() : null;
+    }
+
+    /**
+     * @return The index of the current item in the logical playlist
+     */
+    public int getCurrentIndex() {
+        if (windowed && !items.isEmpty()) {
+            return itemIndexAt(getCurrentPosition());
+        }
+
+        return player.getCurrentMediaItemIndex();
+    }
+
+    /**
+     * Replace the whole queue and move to the item at the given index.
+     *
+     * @param bundles The {@link MediaItem}s as created by {@link MediaItem#toBundle()}.
+     * @param index   The index of the item to start from.
+     */
+    public void load(@NonNull List<Bundle> bundles, int index) {
+        load(bundles, index, 0, isShuffled(), null);
+    }
+
+    /**
+     * Replace the whole queue with a previously saved one.
+     *
+     * @param bundles      The {@link MediaItem}s as created by {@link MediaItem#toBundle()}.
+     * @param index        The index of the item to start from.
+     * @param positionMs   The position to start from in the item.
+     * @param shuffled     Whether shuffle mode is enabled.
+     * @param shuffleOrder The saved shuffle order. The queue takes ownership of it.
+     */
+    public void restore(@NonNull List<Bundle> bundles, int index, long positionMs, boolean shuffled, @Nullable SeededShuffleOrder shuffleOrder) {
+        load(bundles, index, positionMs, shuffled, shuffleOrder);
+    }
+
+    private void load(@NonNull List<Bundle> bundles, int index, long positionMs, boolean shuffled, @Nullable SeededShuffleOrder savedOrder) {
+        generation++;
+        items.clear();
+        items.addAll(bundles);
+        items.trimToSize();
+        shuffleOrder = null;
+
+        if (savedOrder != null && savedOrder.getLength() != bundles.size()) savedOrder = null;
+
+        windowed = windowRadius > 0 && bundles.size() > 2 * windowRadius + 1;
+        if (!windowed) {
+            player.setMediaItems(fromBundles(bundles), index, positionMs);
+            if (savedOrder != null) player.setShuffleOrder(savedOrder);
+            player.setShuffleModeEnabled(shuffled);
+            return;
+        }
+
+        player.setShuffleModeEnabled(false);
+        this.shuffled = shuffled;
+        if (shuffled) {
+            shuffleOrder = savedOrder != null ? savedOrder : new SeededShuffleOrder(items.size(), random.nextLong(), index);
+        }
+
+        int position = positionOf(index);
+        updating = true;
+        try {
+            player.setMediaItems(Collections.singletonList(itemAt(position)), 0, positionMs);
+        } finally {
+            updating = false;
+        }
+
+        windowStart = position;
+        slide();
+    }
+
+    /**
+     * Append items to the end of the queue.
+     *
+     * @param bundles The {@link MediaItem}s as created by {@link MediaItem#toBundle()}.
+     */
+    public void add(@NonNull List<Bundle> bundles) {
+        generation++;
+        if (!windowed) {
+            items.addAll(bundles);
+            player.addMediaItems(fromBundles(bundles));
+            return;
+        }
+
+        int oldSize = items.size();
+        int current = getCurrentIndex();
+        boolean touchesEnd = windowStart + player.getMediaItemCount() >= oldSize;
+
+        items.addAll(bundles);
+        if (shuffleOrder != null) {
+            shuffleOrder.insert(oldSize, bundles.size());
+        }
+
+        // New items may land inside the window when shuffling, and a window wrapping around the end of the queue
+        // is no longer contiguous once new items are appended
+        if (shuffleOrder != null || touchesEnd) {
+            resync(positionOf(current));
+        }
+    }
+
+    /**
+     * Remove an item from the queue.
+     *
+     * @param index The index of the item in the logical playlist.
+     */
+    public void remove(int index) {
+        if (index < 0 || index >= items.size()) return;
+
+        generation++;
+        if (!windowed) {
+            items.remove(index);
+            player.removeMediaItem(index);
+            return;
+        }
+
+        int size = items.size();
+        int position = positionOf(index);
+        int offset = mod(position - windowStart, size);
+        if (offset < player.getMediaItemCount()) {
+            updating = true;
+            try {
+                player.removeMediaItem(offset);
+            } finally {
+                updating = false;
+            }
+        }
+
+        if (position < windowStart) windowStart--;
+
+        items.remove(index);
+        if (shuffleOrder != null) {
+            shuffleOrder.remove(index, index + 1);
+        }
+
+        slide();
+    }
+
+    public void toggleRepeat() {
+        player.setRepeatMode((player.getRepeatMode() + 2) % 3);
+    }
+
+    public void toggleShuffle() {
+        generation++;
+        if (!windowed) {
+            player.setShuffleModeEnabled(!player.getShuffleModeEnabled());
+            return;
+        }
+
+        shuffled = !shuffled;
+        if (!items.isEmpty()) {
+            int current = getCurrentIndex();
+            shuffleOrder = shuffled ? new SeededShuffleOrder(items.size(), random.nextLong(), current) : null;
+            resync(positionOf(current));
+        }
+    }
+
+    @Override
+    public void onMediaItemTransition(MediaItem mediaItem, int reason) {
+        if (!updating) slide();
+    }
+
+    @Override
+    public void onRepeatModeChanged(int repeatMode) {
+        if (!updating) slide();
+    }
+
+    private static int mod(int value, int divisor) {
+        int result = value % divisor;
+        return result < 0 ? result + divisor : result;
+    }
+
+    private int itemIndexAt(int position) {
+        return shuffleOrder != null ? shuffleOrder.getItemAt(position) : position;
+    }
+
+    private int positionOf(int index) {
+        return shuffleOrder != null ? shuffleOrder.getPosition(index) : index;
+    }
+
+    @NonNull
+    private MediaItem itemAt(int position) {
+        return fromBundle(items.get(itemIndexAt(mod(position, items.size()))));
+    }
+
+    private int getCurrentPosition() {
+        return mod(windowStart + player.getCurrentMediaItemIndex(), items.size());
+    }
+
+    /**
+     * Drop every item in the window except the current one, then rebuild the window around it.
+     */
+    private void resync(int position) {
+        int current = player.getCurrentMediaItemIndex();
+        int count = player.getMediaItemCount();
+        updating = true;
+        try {
+            if (current + 1 < count) player.removeMediaItems(current + 1, count);
+            if (current > 0) player.removeMediaItems(0, current);
+        } finally {
+            updating = false;
+        }
+
+        windowStart = position;
+        slide();
+    }
+
+    /**
+     * Trim or extend both sides of the window so that the current item has {@link #windowRadius} neighbours
+     * on each side, wrapping around the queue when repeating all items.
+     */
+    private void slide() {
+        int size = items.size();
+        if (!windowed || size == 0 || player.getMediaItemCount() == 0) return;
+
+        int current = player.getCurrentMediaItemIndex();
+        int position = getCurrentPosition();
+        boolean wrap = player.getRepeatMode() == Player.REPEAT_MODE_ALL;
+        int after = Math.min(windowRadius, wrap ? size - 1 : size - 1 - position);
+        int before = Math.min(windowRadius, wrap ? size - 1 - after : position);
+
+        updating = true;
+        try {
+            int currentAfter = player.getMediaItemCount() - 1 - current;
+            if (currentAfter > after) {
+                player.removeMediaItems(current + 1 + after, player.getMediaItemCount());
+            } else if (currentAfter < after) {
+                ArrayList<MediaItem> tail = new ArrayList<>();
+                for (int i = currentAfter + 1; i <= after; i++) {
+                    tail.add(itemAt(position + i));
+                }
+
+                player.addMediaItems(tail);
+            }
+
+            if (current > before) {
+                player.removeMediaItems(0, current - before);
+            } else if (current < before) {
+                ArrayList<MediaItem> head = new ArrayList<>();
+                for (int i = before; i > current; i--) {
+                    head.add(itemAt(position - i));
+                }
+
+                player.addMediaItems(0, head);
+            }
+        } finally {
+            updating = false;
+        }
+
+        windowStart = mod(position - before, size);
+    }
+}
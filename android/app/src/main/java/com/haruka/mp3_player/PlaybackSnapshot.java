@@ -0,0 +1,227 @@
+package com.haruka.mp3_player;
+
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.media3.common.Player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact on-disk snapshot of the playback state of {@link MediaPlayerService}, so that the service can
+ * rebuild its player after the process dies without waiting for the Flutter side.
+ * <p>
+ * The snapshot is split into two files: the queue (tracks by reference and the shuffle order), which is only
+ * rewritten when the queue changes, and the small playback state (index, position, modes), which is rewritten
+ * on every meaningful state change.
+ */
+public class PlaybackSnapshot {
+    private static final int VERSION = 4;
+    private static final String QUEUE_FILE_NAME = "playback_queue.bin";
+    private static final String STATE_FILE_NAME = "playback_state.bin";
+
+    public int playlistId = -1;
+    public int index = 0;
+    public long positionMs = 0;
+    public int repeatMode = Player.REPEAT_MODE_OFF;
+    public boolean shuffled = false;
+    public int windowRadius = 0;
+    @NonNull
+    public String bufferProfile = BufferProfile.GAPLESS_LOCAL.name();
+    public boolean powerSaving = false;
+    public long idleReleaseMs = 0;
+    public long idleStopMs = 0;
+
+    /**
+     * The queue, as {@link Bundle}s created by {@link MediaItem#toBundle()}
+     */
+    @NonNull
+    public final ArrayList<Bundle> items = new ArrayList<>();
+
+    /**
+     * The shuffle order of {@link #items}, or {@code null} if not shuffled
+     */
+    @Nullable
+    public SeededShuffleOrder shuffleOrder;
+
+    @NonNull
+    public static MediaItem createMediaItem(
+            @NonNull String uri,
+            @NonNull String title,
+            @Nullable String artist,
+            @Nullable String thumbnailPath,
+            @Nullable String cacheKey
+    ) {
+        Bundle extras = null;
+        if (cacheKey != null) {
+            extras = new Bundle();
+            extras.putString(StreamCache.CACHE_KEY, cacheKey);
+        }
+
+        Uri mediaUri = StreamCache.isRemote(uri) ? Uri.parse(uri) : Utility.uriFromFile(uri);
+        return new MediaItem.Builder()
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setArtist(artist)
+                                .setArtworkUri(thumbnailPath != null ? Utility.uriFromFile(thumbnailPath) : null)
+                                .setMediaType(MediaMetadata.MEDIA_TYPE_MUSIC)
+                                .setTitle(title)
+                                .build()
+                )
+                .setRequestMetadata(
+                        new MediaItem.RequestMetadata.Builder()
+                                .setMediaUri(mediaUri)
+                                .setExtras(extras)
+                                .build()
+                )
+                .setCustomCacheKey(cacheKey)
+                .setUri(mediaUri)
+                .build();
+    }
+
+    /**
+     * Write the queue file. Should be called from a background thread.
+     *
+     * @param directory    The directory to write to.
+     * @param items        The queue, as {@link Bundle}s created by {@link MediaItem#toBundle()}.
+     * @param shuffleOrder The shuffle order of the queue as serialized by {@link SeededShuffleOrder#writeTo}, or
+     *                     {@code null} if not shuffled.
+     */
+    public static void writeQueue(@NonNull File directory, @NonNull List<Bundle> items, @Nullable byte[] shuffleOrder) throws IOException {
+        File temporary = new File(directory, QUEUE_FILE_NAME + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            stream.writeInt(VERSION);
+            stream.writeInt(items.size());
+            for (Bundle bundle : items) {
+                MediaItem item = MediaItem.CREATOR.fromBundle(bundle);
+                Uri mediaUri = item.requestMetadata.mediaUri;
+                Uri artworkUri = item.mediaMetadata.artworkUri;
+                CharSequence title = item.mediaMetadata.title;
+                CharSequence artist = item.mediaMetadata.artist;
+
+                String uri = "";
+                if (mediaUri != null) {
+                    uri = StreamCache.isRemote(mediaUri) ? mediaUri.toString() : mediaUri.getPath();
+                }
+
+                stream.writeUTF(uri != null ? uri : "");
+                stream.writeUTF(title != null ? title.toString() : "");
+                writeNullableUTF(stream, artist != null ? artist.toString() : null);
+                writeNullableUTF(stream, artworkUri != null ? artworkUri.getPath() : null);
+                writeNullableUTF(stream, StreamCache.getCacheKey(item));
+            }
+
+            stream.writeBoolean(shuffleOrder != null);
+            if (shuffleOrder != null) stream.write(shuffleOrder);
+        }
+
+        replace(temporary, new File(directory, QUEUE_FILE_NAME));
+    }
+
+    /**
+     * Write the state file. Should be called from a background thread.
+     */
+    public void writeState(@NonNull File directory) throws IOException {
+        File temporary = new File(directory, STATE_FILE_NAME + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            stream.writeInt(VERSION);
+            stream.writeInt(playlistId);
+            stream.writeInt(index);
+            stream.writeLong(positionMs);
+            stream.writeInt(repeatMode);
+            stream.writeBoolean(shuffled);
+            stream.writeInt(windowRadius);
+            stream.writeUTF(bufferProfile);
+            stream.writeBoolean(powerSaving);
+            stream.writeLong(idleReleaseMs);
+            stream.writeLong(idleStopMs);
+        }
+
+        replace(temporary, new File(directory, STATE_FILE_NAME));
+    }
+
+    /**
+     * Read a snapshot previously written to a directory.
+     *
+     * @param directory The directory to read from.
+     * @return The snapshot, or {@code null} if there is no valid snapshot in the directory
+     */
+    @Nullable
+    public static PlaybackSnapshot read(@NonNull File directory) {
+        File queueFile = new File(directory, QUEUE_FILE_NAME), stateFile = new File(directory, STATE_FILE_NAME);
+        if (!queueFile.isFile() || !stateFile.isFile()) return null;
+
+        PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (stream.readInt() != VERSION) return null;
+            snapshot.playlistId = stream.readInt();
+            snapshot.index = stream.readInt();
+            snapshot.positionMs = stream.readLong();
+            snapshot.repeatMode = stream.readInt();
+            snapshot.shuffled = stream.readBoolean();
+            snapshot.windowRadius = stream.readInt();
+            snapshot.bufferProfile = stream.readUTF();
+            snapshot.powerSaving = stream.readBoolean();
+            snapshot.idleReleaseMs = stream.readLong();
+            snapshot.idleStopMs = stream.readLong();
+        } catch (IOException error) {
+            Logger.log(Utility.LogLevel.ERROR, "Unable to read playback state: %s", error);
+            return null;
+        }
+
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(queueFile)))) {
+            if (stream.readInt() != VERSION) return null;
+
+            int size = stream.readInt();
+            snapshot.items.ensureCapacity(size);
+            for (int i = 0; i < size; i++) {
+                String uri = stream.readUTF();
+                String title = stream.readUTF();
+                String artist = readNullableUTF(stream);
+                String thumbnailPath = readNullableUTF(stream);
+                String cacheKey = readNullableUTF(stream);
+                snapshot.items.add(createMediaItem(uri, title, artist, thumbnailPath, cacheKey).toBundle());
+            }
+
+            if (stream.readBoolean()) {
+                SeededShuffleOrder shuffleOrder = SeededShuffleOrder.readFrom(stream);
+                snapshot.shuffleOrder = shuffleOrder.getLength() == size ? shuffleOrder : null;
+            }
+        } catch (IOException error) {
+            Logger.log(Utility.LogLevel.ERROR, "Unable to read playback queue: %s", error);
+            return null;
+        }
+
+        if (snapshot.index < 0 || snapshot.index >= snapshot.items.size()) return null;
+        return snapshot;
+    }
+
+    private static void writeNullableUTF(@NonNull DataOutputStream stream, @Nullable String value) throws IOException {
+        stream.writeBoolean(value != null);
+        if (value != null) stream.writeUTF(value);
+    }
+
+    @Nullable
+    private static String readNullableUTF(@NonNull DataInputStream stream) throws IOException {
+        return stream.readBoolean() ? stream.readUTF() : null;
+    }
+
+    private static void replace(@NonNull File source, @NonNull File destination) throws IOException {
+        if (!source.renameTo(destination)) {
+            throw new IOException(Utility.format("Unable to move %s to %s", source, destination));
+        }
+    }
+}
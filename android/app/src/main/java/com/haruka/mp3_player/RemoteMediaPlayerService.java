@@ -0,0 +1,11 @@
+package com.haruka.mp3_player;
+
+/**
+ * The {@link MediaPlayerService} declared in its own {@code :playback} process, so that the memory of the Flutter
+ * engines does not count against background playback. Used when {@link PlaybackProtocol#isSeparateProcess} is
+ * enabled.
+ * <p>
+ * The playback process never starts a Flutter engine, and owns the {@link StreamCache}.
+ */
+public class RemoteMediaPlayerService extends MediaPlayerService {
+}
@@ -0,0 +1,437 @@
+package com.haruka.mp3_player;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.exoplayer.source.ShuffleOrder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A deterministic {@link ShuffleOrder} generated from a seed.
+ * <p>
+ * Every item is a node of two implicit treaps sharing the same nodes: one ordered by item index, the other
+ * ordered by position in the shuffle order. Looking up either side and inserting or removing an item are
+ * therefore O(log n), instead of the O(n) array copies of {@link ShuffleOrder.DefaultShuffleOrder}.
+ * <p>
+ * An order that has not been edited since it was generated is serialized as its seed only.
+ */
+public class SeededShuffleOrder implements ShuffleOrder {
+    private static final int ITEMS = 0;
+    private static final int ORDER = 1;
+
+    private static final class Node {
+        final int priority;
+
+        Node itemLeft, itemRight, itemParent;
+        int itemSize = 1;
+
+        Node orderLeft, orderRight, orderParent;
+        int orderSize = 1;
+
+        Node(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    private final long seed;
+    private final int firstIndex;
+    @NonNull
+    private final Random random;
+
+    private boolean pristine = true;
+    private int length = 0;
+    @Nullable
+    private Node itemRoot, orderRoot;
+
+    /**
+     * Generate a new shuffle order.
+     *
+     * @param length The number of items.
+     * @param seed   The seed of the order.
+     */
+    public SeededShuffleOrder(int length, long seed) {
+        this(length, seed, C.INDEX_UNSET);
+    }
+
+    /**
+     * Generate a new shuffle order starting from a specific item.
+     *
+     * @param length     The number of items.
+     * @param seed       The seed of the order.
+     * @param firstIndex The item to move to the front of the order, or {@link C#INDEX_UNSET}.
+     */
+    public SeededShuffleOrder(int length, long seed, int firstIndex) {
+        this.seed = seed;
+        this.firstIndex = firstIndex >= 0 && firstIndex < length ? firstIndex : C.INDEX_UNSET;
+        this.random = new Random(seed);
+
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        if (this.firstIndex != C.INDEX_UNSET) {
+            for (int i = 0; i < length; i++) {
+                if (order[i] == this.firstIndex) {
+                    order[i] = order[0];
+                    order[0] = this.firstIndex;
+                    break;
+                }
+            }
+        }
+
+        build(order);
+    }
+
+    private SeededShuffleOrder(@NonNull int[] order, long seed) {
+        this.seed = seed;
+        this.firstIndex = C.INDEX_UNSET;
+        this.random = new Random(seed);
+        this.pristine = false;
+        build(order);
+    }
+
+    /**
+     * Construct a shuffle order from an explicit permutation.
+     *
+     * @param order The item indices in playback order.
+     * @param seed  The seed for items inserted later.
+     */
+    @NonNull
+    public static SeededShuffleOrder fromArray(@NonNull int[] order, long seed) {
+        return new SeededShuffleOrder(order, seed);
+    }
+
+    /**
+     * Write this order in a compact form: the seed if the order has not been edited, or the full permutation
+     * otherwise.
+     */
+    public void writeTo(@NonNull DataOutput output) throws IOException {
+        output.writeLong(seed);
+        output.writeInt(length);
+        output.writeBoolean(pristine);
+        if (pristine) {
+            output.writeInt(firstIndex);
+        } else {
+            for (int index : toArray()) {
+                output.writeInt(index);
+            }
+        }
+    }
+
+    /**
+     * Read an order written by {@link #writeTo(DataOutput)}.
+     */
+    @NonNull
+    public static SeededShuffleOrder readFrom(@NonNull DataInput input) throws IOException {
+        long seed = input.readLong();
+        int length = input.readInt();
+        if (input.readBoolean()) {
+            return new SeededShuffleOrder(length, seed, input.readInt());
+        }
+
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = input.readInt();
+        }
+
+        return new SeededShuffleOrder(order, seed);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return The item indices in playback order
+     */
+    @NonNull
+    public int[] toArray() {
+        int[] result = new int[length];
+        ArrayList<Node> stack = new ArrayList<>();
+        Node node = orderRoot;
+        int position = 0;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.add(node);
+                node = node.orderLeft;
+            }
+
+            node = stack.remove(stack.size() - 1);
+            result[position++] = rank(node, ITEMS);
+            node = node.orderRight;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The item index at a position in the shuffle order
+     */
+    public int getItemAt(int position) {
+        return rank(select(orderRoot, position, ORDER), ITEMS);
+    }
+
+    /**
+     * @return The position of an item in the shuffle order
+     */
+    public int getPosition(int index) {
+        return rank(select(itemRoot, index, ITEMS), ORDER);
+    }
+
+    /**
+     * Insert items in place, each at a random position of the shuffle order.
+     *
+     * @param insertionIndex The item index of the first inserted item.
+     * @param insertionCount The number of inserted items.
+     */
+    public void insert(int insertionIndex, int insertionCount) {
+        pristine = false;
+        for (int i = 0; i < insertionCount; i++) {
+            Node node = new Node(random.nextInt());
+
+            Node[] items = split(itemRoot, insertionIndex + i, ITEMS);
+            itemRoot = merge(merge(items[0], node, ITEMS), items[1], ITEMS);
+
+            Node[] order = split(orderRoot, random.nextInt(length + 1), ORDER);
+            orderRoot = merge(merge(order[0], node, ORDER), order[1], ORDER);
+
+            length++;
+        }
+
+        detachRoots();
+    }
+
+    /**
+     * Remove items in place.
+     *
+     * @param indexFrom        The item index of the first removed item.
+     * @param indexToExclusive The item index after the last removed item.
+     */
+    public void remove(int indexFrom, int indexToExclusive) {
+        if (indexToExclusive <= indexFrom) return;
+        pristine = false;
+
+        Node[] head = split(itemRoot, indexFrom, ITEMS);
+        Node[] tail = split(head[1], indexToExclusive - indexFrom, ITEMS);
+        itemRoot = merge(head[0], tail[1], ITEMS);
+        detachRoots();
+
+        ArrayList<Node> removed = new ArrayList<>();
+        collect(tail[0], removed);
+        for (Node node : removed) {
+            Node[] order = split(orderRoot, rank(node, ORDER), ORDER);
+            Node[] rest = split(order[1], 1, ORDER);
+            orderRoot = merge(order[0], rest[1], ORDER);
+            detachRoots();
+            length--;
+        }
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public int getNextIndex(int index) {
+        int position = getPosition(index);
+        return position + 1 < length ? getItemAt(position + 1) : C.INDEX_UNSET;
+    }
+
+    @Override
+    public int getPreviousIndex(int index) {
+        int position = getPosition(index);
+        return position > 0 ? getItemAt(position - 1) : C.INDEX_UNSET;
+    }
+
+    @Override
+    public int getLastIndex() {
+        return length > 0 ? getItemAt(length - 1) : C.INDEX_UNSET;
+    }
+
+    @Override
+    public int getFirstIndex() {
+        return length > 0 ? getItemAt(0) : C.INDEX_UNSET;
+    }
+
+    // ExoPlayer treats shuffle orders as immutable and may still read the old instance, hence the copies below
+
+    @NonNull
+    @Override
+    public ShuffleOrder cloneAndInsert(int insertionIndex, int insertionCount) {
+        if (length == 0) {
+            return new SeededShuffleOrder(insertionCount, random.nextLong());
+        }
+
+        SeededShuffleOrder result = new SeededShuffleOrder(toArray(), random.nextLong());
+        result.insert(insertionIndex, insertionCount);
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public ShuffleOrder cloneAndRemove(int indexFrom, int indexToExclusive) {
+        SeededShuffleOrder result = new SeededShuffleOrder(toArray(), random.nextLong());
+        result.remove(indexFrom, indexToExclusive);
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public ShuffleOrder cloneAndClear() {
+        return new SeededShuffleOrder(0, random.nextLong());
+    }
+
+    private void build(@NonNull int[] order) {
+        length = order.length;
+        Node[] nodes = new Node[length];
+        for (int i = 0; i < length; i++) {
+            nodes[i] = new Node(random.nextInt());
+        }
+
+        itemRoot = null;
+        for (Node node : nodes) {
+            itemRoot = merge(itemRoot, node, ITEMS);
+        }
+
+        orderRoot = null;
+        for (int index : order) {
+            orderRoot = merge(orderRoot, nodes[index], ORDER);
+        }
+
+        detachRoots();
+    }
+
+    private void detachRoots() {
+        if (itemRoot != null) itemRoot.itemParent = null;
+        if (orderRoot != null) orderRoot.orderParent = null;
+    }
+
+    private static void collect(@Nullable Node node, @NonNull ArrayList<Node> output) {
+        if (node == null) return;
+        collect(node.itemLeft, output);
+        output.add(node);
+        collect(node.itemRight, output);
+    }
+
+    @Nullable
+    private static Node left(@NonNull Node node, int axis) {
+        return axis == ITEMS ? node.itemLeft : node.orderLeft;
+    }
+
+    @Nullable
+    private static Node right(@NonNull Node node, int axis) {
+        return axis == ITEMS ? node.itemRight : node.orderRight;
+    }
+
+    @Nullable
+    private static Node parent(@NonNull Node node, int axis) {
+        return axis == ITEMS ? node.itemParent : node.orderParent;
+    }
+
+    private static int size(@Nullable Node node, int axis) {
+        if (node == null) return 0;
+        return axis == ITEMS ? node.itemSize : node.orderSize;
+    }
+
+    private static void setChildren(@NonNull Node node, @Nullable Node left, @Nullable Node right, int axis) {
+        if (axis == ITEMS) {
+            node.itemLeft = left;
+            node.itemRight = right;
+            node.itemSize = 1 + size(left, axis) + size(right, axis);
+            if (left != null) left.itemParent = node;
+            if (right != null) right.itemParent = node;
+        } else {
+            node.orderLeft = left;
+            node.orderRight = right;
+            node.orderSize = 1 + size(left, axis) + size(right, axis);
+            if (left != null) left.orderParent = node;
+            if (right != null) right.orderParent = node;
+        }
+    }
+
+    @Nullable
+    private static Node merge(@Nullable Node first, @Nullable Node second, int axis) {
+        if (first == null) return second;
+        if (second == null) return first;
+
+        if (first.priority > second.priority) {
+            setChildren(first, left(first, axis), merge(right(first, axis), second, axis), axis);
+            return first;
+        }
+
+        setChildren(second, merge(first, left(second, axis), axis), right(second, axis), axis);
+        return second;
+    }
+
+    /**
+     * Split a tree into the first {@code count} nodes and the rest.
+     */
+    @NonNull
+    private static Node[] split(@Nullable Node node, int count, int axis) {
+        if (node == null) return new Node[]{null, null};
+
+        Node left = left(node, axis), right = right(node, axis);
+        if (size(left, axis) >= count) {
+            Node[] result = split(left, count, axis);
+            setChildren(node, result[1], right, axis);
+            result[1] = node;
+            if (result[0] != null) setParent(result[0], null, axis);
+            return result;
+        }
+
+        Node[] result = split(right, count - size(left, axis) - 1, axis);
+        setChildren(node, left, result[0], axis);
+        result[0] = node;
+        if (result[1] != null) setParent(result[1], null, axis);
+        return result;
+    }
+
+    private static void setParent(@NonNull Node node, @Nullable Node parent, int axis) {
+        if (axis == ITEMS) {
+            node.itemParent = parent;
+        } else {
+            node.orderParent = parent;
+        }
+    }
+
+    @NonNull
+    private static Node select(@Nullable Node node, int rank, int axis) {
+        while (node != null) {
+            int leftSize = size(left(node, axis), axis);
+            if (rank < leftSize) {
+                node = left(node, axis);
+            } else if (rank == leftSize) {
+                return node;
+            } else {
+                rank -= leftSize + 1;
+                node = right(node, axis);
+            }
+        }
+
+        throw new IndexOutOfBoundsException();
+    }
+
+    private static int rank(@NonNull Node node, int axis) {
+        int result = size(left(node, axis), axis);
+        Node parent = parent(node, axis);
+        while (parent != null) {
+            if (right(parent, axis) == node) {
+                result += size(left(parent, axis), axis) + 1;
+            }
+
+            node = parent;
+            parent = parent(node, axis);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,246 @@
+package com.haruka.mp3_player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.MediaItem;
+import androidx.media3.database.StandaloneDatabaseProvider;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceInputStream;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.datasource.DefaultHttpDataSource;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.ContentMetadata;
+import androidx.media3.datasource.cache.LeastRecentlyUsedCacheEvictor;
+import androidx.media3.datasource.cache.SimpleCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded disk cache for remote audio, so that YouTube tracks can be played while they are downloaded.
+ * <p>
+ * Remote items are read through a {@link CacheDataSource}: the bytes fetched for playback are written to the
+ * cache, replays are served from disk, and a cached track can later be promoted into a permanent library file
+ * without downloading it again. Local files bypass the cache entirely.
+ * <p>
+ * The cache is owned by the process hosting playback: with {@link RemoteMediaPlayerService}, the activity process
+ * never opens it.
+ */
+public class StreamCache {
+    private static final String CACHE_DIRECTORY_NAME = "stream";
+    private static final long MAX_CACHE_BYTES = 256L << 20;
+
+    /**
+     * The key in {@link MediaItem.RequestMetadata#extras} holding the cache key of a remote item. Remote URLs
+     * (e.g. from Invidious) expire, so items are cached under a stable key such as the video ID instead.
+     */
+    public static final String CACHE_KEY = "com.haruka.mp3_player.CACHE_KEY";
+
+    // A SimpleCache locks its directory, there must be only one instance per process
+    @Nullable
+    private static SimpleCache cache;
+
+    /**
+     * A {@link DataSource} reading remote URIs through the cache and everything else directly.
+     */
+    private static class StreamingDataSource implements DataSource {
+        @NonNull
+        private final DataSource upstream;
+        @NonNull
+        private final DataSource cached;
+        @Nullable
+        private DataSource current;
+
+        StreamingDataSource(@NonNull DataSource upstream, @NonNull DataSource cached) {
+            this.upstream = upstream;
+            this.cached = cached;
+        }
+
+        @Override
+        public void addTransferListener(@NonNull TransferListener transferListener) {
+            upstream.addTransferListener(transferListener);
+            cached.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(@NonNull DataSpec dataSpec) throws IOException {
+            current = isRemote(dataSpec.uri) ? cached : upstream;
+            return current.open(dataSpec);
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            assert current != null;
+            return current.read(buffer, offset, length);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return current != null ? current.getUri() : null;
+        }
+
+        @NonNull
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return current != null ? current.getResponseHeaders() : upstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            DataSource source = current;
+            current = null;
+            if (source != null) source.close();
+        }
+    }
+
+    @NonNull
+    public static synchronized SimpleCache getCache(@NonNull Context context) {
+        if (cache == null) {
+            Context applicationContext = context.getApplicationContext();
+            cache = new SimpleCache(
+                    new File(applicationContext.getCacheDir(), CACHE_DIRECTORY_NAME),
+                    new LeastRecentlyUsedCacheEvictor(MAX_CACHE_BYTES),
+                    new StandaloneDatabaseProvider(applicationContext)
+            );
+        }
+
+        return cache;
+    }
+
+    /**
+     * Close the cache, e.g. before its directory is deleted. It is opened again on the next use.
+     */
+    @VisibleForTesting
+    public static synchronized void release() {
+        if (cache != null) {
+            cache.release();
+            cache = null;
+        }
+    }
+
+    /**
+     * @return Whether a URI points to a remote resource that should go through the cache
+     */
+    public static boolean isRemote(@NonNull Uri uri) {
+        String scheme = uri.getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
+    /**
+     * @return Whether a URI string sent from the Flutter side points to a remote resource
+     */
+    public static boolean isRemote(@NonNull String uri) {
+        return uri.startsWith("http://") || uri.startsWith("https://");
+    }
+
+    /**
+     * @return The cache key stored in the request metadata of an item, or {@code null} to key by URI
+     */
+    @Nullable
+    public static String getCacheKey(@NonNull MediaItem item) {
+        Bundle extras = item.requestMetadata.extras;
+        return extras != null ? extras.getString(CACHE_KEY) : null;
+    }
+
+    @NonNull
+    private static DataSource.Factory createUpstreamDataSourceFactory(@NonNull Context context) {
+        return new DefaultDataSource.Factory(
+                context,
+                new DefaultHttpDataSource.Factory().setAllowCrossProtocolRedirects(true)
+        );
+    }
+
+    @NonNull
+    private static CacheDataSource.Factory createCacheDataSourceFactory(@NonNull Context context) {
+        return new CacheDataSource.Factory()
+                .setCache(getCache(context))
+                .setUpstreamDataSourceFactory(createUpstreamDataSourceFactory(context))
+                .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    }
+
+    /**
+     * Create the {@link DataSource.Factory} of the player: remote items are streamed through the cache, local
+     * files are read directly.
+     */
+    @NonNull
+    public static DataSource.Factory createDataSourceFactory(@NonNull Context context) {
+        Context applicationContext = context.getApplicationContext();
+        DataSource.Factory upstreamFactory = new DefaultDataSource.Factory(applicationContext);
+        CacheDataSource.Factory cacheFactory = createCacheDataSourceFactory(applicationContext);
+        return () -> new StreamingDataSource(upstreamFactory.createDataSource(), cacheFactory.createDataSource());
+    }
+
+    /**
+     * @return The number of bytes of a remote item already in the cache, and its total length (or
+     * {@link androidx.media3.common.C#LENGTH_UNSET} if unknown)
+     */
+    @NonNull
+    public static long[] getCachedBytes(@NonNull Context context, @NonNull String cacheKey) {
+        SimpleCache cache = getCache(context);
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(cacheKey));
+        return new long[]{cache.getCachedBytes(cacheKey, 0, length), length};
+    }
+
+    /**
+     * Copy a remote item into a permanent file. Cached bytes are reused and only the missing ranges are
+     * downloaded (and cached along the way). Should be called from a background thread.
+     *
+     * @param context  The context to access the cache.
+     * @param uri      The remote URI of the item.
+     * @param cacheKey The cache key the item was streamed with, or {@code null} if it was keyed by URI.
+     * @param output   The destination file.
+     * @return The number of bytes that were served from the cache
+     */
+    public static long promote(
+            @NonNull Context context,
+            @NonNull Uri uri,
+            @Nullable String cacheKey,
+            @NonNull File output
+    ) throws IOException {
+        String key = cacheKey != null ? cacheKey : uri.toString();
+
+        // The cache directory belongs to the playback process, which may not be this one. Two processes must not
+        // open it at once, so the item is downloaded again instead.
+        boolean useCache = !PlaybackProtocol.isSeparateProcess(context);
+        long cachedBytes = useCache ? getCachedBytes(context, key)[0] : 0;
+        Logger.log(Utility.LogLevel.INFO, "Promoting %s (%d bytes cached) to %s", key, cachedBytes, output);
+
+        DataSource source = useCache
+                ? createCacheDataSourceFactory(context).createDataSource()
+                : createUpstreamDataSourceFactory(context).createDataSource();
+        DataSpec dataSpec = new DataSpec.Builder().setUri(uri).setKey(key).build();
+        File temporary = new File(output.getPath() + ".tmp");
+        try (
+                InputStream input = new DataSourceInputStream(source, dataSpec);
+                OutputStream stream = new FileOutputStream(temporary)
+        ) {
+            byte[] buffer = new byte[8192];
+            int chunk;
+            while ((chunk = input.read(buffer)) != -1) {
+                stream.write(buffer, 0, chunk);
+            }
+        } catch (IOException error) {
+            if (!temporary.delete()) temporary.deleteOnExit();
+            throw error;
+        }
+
+        if (!temporary.renameTo(output)) {
+            throw new IOException(Utility.format("Unable to move %s to %s", temporary, output));
+        }
+
+        return cachedBytes;
+    }
+}
@@ -26,7 +26,6 @@ import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 
-import io.flutter.Log;
 import io.flutter.plugin.common.MethodCall;
 
 public class Utility {
@@ -136,27 +135,6 @@ public class Utility {
         ERROR,
     }
 
-    private static final String LOG_TAG = "HARUKA.MP3_PLAYER.NATIVE";
-
-    public static void log(@NonNull String content, Object... args) {
-        log(LogLevel.INFO, format(content, args));
-    }
-
-    public static void log(@NonNull LogLevel logLevel, @NonNull String content) {
-        switch (logLevel) {
-            case DEBUG:
-                Log.d(LOG_TAG, content);
-                break;
-
-            case INFO:
-                Log.i(LOG_TAG, content);
-                break;
-
-            case ERROR:
-                Log.e(LOG_TAG, content);
-        }
-    }
-
     @NonNull
     public static String format(@NonNull String format, Object... args) {
         return String.format(Locale.getDefault(), format, args);
@@ -164,18 +142,26 @@ public class Utility {
 
     @NonNull
     public static String format(int bytes) {
-        int abs = bytes > 0 ? bytes : -bytes;
+        return format((long) bytes);
+    }
+
+    /**
+     * Format a byte size, e.g. an accumulated payload that may exceed {@link Integer#MAX_VALUE}.
+     */
+    @NonNull
+    public static String format(long bytes) {
+        long abs = bytes > 0 ? bytes : -bytes;
 
-        if (abs > (1 << 30)) {
-            return format("%.2f GB", (double) bytes / (2 << 30));
+        if (abs > (1L << 30)) {
+            return format("%.2f GB", (double) bytes / (1L << 30));
         }
 
-        if (abs > (1 << 20)) {
-            return format("%.2f MB", (double) bytes / (2 << 20));
+        if (abs > (1L << 20)) {
+            return format("%.2f MB", (double) bytes / (1L << 20));
         }
 
-        if (abs > (1 << 10)) {
-            return format("%.2f KB", (double) bytes / (2 << 20));
+        if (abs > (1L << 10)) {
+            return format("%.2f KB", (double) bytes / (1L << 10));
         }
 
         return format("%d B", bytes);
@@ -253,6 +239,27 @@ public class Utility {
         return false;
     }
 
+    /**
+     * Check several services with a single query of the running services, which is a binder call listing every
+     * running service.
+     *
+     * @return Whether any of {@code serviceClasses} is running
+     */
+    public static boolean anyServiceIsRunning(@NonNull Context context, @NonNull Class<?>... serviceClasses) {
+        HashSet<String> names = new HashSet<>();
+        for (Class<?> serviceClass : serviceClasses) {
+            names.add(serviceClass.getName());
+        }
+
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
+            if (names.contains(service.service.getClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static boolean isNullOrDoesNotExist(@NonNull MethodCall method, @NonNull String key) {
         Object o = null;
         if (method.arguments instanceof Map) {
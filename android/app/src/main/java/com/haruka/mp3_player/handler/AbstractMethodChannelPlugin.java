@@ -1,51 +1,181 @@
 package com.haruka.mp3_player.handler;
 
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.haruka.mp3_player.Logger;
 import com.haruka.mp3_player.Utility;
 
-import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.embedding.engine.plugins.activity.ActivityAware;
+import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.JSONMethodCodec;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 
-public abstract class AbstractMethodChannelPlugin implements FlutterPlugin {
+/**
+ * Base class of the application's {@link FlutterPlugin}s, each of which handles a single {@link MethodChannel}.
+ * <p>
+ * Plugins are not tied to a specific activity, so that they can be registered once on a cached
+ * {@link io.flutter.embedding.engine.FlutterEngine} that outlives the activities displaying it.
+ */
+public abstract class AbstractMethodChannelPlugin implements FlutterPlugin, ActivityAware {
     @Nullable
     protected MethodChannel channel;
     @NonNull
     protected final String channelName;
-    @NonNull
-    protected final FlutterActivity flutterActivity;
 
-    protected AbstractMethodChannelPlugin(@NonNull FlutterActivity flutterActivity, @NonNull String channelName) {
-        this.flutterActivity = flutterActivity;
+    /**
+     * The activity currently attached to the engine, if any.
+     */
+    @Nullable
+    protected Activity activity;
+
+    // Only accessed from the thread or task queue handling the calls of the channel
+    private boolean activated = false;
+
+    protected AbstractMethodChannelPlugin(@NonNull String channelName) {
         this.channelName = channelName;
     }
 
+    /**
+     * A {@link MethodChannel.Result} that delivers its reply on the main thread, for handlers running in the
+     * background.
+     */
+    private static class MainThreadResult implements MethodChannel.Result {
+        private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        @NonNull
+        private final MethodChannel.Result result;
+
+        MainThreadResult(@NonNull MethodChannel.Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void success(@Nullable Object value) {
+            mainHandler.post(() -> result.success(value));
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            mainHandler.post(() -> result.error(errorCode, errorMessage, errorDetails));
+        }
+
+        @Override
+        public void notImplemented() {
+            mainHandler.post(result::notImplemented);
+        }
+    }
+
     protected abstract void handler(MethodCall method, MethodChannel.Result result, FlutterPluginBinding binding) throws Throwable;
 
+    /**
+     * Whether {@link #handler} runs on a background {@link BinaryMessenger.TaskQueue} instead of the platform
+     * thread. Calls of the same channel are still handled one at a time, in order.
+     * <p>
+     * Subclasses doing blocking I/O should return {@code true}, and must then post anything that requires the
+     * main thread (e.g. toasts) themselves.
+     */
+    protected boolean runsInBackground() {
+        return false;
+    }
+
+    /**
+     * Called when the plugin is attached to an engine, before the first frame of the engine. Keep it short, and move
+     * anything that is not needed until the channel is used to {@link #whenFirstCalled}.
+     */
     protected abstract void whenAttachedToEngine(@NonNull FlutterPluginBinding binding);
 
+    /**
+     * Called once before handling the first call of the channel, on the same thread as {@link #handler}.
+     */
+    protected void whenFirstCalled(@NonNull FlutterPluginBinding binding) {
+    }
+
     @Override
     public final void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
+        Trace.beginSection(Utility.format("attach %s", channelName));
+        try {
+            attach(binding);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void attach(@NonNull FlutterPluginBinding binding) {
         whenAttachedToEngine(binding);
-        channel = new MethodChannel(binding.getBinaryMessenger(), channelName, JSONMethodCodec.INSTANCE);
+        BinaryMessenger messenger = binding.getBinaryMessenger();
+        boolean background = runsInBackground();
+        BinaryMessenger.TaskQueue taskQueue = background ? messenger.makeBackgroundTaskQueue() : null;
+
+        MethodChannelMetrics.MeasuringMethodCodec codec = new MethodChannelMetrics.MeasuringMethodCodec(JSONMethodCodec.INSTANCE);
+        channel = new MethodChannel(messenger, channelName, codec, taskQueue);
         channel.setMethodCallHandler(
                 (method, result) -> {
+                    MethodChannel.Result reply = background ? new MainThreadResult(result) : result;
+                    MethodChannel.Result measured = MethodChannelMetrics.start(channelName, method, codec.getLastPayloadBytes(), reply);
                     try {
-                        handler(method, result, binding);
+                        if (!activated) {
+                            activated = true;
+                            Trace.beginSection(Utility.format("activate %s", channelName));
+                            try {
+                                whenFirstCalled(binding);
+                            } finally {
+                                Trace.endSection();
+                            }
+                        }
+
+                        handler(method, measured, binding);
                     } catch (Throwable error) {
-                        sendError(result, error);
+                        sendError(measured, error);
                     }
                 }
         );
     }
 
+    @Override
+    public void onAttachedToActivity(@NonNull ActivityPluginBinding binding) {
+        activity = binding.getActivity();
+    }
+
+    @Override
+    public void onDetachedFromActivityForConfigChanges() {
+        activity = null;
+    }
+
+    @Override
+    public void onReattachedToActivityForConfigChanges(@NonNull ActivityPluginBinding binding) {
+        activity = binding.getActivity();
+    }
+
+    @Override
+    public void onDetachedFromActivity() {
+        activity = null;
+    }
+
+    /**
+     * Start an activity from the attached {@link #activity}, or as a new task if no activity is attached.
+     */
+    protected void startActivity(@NonNull Context context, @NonNull Intent intent) {
+        if (activity != null) {
+            activity.startActivity(intent);
+        } else {
+            context.startActivity(intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+        }
+    }
+
     public void sendError(MethodChannel.Result result, Throwable error) {
         error.printStackTrace();
-        Utility.log(Utility.LogLevel.ERROR, error.toString());
+        Logger.log(Utility.LogLevel.ERROR, "%s", error);
         result.error(error.getClass().getName(), error.getMessage(), error.getCause());
     }
 }
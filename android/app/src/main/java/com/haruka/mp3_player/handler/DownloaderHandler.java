@@ -1,18 +1,29 @@
 package com.haruka.mp3_player.handler;
 
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
 import androidx.annotation.NonNull;
 
 import com.haruka.mp3_player.DownloadController;
+import com.haruka.mp3_player.StreamCache;
+import com.haruka.mp3_player.Utility;
 
+import java.io.File;
 import java.net.URL;
+import java.util.HashMap;
 
-import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 
 public class DownloaderHandler extends AbstractMethodChannelPlugin {
-    public DownloaderHandler(@NonNull FlutterActivity flutterActivity) {
-        super(flutterActivity, "com.haruka.mp3_player/downloader");
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public DownloaderHandler() {
+        super("com.haruka.mp3_player/downloader");
     }
 
     @Override
@@ -36,7 +47,33 @@ public class DownloaderHandler extends AbstractMethodChannelPlugin {
                     description,
                     binding.getApplicationContext()
             );
-            manager.task.addDoneCallback(() -> result.success(null))
+            manager.task.addDoneCallback(
+                            () -> {
+                                result.success(null);
+                                notifyLibraryChanged(manager.ingest());
+                            }
+                    )
+                    .addErrorCallback((e) -> sendError(result, e))
+                    .run();
+        } else if (method.method.equals("promote")) {
+            String url = method.argument("url");
+            assert url != null;
+
+            String cacheKey = method.argument("cacheKey");
+
+            String outputFilePath = method.argument("outputFilePath");
+            assert outputFilePath != null;
+
+            // In separate-process mode the stream cache belongs to the playback process, which cannot share it with
+            // this one: the track is downloaded again in full and the result is 0
+            Context context = binding.getApplicationContext();
+            new Utility.ThreadingTask<>(() -> StreamCache.promote(context, Uri.parse(url), cacheKey, new File(outputFilePath)))
+                    .addDoneCallback(
+                            (cachedBytes) -> {
+                                result.success(cachedBytes);
+                                notifyLibraryChanged(DownloadController.ingest(context, outputFilePath, null));
+                            }
+                    )
                     .addErrorCallback((e) -> sendError(result, e))
                     .run();
         } else {
@@ -44,6 +81,17 @@ public class DownloaderHandler extends AbstractMethodChannelPlugin {
         }
     }
 
+    /**
+     * Send a file that was just ingested to the Flutter side, as an {@code onLibraryChanged} call.
+     */
+    private void notifyLibraryChanged(@NonNull HashMap<String, Object> item) {
+        mainHandler.post(
+                () -> {
+                    if (channel != null) channel.invokeMethod("onLibraryChanged", item);
+                }
+        );
+    }
+
     @Override
     protected void whenAttachedToEngine(@NonNull FlutterPluginBinding binding) {
     }
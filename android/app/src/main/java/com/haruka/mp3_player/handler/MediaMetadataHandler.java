@@ -1,108 +1,212 @@
 package com.haruka.mp3_player.handler;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import android.content.Context;
 import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
 
-import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 
-import static android.media.MediaMetadataRetriever.*;
-
-import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.LibraryIndex;
+import com.haruka.mp3_player.MetadataExtractor;
 import com.haruka.mp3_player.Utility;
 
 /**
  * A {@link FlutterPlugin} that handles requests related to audio metadata.
  */
 public class MediaMetadataHandler extends AbstractMethodChannelPlugin {
-    private int thumbnailCounter = 0;
-    private static final MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+    private static final int DEFAULT_PAGE_SIZE = 64;
+
+    // Shared by every engine, bounded so that hydrating a large playlist does not starve the device
+    @NonNull
+    private static final ExecutorService hydrationExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()))
+    );
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Each engine has its own instance of this plugin, running on its own task queue. Created with the first call,
+    // so that registering the plugin stays cheap.
+    @Nullable
+    private MediaMetadataRetriever mediaMetadataRetriever;
 
     /**
      * Construct a new {@link MediaMetadataHandler} instance.
-     *
-     * @param flutterActivity The {@link FlutterActivity} that registers this plugin.
      */
-    public MediaMetadataHandler(@NonNull FlutterActivity flutterActivity) {
-        super(flutterActivity, "com.haruka.mp3_player/media_metadata");
+    public MediaMetadataHandler() {
+        super("com.haruka.mp3_player/media_metadata");
+    }
+
+    @Override
+    protected boolean runsInBackground() {
+        return true;
     }
 
     @Override
     protected void handler(@NonNull MethodCall method, @NonNull MethodChannel.Result result, @NonNull FlutterPluginBinding binding) throws Exception {
-        mediaMetadataRetriever.setDataSource(method.<String>argument("path"));
+        Context context = binding.getApplicationContext();
+
+        File cacheDir = context.getCacheDir();
         switch (method.method) {
             case "extractMetadata":
-                HashMap<String, String> metadata = new HashMap<>();
-                metadata.put("album", mediaMetadataRetriever.extractMetadata(METADATA_KEY_ALBUM));
-                metadata.put("album_artist", mediaMetadataRetriever.extractMetadata(METADATA_KEY_ALBUMARTIST));
-                metadata.put("artist", mediaMetadataRetriever.extractMetadata(METADATA_KEY_ARTIST));
-                metadata.put("author", mediaMetadataRetriever.extractMetadata(METADATA_KEY_AUTHOR));
-                metadata.put("compilation", mediaMetadataRetriever.extractMetadata(METADATA_KEY_COMPILATION));
-                metadata.put("composer", mediaMetadataRetriever.extractMetadata(METADATA_KEY_COMPOSER));
-                metadata.put("date", mediaMetadataRetriever.extractMetadata(METADATA_KEY_DATE));
-                metadata.put("duration", mediaMetadataRetriever.extractMetadata(METADATA_KEY_DURATION));
-                metadata.put("genre", mediaMetadataRetriever.extractMetadata(METADATA_KEY_GENRE));
-                metadata.put("mimetype", mediaMetadataRetriever.extractMetadata(METADATA_KEY_MIMETYPE));
-                metadata.put("title", mediaMetadataRetriever.extractMetadata(METADATA_KEY_TITLE));
-                metadata.put("year", mediaMetadataRetriever.extractMetadata(METADATA_KEY_YEAR));
+                String path = method.argument("path");
+                assert path != null;
+
+                assert mediaMetadataRetriever != null;
+                try {
+                    mediaMetadataRetriever.setDataSource(path);
+                } catch (RuntimeException error) {
+                    // Deleted or no longer readable
+                    LibraryIndex.getInstance(context).remove(Collections.singletonList(path));
+                    throw error;
+                }
 
+                HashMap<String, String> metadata = MetadataExtractor.extractMetadata(mediaMetadataRetriever);
+                LibraryIndex.getInstance(context).index(Collections.singletonMap(path, metadata));
                 result.success(metadata);
                 break;
 
             case "getEmbeddedPicture":
-                byte[] artwork = mediaMetadataRetriever.getEmbeddedPicture(); // May spit out errors when returns null, ignore it.
-                if (artwork == null) {
+                String picturePath = method.argument("path");
+                assert picturePath != null;
+
+                assert mediaMetadataRetriever != null;
+                mediaMetadataRetriever.setDataSource(picturePath);
+                String thumbnailPath = MetadataExtractor.writeThumbnail(cacheDir, picturePath, mediaMetadataRetriever);
+                if (thumbnailPath == null) {
                     result.success(null);
                 } else {
-                    File outputFile = new File(flutterActivity.getCacheDir().getAbsolutePath(), Utility.format("thumbnail_%d.png", thumbnailCounter++));
-                    while (!outputFile.createNewFile()) {
-                        outputFile = new File(flutterActivity.getCacheDir().getAbsolutePath(), Utility.format("thumbnail_%d.png", thumbnailCounter++));
-                    }
-
-                    try (FileOutputStream stream = new FileOutputStream(outputFile)) {
-                        stream.write(artwork);
-                    }
-
                     HashMap<String, String> artworkData = new HashMap<>();
-                    artworkData.put("path", outputFile.getAbsolutePath());
+                    artworkData.put("path", thumbnailPath);
                     result.success(artworkData);
                 }
                 break;
 
+            case "hydratePlaylist":
+                JSONArray paths = method.argument("paths");
+                assert paths != null;
+
+                Integer requestId = method.argument("requestId");
+                assert requestId != null;
+
+                Integer pageSize = method.argument("pageSize");
+
+                ArrayList<String> pathsList = new ArrayList<>();
+                for (int i = 0; i < paths.length(); i++) {
+                    pathsList.add(paths.getString(i));
+                }
+
+                hydrate(context, pathsList, requestId, pageSize != null && pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE, result);
+                break;
+
+            case "searchLibrary":
+                String query = method.argument("query");
+                assert query != null;
+
+                Integer offset = method.argument("offset");
+                Integer limit = method.argument("limit");
+                result.success(
+                        LibraryIndex.getInstance(context)
+                                .search(query, offset != null ? offset : 0, limit != null ? limit : DEFAULT_PAGE_SIZE)
+                                .toMap()
+                );
+                break;
+
+            case "setIndexedTitle":
+                String titlePath = method.argument("path");
+                String title = method.argument("title");
+                assert titlePath != null && title != null;
+
+                LibraryIndex.getInstance(context).setTitle(titlePath, title);
+                result.success(null);
+                break;
+
+            case "pruneLibraryIndex":
+                result.success(LibraryIndex.getInstance(context).prune());
+                break;
+
             default:
                 result.notImplemented();
         }
     }
 
-    @Override
-    protected void whenAttachedToEngine(@NonNull FlutterPluginBinding binding) {
-        if (!Utility.serviceIsRunning(binding.getApplicationContext(), MediaPlayerService.class)) {
-            removeFileEntity(flutterActivity.getCacheDir(), false);
+    /**
+     * Hydrate a whole playlist in parallel. Pages are sent back in order as {@code hydratePlaylistPage} calls as
+     * soon as they are complete, then {@code result} receives the number of items.
+     */
+    private void hydrate(
+            @NonNull Context context,
+            @NonNull ArrayList<String> paths,
+            int requestId,
+            int pageSize,
+            @NonNull MethodChannel.Result result
+    ) {
+        File cacheDir = context.getCacheDir();
+        ArrayList<Future<HashMap<String, Object>>> futures = new ArrayList<>();
+        for (String path : paths) {
+            futures.add(hydrationExecutor.submit(() -> MetadataExtractor.extract(path, cacheDir, null)));
         }
+
+        // Collect pages away from the task queue, so that other metadata calls are not blocked meanwhile
+        new Utility.ThreadingTask<>(
+                () -> {
+                    for (int offset = 0; offset < futures.size(); offset += pageSize) {
+                        ArrayList<HashMap<String, Object>> items = new ArrayList<>();
+                        for (int i = offset; i < Math.min(offset + pageSize, futures.size()); i++) {
+                            items.add(futures.get(i).get());
+                        }
+
+                        // One transaction per page, dropping the tracks that are gone
+                        LibraryIndex.getInstance(context).update(items);
+
+                        HashMap<String, Object> page = new HashMap<>();
+                        page.put("requestId", requestId);
+                        page.put("offset", offset);
+                        page.put("items", items);
+                        mainHandler.post(
+                                () -> {
+                                    if (channel != null) channel.invokeMethod("hydratePlaylistPage", page);
+                                }
+                        );
+                    }
+
+                    return futures.size();
+                }
+        )
+                .addDoneCallback(result::success)
+                .addErrorCallback((e) -> sendError(result, e))
+                .run();
     }
 
     @Override
-    public void onDetachedFromEngine(@NonNull FlutterPlugin.FlutterPluginBinding binding) {
+    protected void whenAttachedToEngine(@NonNull FlutterPluginBinding binding) {
     }
 
-    private void removeFileEntity(@NonNull File entity, boolean deleteSelf) {
-        if (entity.isDirectory()) {
-            File[] content = entity.listFiles();
-            for (File f : content != null ? content : new File[]{}) {
-                removeFileEntity(f, true);
-            }
-        }
+    @Override
+    protected void whenFirstCalled(@NonNull FlutterPluginBinding binding) {
+        Context context = binding.getApplicationContext();
+        mediaMetadataRetriever = new MediaMetadataRetriever();
+        MetadataExtractor.removeStaleThumbnails(context);
+        new Utility.ThreadingTask<>(() -> LibraryIndex.getInstance(context).prune()).run();
+    }
 
-        if (deleteSelf) {
-            boolean result = entity.delete();
-            assert result;
-        }
+    @Override
+    public void onDetachedFromEngine(@NonNull FlutterPlugin.FlutterPluginBinding binding) {
     }
 }
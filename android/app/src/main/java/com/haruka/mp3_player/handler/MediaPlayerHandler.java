@@ -1,17 +1,29 @@
 package com.haruka.mp3_player.handler;
 
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.media3.common.MediaItem;
-import androidx.media3.common.MediaMetadata;
-import androidx.media3.common.Player;
 
+import com.haruka.mp3_player.MainActivity;
 import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+import com.haruka.mp3_player.PlaybackQos;
+import com.haruka.mp3_player.PlaybackSnapshot;
+import com.haruka.mp3_player.RemoteMediaPlayerService;
+import com.haruka.mp3_player.StreamCache;
 import com.haruka.mp3_player.Utility;
 
 import org.json.JSONArray;
@@ -20,61 +32,241 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Objects;
 
-import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 
 /**
  * A {@link FlutterPlugin} that handles audio playback requests.
+ * <p>
+ * Commands and state updates are exchanged with {@link MediaPlayerService} through {@link PlaybackProtocol}
+ * messages, which work whether or not the service runs in its own process.
  */
 public class MediaPlayerHandler extends AbstractMethodChannelPlugin {
-    public class PlayerStateReceiver extends BroadcastReceiver {
-        public static final String UPDATE_STATE_ACTION = "com.haruka.mp3_player.UPDATE_STATE_ACTION";
-        public static final String INDEX_KEY = "INDEX";
-        public static final String CURRENT_POSITION_KEY = "CURRENT_POSITION";
-        public static final String DURATION_KEY = "DURATION";
-        public static final String IS_PLAYING_KEY = "IS_PLAYING";
-        public static final String PLAYLIST_ID_KEY = "PLAYLIST_ID";
-        public static final String REPEAT_KEY = "REPEAT";
-        public static final String SHUFFLE_KEY = "SHUFFLE";
-
-        public static final String UPDATE_STATE_CHANNEL_METHOD = "UPDATE_STATE_CHANNEL_METHOD";
+    public static final String UPDATE_STATE_CHANNEL_METHOD = "UPDATE_STATE_CHANNEL_METHOD";
 
+    // The messenger of the connected service, or null if the service is not running
+    @Nullable
+    private Messenger service;
+
+    // Receives the replies and state updates of the service
+    @NonNull
+    private final Messenger client = new Messenger(new Handler(Looper.getMainLooper(), this::handleMessage));
+
+    // Power-saving settings, applied again whenever the service (re)connects
+    private boolean powerSaving = false;
+    private long idleReleaseMs = 0;
+    private long idleStopMs = 0;
+
+    // Pending getPowerStats and getPlaybackQos calls, by request ID
+    @NonNull
+    private final HashMap<Integer, MethodChannel.Result> requests = new HashMap<>();
+    private int nextRequestId = 0;
+
+    // Commands issued while the service is starting, sent in order once it is connected
+    @NonNull
+    private final ArrayList<Runnable> pending = new ArrayList<>();
+    private boolean starting = false;
+
+    @NonNull
+    private Class<? extends MediaPlayerService> serviceClass = MediaPlayerService.class;
+
+    @NonNull
+    private final ServiceConnection connection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            assert Objects.equals(intent.getAction(), UPDATE_STATE_ACTION);
-            if (channel != null) {
-                HashMap<String, Object> data = new HashMap<>();
-                data.put(CURRENT_POSITION_KEY, intent.getLongExtra(CURRENT_POSITION_KEY, 0));
-                data.put(DURATION_KEY, intent.getLongExtra(DURATION_KEY, 0));
-                data.put(INDEX_KEY, intent.getIntExtra(INDEX_KEY, 0));
-                data.put(IS_PLAYING_KEY, intent.getBooleanExtra(IS_PLAYING_KEY, false));
-                data.put(PLAYLIST_ID_KEY, intent.getIntExtra(PLAYLIST_ID_KEY, -1));
-                data.put(REPEAT_KEY, intent.getIntExtra(REPEAT_KEY, Player.REPEAT_MODE_OFF));
-                data.put(SHUFFLE_KEY, intent.getBooleanExtra(SHUFFLE_KEY, false));
-
-                channel.invokeMethod(UPDATE_STATE_CHANNEL_METHOD, data);
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = new Messenger(binder);
+            starting = false;
+
+            Message register = PlaybackProtocol.obtain(PlaybackProtocol.REGISTER_CLIENT, null);
+            register.replyTo = client;
+            send(register);
+            send(PlaybackProtocol.SET_POWER_SAVING, getPowerSavingArguments());
+
+            ArrayList<Runnable> commands = new ArrayList<>(pending);
+            pending.clear();
+            for (Runnable command : commands) {
+                command.run();
             }
         }
-    }
 
-    @NonNull
-    private final PlayerStateReceiver receiver = new PlayerStateReceiver();
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // The playback process has died
+            disconnect();
+        }
+    };
 
     /**
      * Initialize a new {@link MediaPlayerHandler}
+     */
+    public MediaPlayerHandler() {
+        super("com.haruka.mp3_player/player");
+    }
+
+    private void disconnect() {
+        service = null;
+        starting = false;
+        pending.clear();
+        for (MethodChannel.Result result : requests.values()) {
+            result.success(null);
+        }
+
+        requests.clear();
+    }
+
+    /**
+     * Handle a {@link PlaybackProtocol} message from the service.
+     */
+    private boolean handleMessage(@NonNull Message message) {
+        switch (message.what) {
+            case PlaybackProtocol.STATE:
+                if (channel != null) channel.invokeMethod(UPDATE_STATE_CHANNEL_METHOD, PlaybackProtocol.stateToMap(message.getData()));
+                break;
+
+            case PlaybackProtocol.POWER_STATS:
+                reply(message, MediaPlayerService.PowerStats.toMap(message.getData()));
+                break;
+
+            case PlaybackProtocol.QOS:
+                reply(message, PlaybackQos.toMap(message.getData()));
+                break;
+
+            case PlaybackProtocol.CACHE_SIZES:
+                reply(message, PlaybackProtocol.longsToMap(message.getData()));
+                break;
+
+            case PlaybackProtocol.DESTROYED:
+                // Stopped normally, the connection is established again whenever the service is started
+                disconnect();
+                break;
+
+            default:
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Pass the data of a reply to the call waiting for it.
+     */
+    private void reply(@NonNull Message message, @NonNull HashMap<String, Object> data) {
+        MethodChannel.Result result = requests.remove(message.arg1);
+        if (result != null) result.success(data);
+    }
+
+    /**
+     * Send a message to the service.
      *
-     * @param flutterActivity The {@link FlutterActivity} that registers this plugin.
+     * @return Whether the service is running and received the message
      */
-    public MediaPlayerHandler(@NonNull FlutterActivity flutterActivity) {
-        super(flutterActivity, "com.haruka.mp3_player/player");
+    private boolean send(@NonNull Message message) {
+        if (service == null) return false;
+
+        try {
+            service.send(message);
+            return true;
+        } catch (RemoteException error) {
+            disconnect();
+            return false;
+        }
+    }
+
+    private boolean send(int what, @Nullable Bundle data) {
+        return send(PlaybackProtocol.obtain(what, data));
+    }
+
+    private boolean sendWithItems(int what, @NonNull Bundle arguments, @NonNull ArrayList<Bundle> items) {
+        if (service == null) return false;
+
+        try {
+            PlaybackProtocol.sendWithItems(service, what, arguments, items);
+            return true;
+        } catch (RemoteException error) {
+            disconnect();
+            return false;
+        }
+    }
+
+    /**
+     * Run a command now if the service is connected, or once it is connected if it is starting.
+     *
+     * @return Whether the command was run or queued, i.e. {@code false} if the service is not running
+     */
+    private boolean whenConnected(@NonNull Runnable command) {
+        if (service != null) {
+            command.run();
+            return true;
+        }
+
+        if (starting) {
+            pending.add(command);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Start the service with an action that carries no payload, the connection is then established by the binding
+     * made in {@link #whenAttachedToEngine}.
+     */
+    private void start(@NonNull Context context, @NonNull String action) {
+        starting = true;
+
+        Intent intent = new Intent(context, serviceClass);
+        intent.setAction(action);
+        context.startService(intent);
+    }
+
+    /**
+     * Send a command to the service, or queue it if the service is starting. A command is dropped if the service
+     * is not running.
+     */
+    private void post(int what, @Nullable Bundle data) {
+        whenConnected(() -> send(what, data));
+    }
+
+    /**
+     * Send a request to the service, {@code result} receives the data of the reply, or {@code null} if the service
+     * is not running.
+     */
+    private void request(int what, @NonNull MethodChannel.Result result) {
+        boolean sent = whenConnected(
+                () -> {
+                    int requestId = nextRequestId++;
+                    Message request = PlaybackProtocol.obtain(what, null);
+                    request.arg1 = requestId;
+                    request.replyTo = client;
+
+                    requests.put(requestId, result);
+                    if (!send(request)) {
+                        requests.remove(requestId);
+                        result.success(null);
+                    }
+                }
+        );
+
+        if (!sent) result.success(null);
     }
 
     @NonNull
-    private ArrayList<Bundle> getTracksList(@NonNull JSONArray tracks) throws JSONException {
+    private Bundle getPowerSavingArguments() {
+        Bundle arguments = new Bundle();
+        arguments.putBoolean(PlaybackProtocol.ENABLED_KEY, powerSaving);
+        arguments.putLong(PlaybackProtocol.IDLE_RELEASE_MS_KEY, idleReleaseMs);
+        arguments.putLong(PlaybackProtocol.IDLE_STOP_MS_KEY, idleStopMs);
+        return arguments;
+    }
+
+    /**
+     * Convert the tracks of a {@code play} or {@code add} call to {@link MediaItem} bundles.
+     */
+    @VisibleForTesting
+    @NonNull
+    static ArrayList<Bundle> getTracksList(@NonNull JSONArray tracks) throws JSONException {
         ArrayList<Bundle> bundles = new ArrayList<>();
         for (int i = 0; i < tracks.length(); i++) {
             JSONObject data = tracks.getJSONObject(i);
@@ -87,23 +279,10 @@ public class MediaPlayerHandler extends AbstractMethodChannelPlugin {
             String artist = data.getString("artist");
             if (data.isNull("artist")) artist = null;
 
-            MediaItem mediaItem = new MediaItem.Builder()
-                    .setMediaMetadata(
-                            new MediaMetadata.Builder()
-                                    .setArtist(artist)
-                                    .setArtworkUri(thumbnailUri != null ? Utility.uriFromFile(thumbnailUri) : null)
-                                    .setMediaType(MediaMetadata.MEDIA_TYPE_MUSIC)
-                                    .setTitle(title)
-                                    .build()
-                    )
-                    .setRequestMetadata(
-                            new MediaItem.RequestMetadata.Builder()
-                                    .setMediaUri(Utility.uriFromFile(uri))
-                                    .build()
-                    )
-                    .setUri(uri)
-                    .build();
+            // Only remote tracks streamed from YouTube have a cache key
+            String cacheKey = data.isNull("cacheKey") ? null : data.getString("cacheKey");
 
+            MediaItem mediaItem = PlaybackSnapshot.createMediaItem(uri, title, artist, thumbnailUri, cacheKey);
             bundles.add(mediaItem.toBundle());
         }
 
@@ -113,22 +292,13 @@ public class MediaPlayerHandler extends AbstractMethodChannelPlugin {
     @Override
     protected void handler(@NonNull MethodCall method, @NonNull MethodChannel.Result result, @NonNull FlutterPluginBinding binding) throws Exception {
         Context context = binding.getApplicationContext();
-        Intent intent = new Intent(), serviceIntent = new Intent(context, MediaPlayerService.class);
         switch (method.method) {
             case "add":
                 JSONArray addTracks = method.argument("tracks");
                 assert addTracks != null;
 
-                Bundle addBundle = new Bundle();
-                addBundle.putParcelableArrayList(
-                        MediaPlayerService.MediaControlReceiver.TRACKS_BUNDLE_LIST_KEY,
-                        getTracksList(addTracks)
-                );
-
-                intent.setAction(MediaPlayerService.MediaControlReceiver.ADD_ACTION);
-                intent.putExtra(MediaPlayerService.MediaControlReceiver.TRACK_BUNDLE_KEY, addBundle);
-
-                context.sendBroadcast(intent);
+                ArrayList<Bundle> addItems = getTracksList(addTracks);
+                whenConnected(() -> sendWithItems(PlaybackProtocol.ADD, new Bundle(), addItems));
                 result.success(null);
                 break;
 
@@ -142,82 +312,139 @@ public class MediaPlayerHandler extends AbstractMethodChannelPlugin {
                 Integer index = method.argument("index");
                 assert index != null;
 
-                serviceIntent.setAction(MediaPlayerService.MediaControlReceiver.PLAY_ACTION);
-                serviceIntent.putExtra(MediaPlayerService.MediaControlReceiver.PLAYLIST_ID_KEY, playlistId);
-                serviceIntent.putExtra(MediaPlayerService.MediaControlReceiver.INITIAL_INDEX_KEY, index);
+                Integer windowRadius = method.argument("windowRadius");
+                String bufferProfile = method.argument("bufferProfile");
+
+                Bundle arguments = new Bundle();
+                arguments.putInt(PlaybackProtocol.PLAYLIST_ID_KEY, playlistId);
+                arguments.putInt(PlaybackProtocol.INDEX_KEY, index);
+                arguments.putInt(PlaybackProtocol.WINDOW_RADIUS_KEY, windowRadius != null ? windowRadius : 0);
+                arguments.putString(PlaybackProtocol.BUFFER_PROFILE_KEY, bufferProfile);
+
+                ArrayList<Bundle> items = getTracksList(tracks);
+                Runnable play = () -> sendWithItems(PlaybackProtocol.PLAY, arguments, items);
+                if (!whenConnected(play)) {
+                    // The service is not running yet. A start intent cannot hold a large queue, so the tracks follow
+                    // in chunked messages once the connection is established.
+                    start(context, MediaPlayerService.MediaControlReceiver.START_ACTION);
+                    pending.add(play);
+                }
 
-                Bundle bundle = new Bundle();
-                bundle.putParcelableArrayList(
-                        MediaPlayerService.MediaControlReceiver.PLAYLIST_BUNDLE_LIST_KEY,
-                        getTracksList(tracks)
-                );
-                serviceIntent.putExtra(MediaPlayerService.MediaControlReceiver.PLAYLIST_BUNDLE_KEY, bundle);
+                // The playing screen is usually opened right after
+                MainActivity.warmUpPlayingScreenEngine(context);
 
-                flutterActivity.startService(serviceIntent);
                 result.success(null);
                 break;
 
             case "pause":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.PAUSE_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.PAUSE, null);
                 result.success(null);
                 break;
 
             case "remove":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.REMOVE_ACTION);
-
                 Integer removeIndex = method.argument("index");
                 assert removeIndex != null;
-                intent.putExtra(MediaPlayerService.MediaControlReceiver.REMOVE_INDEX_KEY, removeIndex);
 
-                context.sendBroadcast(intent);
+                Bundle removeArguments = new Bundle();
+                removeArguments.putInt(PlaybackProtocol.INDEX_KEY, removeIndex);
+                post(PlaybackProtocol.REMOVE, removeArguments);
                 result.success(null);
                 break;
 
             case "resume":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.RESUME_ACTION);
-                context.sendBroadcast(intent);
+                if (!whenConnected(() -> send(PlaybackProtocol.RESUME, null))) {
+                    // Let the service restore its last snapshot
+                    start(context, MediaPlayerService.MediaControlReceiver.RESUME_ACTION);
+                }
+
                 result.success(null);
                 break;
 
             case "seek":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.SEEK_ACTION);
-
                 Integer seekPosition = method.argument("positionMs");
                 assert seekPosition != null;
-                intent.putExtra(MediaPlayerService.MediaControlReceiver.POSITION_MS_KEY, seekPosition);
 
-                context.sendBroadcast(intent);
+                Bundle seekArguments = new Bundle();
+                seekArguments.putLong(PlaybackProtocol.POSITION_MS_KEY, seekPosition);
+                post(PlaybackProtocol.SEEK, seekArguments);
                 result.success(null);
                 break;
 
             case "next":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.NEXT_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.NEXT, null);
                 result.success(null);
                 break;
 
             case "previous":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.PREVIOUS_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.PREVIOUS, null);
                 result.success(null);
                 break;
 
             case "stop":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.STOP_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.STOP, null);
                 result.success(null);
                 break;
 
             case "toggleRepeat":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.SWITCH_REPEAT_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.TOGGLE_REPEAT, null);
+                result.success(null);
+                break;
+
+            case "setPowerSaving":
+                Boolean enabled = method.argument("enabled");
+                assert enabled != null;
+
+                Number idleRelease = method.argument("idleReleaseMs");
+                Number idleStop = method.argument("idleStopMs");
+
+                powerSaving = enabled;
+                idleReleaseMs = idleRelease != null ? idleRelease.longValue() : 0;
+                idleStopMs = idleStop != null ? idleStop.longValue() : 0;
+                send(PlaybackProtocol.SET_POWER_SAVING, getPowerSavingArguments());
                 result.success(null);
                 break;
 
+            case "getPowerStats":
+                request(PlaybackProtocol.GET_POWER_STATS, result);
+                break;
+
+            case "getPlaybackQos":
+                request(PlaybackProtocol.GET_QOS, result);
+                break;
+
+            case "getCacheSizes":
+                // The caches of a service running in this process are already reported by the utils channel
+                if (PlaybackProtocol.isSeparateProcess(context)) {
+                    request(PlaybackProtocol.GET_CACHE_SIZES, result);
+                } else {
+                    result.success(null);
+                }
+                break;
+
             case "toggleShuffle":
-                intent.setAction(MediaPlayerService.MediaControlReceiver.SWITCH_SHUFFLE_ACTION);
-                context.sendBroadcast(intent);
+                post(PlaybackProtocol.TOGGLE_SHUFFLE, null);
+                result.success(null);
+                break;
+
+            case "setSeparateProcess":
+                Boolean separateProcess = method.argument("enabled");
+                assert separateProcess != null;
+
+                if (separateProcess != PlaybackProtocol.isSeparateProcess(context)) {
+                    // Both services would open the stream cache directory at once
+                    if (service != null || starting || Utility.anyServiceIsRunning(context, MediaPlayerService.class, RemoteMediaPlayerService.class)) {
+                        throw new IllegalStateException("Stop playback before moving it to another process");
+                    }
+
+                    context.unbindService(connection);
+                    disconnect();
+                    PlaybackProtocol.setSeparateProcess(context, separateProcess);
+
+                    // The stream cache directory now belongs to the playback process
+                    if (separateProcess) StreamCache.release();
+                    bind(context);
+                }
+
                 result.success(null);
                 break;
 
@@ -226,14 +453,28 @@ public class MediaPlayerHandler extends AbstractMethodChannelPlugin {
         }
     }
 
+    /**
+     * Bind to the service class chosen by {@link PlaybackProtocol#isSeparateProcess}.
+     */
+    private void bind(@NonNull Context context) {
+        serviceClass = PlaybackProtocol.getServiceClass(context);
+
+        // Without BIND_AUTO_CREATE, the connection is established whenever the service is started
+        context.bindService(new Intent(context, serviceClass), connection, 0);
+    }
+
     @Override
     protected void whenAttachedToEngine(@NonNull FlutterPlugin.FlutterPluginBinding binding) {
-        IntentFilter intentFilter = new IntentFilter(PlayerStateReceiver.UPDATE_STATE_ACTION);
-        binding.getApplicationContext().registerReceiver(receiver, intentFilter);
+        bind(binding.getApplicationContext());
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPlugin.FlutterPluginBinding binding) {
-        binding.getApplicationContext().unregisterReceiver(receiver);
+        Message unregister = PlaybackProtocol.obtain(PlaybackProtocol.UNREGISTER_CLIENT, null);
+        unregister.replyTo = client;
+        send(unregister);
+
+        binding.getApplicationContext().unbindService(connection);
+        disconnect();
     }
 }
@@ -0,0 +1,292 @@
+package com.haruka.mp3_player.handler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.haruka.mp3_player.Logger;
+import com.haruka.mp3_player.Utility;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodCodec;
+
+/**
+ * Per-channel, per-method call statistics of every {@link AbstractMethodChannelPlugin}.
+ * <p>
+ * Recording a call only touches atomic counters, so that the instrumentation can stay enabled in production
+ * builds. Latencies are measured until the {@link MethodChannel.Result} is completed, which includes the
+ * background work of asynchronous handlers.
+ */
+public class MethodChannelMetrics {
+    /**
+     * Latency histogram buckets: bucket {@code i} counts the calls that took less than {@code 2^i} microseconds,
+     * the last bucket counts the rest.
+     */
+    public static final int HISTOGRAM_BUCKETS = 25;
+
+    public static class MethodStats {
+        public final AtomicLong calls = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong notImplemented = new AtomicLong();
+        public final AtomicLong totalNanos = new AtomicLong();
+        public final AtomicLong maxNanos = new AtomicLong();
+        public final AtomicLong payloadBytes = new AtomicLong();
+        public final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        private void record(long nanos) {
+            totalNanos.addAndGet(nanos);
+
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+
+            long micros = nanos / 1000;
+            int bucket = micros > 0 ? 64 - Long.numberOfLeadingZeros(micros) : 0;
+            histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+        }
+
+        @NonNull
+        public HashMap<String, Object> toMap() {
+            long calls = this.calls.get();
+            ArrayList<Long> buckets = new ArrayList<>();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                buckets.add(histogram.get(i));
+            }
+
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("calls", calls);
+            result.put("errors", errors.get());
+            result.put("notImplemented", notImplemented.get());
+            result.put("totalMicros", totalNanos.get() / 1000);
+            result.put("meanMicros", calls > 0 ? totalNanos.get() / 1000 / calls : 0);
+            result.put("maxMicros", maxNanos.get() / 1000);
+            result.put("payloadBytes", payloadBytes.get());
+            result.put("histogram", buckets);
+            return result;
+        }
+    }
+
+    /**
+     * A {@link MethodCodec} that remembers the size of the last decoded call, so that payload sizes are known
+     * without encoding the arguments again.
+     * <p>
+     * A channel decodes a call and dispatches it on the same thread, one call at a time.
+     */
+    static class MeasuringMethodCodec implements MethodCodec {
+        @NonNull
+        private final MethodCodec codec;
+        private int lastPayloadBytes = 0;
+
+        MeasuringMethodCodec(@NonNull MethodCodec codec) {
+            this.codec = codec;
+        }
+
+        int getLastPayloadBytes() {
+            return lastPayloadBytes;
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer encodeMethodCall(@NonNull MethodCall methodCall) {
+            return codec.encodeMethodCall(methodCall);
+        }
+
+        @NonNull
+        @Override
+        public MethodCall decodeMethodCall(@NonNull ByteBuffer methodCall) {
+            lastPayloadBytes = methodCall.remaining();
+            return codec.decodeMethodCall(methodCall);
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer encodeSuccessEnvelope(@Nullable Object result) {
+            return codec.encodeSuccessEnvelope(result);
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer encodeErrorEnvelope(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            return codec.encodeErrorEnvelope(errorCode, errorMessage, errorDetails);
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer encodeErrorEnvelopeWithStacktrace(
+                @NonNull String errorCode,
+                @Nullable String errorMessage,
+                @Nullable Object errorDetails,
+                @Nullable String errorStacktrace
+        ) {
+            return codec.encodeErrorEnvelopeWithStacktrace(errorCode, errorMessage, errorDetails, errorStacktrace);
+        }
+
+        @NonNull
+        @Override
+        public Object decodeEnvelope(@NonNull ByteBuffer envelope) {
+            return codec.decodeEnvelope(envelope);
+        }
+    }
+
+    /**
+     * A {@link MethodChannel.Result} recording the latency and outcome of a call when it completes.
+     */
+    private static class MeasuredResult implements MethodChannel.Result {
+        @NonNull
+        private final MethodChannel.Result result;
+        @NonNull
+        private final MethodStats stats;
+        private final long startNanos;
+
+        MeasuredResult(@NonNull MethodChannel.Result result, @NonNull MethodStats stats) {
+            this.result = result;
+            this.stats = stats;
+            this.startNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void success(@Nullable Object value) {
+            stats.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+            result.success(value);
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            stats.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+            stats.errors.incrementAndGet();
+            result.error(errorCode, errorMessage, errorDetails);
+        }
+
+        @Override
+        public void notImplemented() {
+            stats.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+            stats.notImplemented.incrementAndGet();
+            result.notImplemented();
+        }
+    }
+
+    // Channel name -> method name -> statistics
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, MethodStats>> channels = new ConcurrentHashMap<>();
+
+    @NonNull
+    private static final Handler dumpHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private static final Runnable dumpRunner = new Runnable() {
+        @Override
+        public void run() {
+            dump();
+            dumpHandler.postDelayed(this, dumpPeriodMs);
+        }
+    };
+
+    private static volatile long dumpPeriodMs = 0;
+
+    @NonNull
+    private static MethodStats getStats(@NonNull String channel, @NonNull String method) {
+        ConcurrentHashMap<String, MethodStats> methods = channels.get(channel);
+        if (methods == null) {
+            channels.putIfAbsent(channel, new ConcurrentHashMap<>());
+            methods = channels.get(channel);
+        }
+
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            methods.putIfAbsent(method, new MethodStats());
+            stats = methods.get(method);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Start measuring a call.
+     *
+     * @param channel      The name of the channel receiving the call.
+     * @param method       The method call.
+     * @param payloadBytes The size of the encoded call.
+     * @param result       The result of the call.
+     * @return A result to pass to the handler instead of {@code result}
+     */
+    @NonNull
+    static MethodChannel.Result start(
+            @NonNull String channel,
+            @NonNull MethodCall method,
+            int payloadBytes,
+            @NonNull MethodChannel.Result result
+    ) {
+        MethodStats stats = getStats(channel, method.method);
+        stats.calls.incrementAndGet();
+        stats.payloadBytes.addAndGet(payloadBytes);
+        return new MeasuredResult(result, stats);
+    }
+
+    /**
+     * @return A snapshot of all statistics, as channel name -> method name -> {@link MethodStats#toMap()}
+     */
+    @NonNull
+    public static HashMap<String, HashMap<String, HashMap<String, Object>>> getMetrics() {
+        HashMap<String, HashMap<String, HashMap<String, Object>>> result = new HashMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, MethodStats>> channel : channels.entrySet()) {
+            HashMap<String, HashMap<String, Object>> methods = new HashMap<>();
+            for (Map.Entry<String, MethodStats> method : channel.getValue().entrySet()) {
+                methods.put(method.getKey(), method.getValue().toMap());
+            }
+
+            result.put(channel.getKey(), methods);
+        }
+
+        return result;
+    }
+
+    /**
+     * Log a summary line for every method that has been called.
+     */
+    public static void dump() {
+        if (!Logger.isEnabled(Utility.LogLevel.INFO)) return;
+
+        for (Map.Entry<String, ConcurrentHashMap<String, MethodStats>> channel : channels.entrySet()) {
+            for (Map.Entry<String, MethodStats> method : channel.getValue().entrySet()) {
+                MethodStats stats = method.getValue();
+                long calls = stats.calls.get();
+                Logger.log(
+                        Utility.LogLevel.INFO,
+                        Utility.format(
+                                "%s.%s: %d calls, %d errors, mean %d us, max %d us, %s received",
+                                channel.getKey(),
+                                method.getKey(),
+                                calls,
+                                stats.errors.get(),
+                                calls > 0 ? stats.totalNanos.get() / 1000 / calls : 0,
+                                stats.maxNanos.get() / 1000,
+                                Utility.format(stats.payloadBytes.get())
+                        )
+                );
+            }
+        }
+    }
+
+    /**
+     * Periodically {@link #dump()} the statistics to the log.
+     *
+     * @param periodMs The dump period, or a non-positive value to stop dumping.
+     */
+    public static void setDumpPeriod(long periodMs) {
+        dumpPeriodMs = periodMs;
+        dumpHandler.removeCallbacks(dumpRunner);
+        if (periodMs > 0) dumpHandler.postDelayed(dumpRunner, periodMs);
+    }
+}
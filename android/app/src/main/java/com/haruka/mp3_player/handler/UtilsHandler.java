@@ -4,16 +4,21 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.webkit.MimeTypeMap;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 
+import com.haruka.mp3_player.CacheRegistry;
+import com.haruka.mp3_player.Logger;
+import com.haruka.mp3_player.Utility;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 
-import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
@@ -22,17 +27,23 @@ import io.flutter.plugin.common.MethodChannel;
  * A {@link FlutterPlugin} for utilities functions
  */
 public class UtilsHandler extends AbstractMethodChannelPlugin {
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Initialize a new {@link UtilsHandler}
-     *
-     * @param flutterActivity The {@link FlutterActivity} that registers this plugin.
      */
-    public UtilsHandler(@NonNull FlutterActivity flutterActivity) {
-        super(flutterActivity, "com.haruka.mp3_player/utils");
+    public UtilsHandler() {
+        super("com.haruka.mp3_player/utils");
+    }
+
+    @Override
+    protected boolean runsInBackground() {
+        return true;
     }
 
     @Override
-    protected void handler(@NonNull MethodCall method, @NonNull MethodChannel.Result result, @NonNull FlutterPluginBinding binding) {
+    protected void handler(@NonNull MethodCall method, @NonNull MethodChannel.Result result, @NonNull FlutterPluginBinding binding) throws Exception {
         Context context = binding.getApplicationContext();
         switch (method.method) {
             case "getSDKVersion":
@@ -52,8 +63,7 @@ public class UtilsHandler extends AbstractMethodChannelPlugin {
             case "launchUri":
                 Uri browserUri = Uri.parse(method.argument("uri"));
                 Intent browserIntent = new Intent(Intent.ACTION_VIEW, browserUri);
-                flutterActivity.startActivity(browserIntent);
-                result.success(null);
+                startActivityOnMainThread(context, browserIntent, result);
                 break;
 
             case "getExternalFilesDirs":
@@ -75,13 +85,41 @@ public class UtilsHandler extends AbstractMethodChannelPlugin {
                 shareIntent.setType(Intent.normalizeMimeType(mimeType == null ? "*/*" : mimeType));
                 shareIntent.putExtra(Intent.EXTRA_STREAM, shareUri);
 
-                flutterActivity.startActivity(Intent.createChooser(shareIntent, "Share this file"));
+                startActivityOnMainThread(context, Intent.createChooser(shareIntent, "Share this file"), result);
+                break;
+
+            case "getCacheSizes":
+                // Only the caches of this process: in separate-process mode, those of the playback service are
+                // reported by the player channel instead
+                result.success(CacheRegistry.getSizes());
+                break;
+
+            case "getMetrics":
+                result.success(MethodChannelMetrics.getMetrics());
+                break;
+
+            case "setMetricsDumpPeriod":
+                Number periodMs = method.argument("periodMs");
+                MethodChannelMetrics.setDumpPeriod(periodMs != null ? periodMs.longValue() : 0);
+                result.success(null);
+                break;
+
+            case "dumpLogs":
+                String logPath = method.argument("path");
+                assert logPath != null;
+
+                Logger.dump(new File(logPath));
+                result.success(null);
+                break;
+
+            case "setLogLevel":
+                Logger.setMinLevel(Utility.LogLevel.valueOf(method.argument("level")));
                 result.success(null);
                 break;
 
             case "showToast":
                 String content = method.argument("content");
-                Toast.makeText(context, content, Toast.LENGTH_LONG).show();
+                mainHandler.post(() -> Toast.makeText(context, content, Toast.LENGTH_LONG).show());
                 result.success(null);
                 break;
 
@@ -90,6 +128,23 @@ public class UtilsHandler extends AbstractMethodChannelPlugin {
         }
     }
 
+    /**
+     * Start an activity from the main thread, since this plugin handles its calls in the background, then answer
+     * the call.
+     */
+    private void startActivityOnMainThread(@NonNull Context context, @NonNull Intent intent, @NonNull MethodChannel.Result result) {
+        mainHandler.post(
+                () -> {
+                    try {
+                        startActivity(context, intent);
+                        result.success(null);
+                    } catch (RuntimeException e) {
+                        sendError(result, e);
+                    }
+                }
+        );
+    }
+
     @Override
     protected void whenAttachedToEngine(@NonNull FlutterPluginBinding binding) {
     }
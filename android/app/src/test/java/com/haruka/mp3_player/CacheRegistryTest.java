@@ -0,0 +1,58 @@
+package com.haruka.mp3_player;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CacheRegistryTest {
+    private static class CountingCache implements CacheRegistry.TrimmableCache {
+        int shrinks = 0;
+        int clears = 0;
+
+        @NonNull
+        @Override
+        public String getName() {
+            return "counting";
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return 0;
+        }
+
+        @Override
+        public void shrink() {
+            shrinks++;
+        }
+
+        @Override
+        public void clear() {
+            clears++;
+        }
+    }
+
+    @Test
+    public void registeringTwiceTrimsOnce() {
+        CountingCache cache = new CountingCache();
+        CacheRegistry.register(cache, CacheRegistry.Priority.LOW);
+        CacheRegistry.register(cache, CacheRegistry.Priority.LOW);
+        try {
+            CacheRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            assertEquals(1, cache.clears);
+        } finally {
+            CacheRegistry.unregister(cache);
+        }
+
+        CacheRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(1, cache.clears);
+    }
+}
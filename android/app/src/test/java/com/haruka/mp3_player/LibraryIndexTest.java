@@ -0,0 +1,205 @@
+package com.haruka.mp3_player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Searches a library index filled with a generated corpus. The framework SQLite is used so that the FTS4 table
+ * behaves as on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class LibraryIndexTest {
+    private static final int CORPUS_SIZE = 50_000;
+    private static final int PAGE_SIZE = 64;
+    private static final int PAGES = 20;
+
+    // One frame
+    private static final long PAGE_BUDGET_MS = 16;
+    private static final long FIRST_PAGE_BUDGET_MS = 1000;
+
+    private static final String[] WORDS = {
+            "love", "night", "light", "heart", "dream", "fire", "rain", "summer", "dance", "blue",
+            "road", "home", "star", "river", "moon", "gold", "wild", "young", "forever", "alone",
+            "city", "ocean", "shadow", "echo", "storm", "silver", "paradise", "memory", "lonely", "sky",
+    };
+    private static final String[] GENRES = {"Pop", "Rock", "Jazz", "Classical", "Electronic", "Folk", "Hip-Hop", "Blues"};
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private LibraryIndex index;
+
+    @Before
+    public void setUp() {
+        LibraryIndex.release();
+        index = LibraryIndex.getInstance(context);
+    }
+
+    @After
+    public void tearDown() {
+        LibraryIndex.release();
+    }
+
+    private static HashMap<String, String> metadata(String title, String artist, String album, String genre) {
+        HashMap<String, String> metadata = new HashMap<>();
+        metadata.put("title", title);
+        metadata.put("artist", artist);
+        metadata.put("album", album);
+        metadata.put("genre", genre);
+        return metadata;
+    }
+
+    /**
+     * Index {@code size} tracks with titles of two to four words, in pages of the size used by playlist hydration.
+     */
+    private void fill(int size) {
+        Random random = new Random(0);
+        HashMap<String, HashMap<String, String>> page = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            StringBuilder title = new StringBuilder();
+            for (int word = 2 + random.nextInt(3); word > 0; word--) {
+                if (title.length() > 0) title.append(' ');
+                title.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+
+            page.put(
+                    "/storage/emulated/0/Music/" + i + ".mp3",
+                    metadata(
+                            title.toString(),
+                            "Artist " + random.nextInt(2000) + " " + WORDS[random.nextInt(WORDS.length)],
+                            "Album " + random.nextInt(5000),
+                            GENRES[random.nextInt(GENRES.length)]
+                    )
+            );
+
+            if (page.size() == PAGE_SIZE) {
+                index.index(page);
+                page.clear();
+            }
+        }
+
+        index.index(page);
+    }
+
+    private static List<String> paths(LibraryIndex.SearchResult result) {
+        ArrayList<String> paths = new ArrayList<>();
+        for (HashMap<String, Object> item : result.items) {
+            paths.add((String) item.get("path"));
+        }
+
+        return paths;
+    }
+
+    @Test
+    public void pagesOfALargeCorpusStayWithinBudget() {
+        fill(CORPUS_SIZE);
+
+        // A one-letter query matches most of the library
+        long start = System.nanoTime();
+        LibraryIndex.SearchResult first = index.search("l", 0, PAGE_SIZE);
+        long firstMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(first.total > CORPUS_SIZE / 2);
+        assertEquals(PAGE_SIZE, first.items.size());
+
+        long[] pages = new long[PAGES];
+        HashSet<String> seen = new HashSet<>(paths(first));
+        for (int i = 0; i < PAGES; i++) {
+            start = System.nanoTime();
+            LibraryIndex.SearchResult result = index.search("l", (i + 1) * PAGE_SIZE, PAGE_SIZE);
+            pages[i] = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(first.total, result.total);
+            for (String path : paths(result)) {
+                assertTrue("Duplicate result " + path, seen.add(path));
+            }
+        }
+
+        Arrays.sort(pages);
+        long pageMs = pages[PAGES / 2];
+        assertTrue("First page took " + firstMs + " ms", firstMs <= FIRST_PAGE_BUDGET_MS);
+        assertTrue("Next pages took " + pageMs + " ms", pageMs <= PAGE_BUDGET_MS);
+    }
+
+    @Test
+    public void pagesFollowTheRanking() {
+        fill(2_000);
+
+        LibraryIndex.SearchResult all = index.search("sum", 0, Integer.MAX_VALUE);
+        ArrayList<String> paged = new ArrayList<>();
+        for (int offset = 0; offset < all.total; offset += PAGE_SIZE) {
+            paged.addAll(paths(index.search("sum", offset, PAGE_SIZE)));
+        }
+
+        assertEquals(all.total, paged.size());
+        assertEquals(paths(all), paged);
+    }
+
+    @Test
+    public void pagesLargerThanTheVariableLimitAreComplete() {
+        fill(2_000);
+
+        // More IDs than SQLite accepts as variables in a single statement
+        LibraryIndex.SearchResult result = index.search("l", 0, 1_500);
+        assertTrue(result.total > 1_000);
+        assertEquals(Math.min(result.total, 1_500), result.items.size());
+        assertEquals(result.items.size(), new HashSet<>(paths(result)).size());
+    }
+
+    @Test
+    public void writesInvalidateTheRanking() {
+        fill(1_000);
+        int total = index.search("paradise", 0, PAGE_SIZE).total;
+
+        // No other album matches, so the new track ranks first
+        index.index(Collections.singletonMap("/new.mp3", metadata("Paradise", null, "Paradise", null)));
+        LibraryIndex.SearchResult result = index.search("paradise", 0, PAGE_SIZE);
+        assertEquals(total + 1, result.total);
+        assertEquals("/new.mp3", result.items.get(0).get("path"));
+
+        assertEquals(0, index.search("renamed", 0, PAGE_SIZE).total);
+        index.setTitle("/new.mp3", "Renamed");
+        assertEquals(1, index.search("renamed", 0, PAGE_SIZE).total);
+    }
+
+    @Test
+    public void updateDropsTracksThatAreGone() {
+        HashMap<String, Object> kept = new HashMap<>();
+        kept.put("path", "/kept.mp3");
+        kept.put("metadata", metadata("Ocean eyes", null, null, null));
+
+        HashMap<String, Object> deleted = new HashMap<>();
+        deleted.put("path", "/deleted.mp3");
+        deleted.put("metadata", metadata("Ocean drive", null, null, null));
+
+        index.update(Arrays.asList(kept, deleted));
+        assertEquals(2, index.search("ocean", 0, PAGE_SIZE).total);
+
+        // The extractor reports no metadata for a file that no longer exists
+        deleted.remove("metadata");
+        index.update(Arrays.asList(kept, deleted));
+
+        LibraryIndex.SearchResult result = index.search("ocean", 0, PAGE_SIZE);
+        assertEquals(1, result.total);
+        assertEquals("/kept.mp3", result.items.get(0).get("path"));
+    }
+}
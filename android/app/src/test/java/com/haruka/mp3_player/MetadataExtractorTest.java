@@ -0,0 +1,80 @@
+package com.haruka.mp3_player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Writes the thumbnails of a track again and again, as repeated playlist hydrations and downloads do.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class MetadataExtractorTest {
+    private File cacheDir;
+    private File track;
+    private Bitmap artwork;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("thumbnails").toFile();
+        track = new File(cacheDir.getParentFile(), cacheDir.getName() + ".mp3");
+        Files.write(track.toPath(), new byte[1024]);
+        track.setLastModified(1_000_000);
+
+        artwork = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = cacheDir.listFiles();
+        for (File file : files != null ? files : new File[]{}) {
+            assertTrue(file.delete());
+        }
+
+        assertTrue(cacheDir.delete());
+        assertTrue(track.delete());
+        artwork.recycle();
+    }
+
+    private int thumbnailCount() {
+        File[] files = cacheDir.listFiles();
+        return files != null ? files.length : 0;
+    }
+
+    @Test
+    public void anUnchangedTrackReusesItsThumbnail() throws IOException {
+        String first = MetadataExtractor.writeThumbnail(cacheDir, track.getPath(), artwork);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(first, MetadataExtractor.writeThumbnail(cacheDir, track.getPath(), artwork));
+        }
+
+        assertTrue(new File(first).isFile());
+        assertEquals(1, thumbnailCount());
+    }
+
+    @Test
+    public void aChangedTrackGetsANewThumbnail() throws IOException {
+        String first = MetadataExtractor.writeThumbnail(cacheDir, track.getPath(), artwork);
+
+        Files.write(track.toPath(), new byte[2048]);
+        track.setLastModified(2_000_000);
+        String second = MetadataExtractor.writeThumbnail(cacheDir, track.getPath(), artwork);
+
+        assertNotEquals(first, second);
+        assertEquals(MetadataExtractor.getThumbnailFile(cacheDir, track.getPath()).getAbsolutePath(), second);
+        assertEquals(2, thumbnailCount());
+    }
+}
@@ -0,0 +1,151 @@
+package com.haruka.mp3_player;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams a remote track from a local stand-in server that answers after {@link #DELAY_MS}, as a slow host would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class StreamCacheTest {
+    private static final int LENGTH = 1 << 20;
+    private static final long DELAY_MS = 300;
+    private static final String CACHE_KEY = "dQw4w9WgXcQ";
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private final byte[] content = new byte[LENGTH];
+
+    // The first byte requested by each request, 0 for a request without range
+    private final List<Long> requests = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private Uri uri;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(0).nextBytes(content);
+        StreamCache.release();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/audio.mp3", this::serve);
+        server.start();
+        uri = Uri.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/audio.mp3");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        StreamCache.release();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(DELAY_MS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+
+        long start = 0;
+        long end = LENGTH - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+        }
+
+        requests.add(start);
+        int length = (int) (end - start + 1);
+        exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (range != null) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + LENGTH);
+        }
+
+        exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content, (int) start, length);
+        } catch (IOException error) {
+            // The player stopped reading
+        }
+    }
+
+    /**
+     * Read the first bytes of the track through the data source of the player.
+     *
+     * @return The time until the first bytes were read, in milliseconds
+     */
+    private long stream(int bytes) throws IOException {
+        DataSource source = StreamCache.createDataSourceFactory(context).createDataSource();
+        DataSpec dataSpec = new DataSpec.Builder().setUri(uri).setKey(CACHE_KEY).build();
+
+        long start = System.nanoTime();
+        long firstBytes = -1;
+        byte[] buffer = new byte[8192];
+        try {
+            source.open(dataSpec);
+            int read = 0;
+            while (read < bytes) {
+                int chunk = source.read(buffer, 0, Math.min(buffer.length, bytes - read));
+                if (chunk < 0) break;
+                if (firstBytes < 0) firstBytes = (System.nanoTime() - start) / 1_000_000;
+                read += chunk;
+            }
+        } finally {
+            source.close();
+        }
+
+        return firstBytes;
+    }
+
+    @Test
+    public void replaysAndKeepsReuseStreamedBytes() throws IOException {
+        int half = LENGTH / 2;
+
+        long cold = stream(half);
+        assertTrue("First audio after " + cold + " ms", cold >= DELAY_MS);
+        assertEquals(1, requests.size());
+
+        // A replay starts from disk without waiting for the host
+        long warm = stream(half);
+        assertTrue("First audio after " + warm + " ms", warm < DELAY_MS);
+        assertEquals(1, requests.size());
+
+        // Keeping the track only downloads what was not streamed
+        File output = new File(context.getFilesDir(), "kept.mp3");
+        long reused = StreamCache.promote(context, uri, CACHE_KEY, output);
+        assertEquals(half, reused);
+        assertEquals(2, requests.size());
+        assertEquals(half, (long) requests.get(1));
+        assertArrayEquals(content, Files.readAllBytes(output.toPath()));
+    }
+}
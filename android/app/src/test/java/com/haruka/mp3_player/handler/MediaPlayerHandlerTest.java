@@ -0,0 +1,175 @@
+package com.haruka.mp3_player.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Intent;
+import android.os.Looper;
+
+import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowService;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class MediaPlayerHandlerTest {
+    private static final int PLAY_CALLS = 200;
+    private static final int SAMPLES = 20;
+    private static final Duration STATE_WINDOW = Duration.ofSeconds(10);
+
+    @Test
+    public void coldStartSendsTheQueueInChunks() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+
+            // Both calls happen before the connection is established
+            harness.invoke("play", PlaybackHarness.play(10_000, 0, 0));
+            JSONObject seek = new JSONObject();
+            seek.put("positionMs", 1000);
+            harness.invoke("seek", seek);
+
+            Intent started = shadowOf(harness.context).getNextStartedService();
+            assertNotNull(started);
+            assertEquals(MediaPlayerService.MediaControlReceiver.START_ACTION, started.getAction());
+            assertNull(started.getExtras());
+
+            harness.drain();
+
+            List<Integer> commands = harness.getCommands();
+            assertEquals(10_000, harness.getItemsReceived());
+            assertTrue(harness.getMaxItemsPerMessage() <= PlaybackProtocol.MAX_ITEMS_PER_MESSAGE);
+            assertEquals(PlaybackProtocol.PLAY, (int) commands.get(commands.size() - 2));
+            assertEquals(PlaybackProtocol.SEEK, (int) commands.get(commands.size() - 1));
+        }
+    }
+
+    @Test
+    public void commandsAreDroppedWhileTheServiceIsStopped() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.invoke("pause", null);
+            assertNull(harness.invoke("getPowerStats", null));
+            assertNull(shadowOf(harness.context).getNextStartedService());
+
+            harness.drain();
+            assertFalse(harness.getCommands().contains(PlaybackProtocol.PAUSE));
+        }
+    }
+
+    @Test
+    public void cacheSizesAreOnlyRequestedFromASeparateProcess() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.drain();
+
+            // The service shares this process, its caches are reported by the utils channel
+            assertNull(harness.call("getCacheSizes", null));
+            assertFalse(harness.getCommands().contains(PlaybackProtocol.GET_CACHE_SIZES));
+        }
+    }
+
+    @Test
+    public void stopRemovesTheNotification() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.call("play", PlaybackHarness.play(10, 0, 0));
+
+            ShadowService service = shadowOf(harness.getService());
+            assertNotNull(service.getLastForegroundNotification());
+
+            harness.call("stop", null);
+
+            // Let the state loop run, it must not bring the service back to the foreground
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+            assertTrue(service.isStoppedBySelf());
+            assertTrue(service.isForegroundStopped());
+            assertTrue(service.getNotificationShouldRemoved());
+        }
+    }
+
+    @Test
+    public void thePlaybackProcessCannotChangeWhilePlaying() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.call("play", PlaybackHarness.play(10, 0, 0));
+
+            JSONObject separateProcess = new JSONObject();
+            separateProcess.put("enabled", true);
+            assertThrows(IllegalStateException.class, () -> harness.invoke("setSeparateProcess", separateProcess));
+            assertFalse(PlaybackProtocol.isSeparateProcess(harness.context));
+        }
+    }
+
+    @Test
+    public void repeatedPlayCallsKeepLatencyAndStateLoopsConstant() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.drain();
+
+            JSONObject play = PlaybackHarness.play(100, 0, 0);
+            long[] tasks = new long[PLAY_CALLS];
+            for (int i = 0; i < PLAY_CALLS; i++) {
+                long before = harness.getTasksRun();
+                harness.call("play", play);
+                tasks[i] = harness.getTasksRun() - before;
+
+                // A single polling loop, however many plays came before
+                if (i == SAMPLES) assertEquals(1, countStateUpdates(harness), 0.1);
+            }
+
+            assertEquals(1, countStateUpdates(harness), 0.1);
+
+            // The first calls also create the player. Work left behind by earlier plays shows up as more main
+            // looper tasks for the later ones.
+            long early = sum(Arrays.copyOfRange(tasks, SAMPLES, 2 * SAMPLES));
+            long late = sum(Arrays.copyOfRange(tasks, PLAY_CALLS - SAMPLES, PLAY_CALLS));
+            assertTrue(
+                    String.format("Play calls grew from %d to %d main looper tasks", early, late),
+                    late <= early
+            );
+        }
+    }
+
+    /**
+     * Count the state updates sent over {@link #STATE_WINDOW}, relative to a single polling loop.
+     */
+    private static double countStateUpdates(PlaybackHarness harness) throws Exception {
+        long before = getStateUpdates(harness);
+        shadowOf(Looper.getMainLooper()).idleFor(STATE_WINDOW);
+        long after = getStateUpdates(harness);
+
+        // One update every 250 ms
+        return (after - before) / (STATE_WINDOW.toMillis() / 250.0);
+    }
+
+    private static long getStateUpdates(PlaybackHarness harness) throws Exception {
+        Map<?, ?> stats = (Map<?, ?>) harness.call("getPowerStats", null);
+        assertNotNull(stats);
+        return ((Number) stats.get("stateUpdates")).longValue();
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+
+        return total;
+    }
+}
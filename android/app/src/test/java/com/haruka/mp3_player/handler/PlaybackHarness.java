@@ -0,0 +1,267 @@
+package com.haruka.mp3_player.handler;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.os.BundleCompat;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.haruka.mp3_player.MainActivity;
+import com.haruka.mp3_player.MediaPlayerService;
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.robolectric.Robolectric;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Drives a {@link MediaPlayerHandler} bound to a real {@link MediaPlayerService} on the Robolectric main looper,
+ * recording every {@link PlaybackProtocol} message that reaches the service.
+ */
+class PlaybackHarness implements AutoCloseable {
+    /**
+     * A {@link MethodChannel.Result} keeping the value of a successful call.
+     */
+    static class Reply implements MethodChannel.Result {
+        @Nullable
+        Object value;
+
+        @Override
+        public void success(@Nullable Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            throw new AssertionError(errorCode + ": " + errorMessage);
+        }
+
+        @Override
+        public void notImplemented() {
+            throw new AssertionError("Not implemented");
+        }
+    }
+
+    @NonNull
+    final Application context = ApplicationProvider.getApplicationContext();
+
+    @NonNull
+    final MediaPlayerHandler handler = new MediaPlayerHandler();
+
+    @NonNull
+    private final FlutterPlugin.FlutterPluginBinding binding = mock(FlutterPlugin.FlutterPluginBinding.class);
+
+    @NonNull
+    private final ServiceController<MediaPlayerService> controller = Robolectric.buildService(MediaPlayerService.class);
+
+    // The messages received by the service, in order. Only their data is kept, it is parceled after the fact so
+    // that measuring it does not count against the latency of the commands.
+    @NonNull
+    private final ArrayList<Integer> commands = new ArrayList<>();
+    @NonNull
+    private final ArrayList<Bundle> data = new ArrayList<>();
+
+    // The number of main looper tasks run so far
+    private long tasksRun = 0;
+
+    PlaybackHarness() {
+        when(binding.getApplicationContext()).thenReturn(context);
+
+        // The handler warms up the playing screen engine on play, which cannot run on the JVM
+        FlutterEngineCache.getInstance().put(MainActivity.PLAYING_SCREEN_ENGINE_ID, mock(FlutterEngine.class));
+
+        MediaPlayerService service = controller.create().get();
+        Messenger target = new Messenger(service.onBind(new Intent(context, MediaPlayerService.class)));
+        Messenger recorder = new Messenger(
+                new Handler(
+                        Looper.getMainLooper(),
+                        message -> {
+                            commands.add(message.what);
+                            data.add(message.getData());
+                            try {
+                                target.send(Message.obtain(message));
+                            } catch (RemoteException error) {
+                                throw new AssertionError(error);
+                            }
+
+                            return true;
+                        }
+                )
+        );
+
+        shadowOf(context).setComponentNameAndServiceForBindService(
+                new ComponentName(context, MediaPlayerService.class),
+                recorder.getBinder()
+        );
+    }
+
+    @NonNull
+    MediaPlayerService getService() {
+        return controller.get();
+    }
+
+    /**
+     * Attach the handler to the engine. The connection is established the next time the main looper runs.
+     */
+    void attach() {
+        handler.whenAttachedToEngine(binding);
+    }
+
+    /**
+     * Call a method of the handler, without running the main looper.
+     */
+    @Nullable
+    Object invoke(@NonNull String method, @Nullable JSONObject arguments) throws Exception {
+        Reply reply = new Reply();
+        handler.handler(new MethodCall(method, arguments), reply, binding);
+        return reply.value;
+    }
+
+    /**
+     * Call a method of the handler, then run the main looper until the service has handled it.
+     *
+     * @return The reply of the handler
+     */
+    @Nullable
+    Object call(@NonNull String method, @Nullable JSONObject arguments) throws Exception {
+        Object value = invoke(method, arguments);
+        drain();
+        return value;
+    }
+
+    /**
+     * Run the main looper until no task is due.
+     *
+     * @return The number of tasks run
+     */
+    int drain() {
+        ShadowLooper looper = shadowOf(Looper.getMainLooper());
+        int count = 0;
+        while (!looper.isIdle()) {
+            looper.runOneTask();
+            count++;
+        }
+
+        tasksRun += count;
+        return count;
+    }
+
+    /**
+     * @return The number of main looper tasks run so far, which does not depend on the speed of the machine
+     */
+    long getTasksRun() {
+        return tasksRun;
+    }
+
+    /**
+     * @return The codes of the messages received by the service so far
+     */
+    @NonNull
+    List<Integer> getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return The number of media items received by the service so far
+     */
+    int getItemsReceived() {
+        int count = 0;
+        for (Bundle bundle : data) {
+            ArrayList<Bundle> items = BundleCompat.getParcelableArrayList(bundle, PlaybackProtocol.ITEMS_KEY, Bundle.class);
+            if (items != null) count += items.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The largest number of media items carried by a single message so far
+     */
+    int getMaxItemsPerMessage() {
+        int max = 0;
+        for (Bundle bundle : data) {
+            ArrayList<Bundle> items = BundleCompat.getParcelableArrayList(bundle, PlaybackProtocol.ITEMS_KEY, Bundle.class);
+            if (items != null) max = Math.max(max, items.size());
+        }
+
+        return max;
+    }
+
+    /**
+     * @return The size of the largest message received by the service so far, once parceled
+     */
+    int getMaxParcelSize() {
+        int max = 0;
+        for (Bundle bundle : data) {
+            max = Math.max(max, PlaybackProtocol.getParcelSize(bundle));
+        }
+
+        return max;
+    }
+
+    void clearRecords() {
+        commands.clear();
+        data.clear();
+    }
+
+    /**
+     * Arguments of a {@code play} call with a playlist of local tracks.
+     */
+    @NonNull
+    static JSONObject play(int size, int index, int windowRadius) throws JSONException {
+        JSONObject arguments = new JSONObject();
+        arguments.put("tracks", tracks(size));
+        arguments.put("playlistId", 1);
+        arguments.put("index", index);
+        arguments.put("windowRadius", windowRadius);
+        return arguments;
+    }
+
+    @NonNull
+    static JSONArray tracks(int size) throws JSONException {
+        JSONArray tracks = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject track = new JSONObject();
+            track.put("uri", "file:///music/" + i + ".mp3");
+            track.put("title", "Track " + i);
+            track.put("artist", JSONObject.NULL);
+            track.put("thumbnailPath", JSONObject.NULL);
+            track.put("cacheKey", JSONObject.NULL);
+            tracks.put(track);
+        }
+
+        return tracks;
+    }
+
+    @Override
+    public void close() {
+        handler.onDetachedFromEngine(binding);
+        controller.destroy();
+        drain();
+    }
+}
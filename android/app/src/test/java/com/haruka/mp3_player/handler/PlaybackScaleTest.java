@@ -0,0 +1,89 @@
+package com.haruka.mp3_player.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.haruka.mp3_player.PlaybackProtocol;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Drives every command that scales with the queue through {@link MediaPlayerHandler} and {@link PlaybackProtocol},
+ * and holds the messages to the budgets the service logs in debug builds: {@link PlaybackProtocol#MAX_ITEMS_PER_MESSAGE}
+ * items and {@link PlaybackProtocol#MESSAGE_SIZE_BUDGET_BYTES} per message.
+ * <p>
+ * The latency and allocations of the same commands are measured on a device by {@code PlaybackCommandBenchmark}
+ * and {@code PlaybackBudgetTest}.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(sdk = 33)
+public class PlaybackScaleTest {
+    private static final int WINDOW_RADIUS = 32;
+    private static final int REPEATS = 5;
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0} tracks")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1_000}, {10_000}, {50_000}});
+    }
+
+    private final int size;
+
+    public PlaybackScaleTest(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Run a command {@link #REPEATS} times and check that each run reaches the service in {@code messages}
+     * messages.
+     */
+    private void assertMessages(PlaybackHarness harness, int messages, String method, JSONObject arguments) throws Exception {
+        for (int i = 0; i < REPEATS; i++) {
+            int before = harness.getCommands().size();
+            harness.call(method, arguments);
+            assertEquals(method, messages, harness.getCommands().size() - before);
+        }
+    }
+
+    @Test
+    public void commandsStayWithinMessageBudgets() throws Exception {
+        try (PlaybackHarness harness = new PlaybackHarness()) {
+            harness.attach();
+            harness.drain();
+            harness.clearRecords();
+
+            JSONObject add = new JSONObject();
+            add.put("tracks", PlaybackHarness.tracks(1));
+
+            JSONObject remove = new JSONObject();
+            remove.put("index", size / 4);
+
+            JSONObject seek = new JSONObject();
+            seek.put("positionMs", 1000);
+
+            // The tracks of a play follow in STAGE_ITEMS messages
+            int playMessages = (size + PlaybackProtocol.MAX_ITEMS_PER_MESSAGE - 1) / PlaybackProtocol.MAX_ITEMS_PER_MESSAGE;
+            assertMessages(harness, playMessages, "play", PlaybackHarness.play(size, size / 2, WINDOW_RADIUS));
+            assertMessages(harness, 1, "add", add);
+            assertMessages(harness, 1, "remove", remove);
+            assertMessages(harness, 1, "seek", seek);
+            assertMessages(harness, 1, "toggleShuffle", null);
+            assertMessages(harness, 1, "next", null);
+
+            assertEquals(REPEATS * (size + 1), harness.getItemsReceived());
+            assertTrue(harness.getMaxItemsPerMessage() <= PlaybackProtocol.MAX_ITEMS_PER_MESSAGE);
+
+            int largest = harness.getMaxParcelSize();
+            assertTrue(
+                    String.format("A message carried %d bytes with %d tracks", largest, size),
+                    largest <= PlaybackProtocol.MESSAGE_SIZE_BUDGET_BYTES
+            );
+        }
+    }
+}
@@ -7,6 +7,7 @@ import "package:flutter/services.dart";
 import "package:permission_handler/permission_handler.dart";
 
 import "drawer.dart";
+import "search.dart";
 import "../src/playlists.dart";
 import "../src/state.dart";
 import "../src/tracks.dart";
@@ -236,6 +237,18 @@ class _PlaylistsPageState extends State<PlaylistsPage> with PageStateWithDrawer<
                         refresh();
                       },
                     ),
+                    ListTile(
+                      leading: const Icon(Icons.search_outlined),
+                      title: const Text("Add from the library"),
+                      onTap: () async {
+                        var track = await showSearch<Track?>(context: context, delegate: LibrarySearchDelegate(state: state));
+                        if (track == null) return;
+
+                        await playlist.add(track);
+                        if (context.mounted) ScaffoldMessenger.of(context).showSnackBar(const SnackBar(content: Text("Added a track to playlist!")));
+                        refresh();
+                      },
+                    ),
                     ListTile(
                       leading: const Icon(Icons.edit_note_outlined),
                       title: const Text("Rename playlist"),
@@ -0,0 +1,121 @@
+import "package:flutter/material.dart";
+
+import "../src/state.dart";
+import "../src/tracks.dart";
+import "../src/utils.dart";
+
+/// A [SearchDelegate] over the native library index, returning the [Track] the user picked
+///
+/// Results are loaded one page at a time as the list is scrolled, see [Track.search].
+class LibrarySearchDelegate extends SearchDelegate<Track?> {
+  /// The global [ApplicationState]
+  final ApplicationState state;
+
+  /// Construct a new [LibrarySearchDelegate]
+  LibrarySearchDelegate({required this.state}) : super(searchFieldLabel: "Search the library");
+
+  @override
+  List<Widget> buildActions(BuildContext context) => [
+        IconButton(
+          onPressed: () => query = "",
+          icon: const Icon(Icons.clear_outlined),
+        ),
+      ];
+
+  @override
+  Widget buildLeading(BuildContext context) => IconButton(
+        onPressed: () => close(context, null),
+        icon: const Icon(Icons.arrow_back_outlined),
+      );
+
+  @override
+  Widget buildResults(BuildContext context) => _LibrarySearchResults(
+        key: ValueKey(query),
+        query: query,
+        state: state,
+        onSelected: (track) => close(context, track),
+      );
+
+  @override
+  Widget buildSuggestions(BuildContext context) => query.trim().isEmpty ? const SizedBox.shrink() : buildResults(context);
+}
+
+class _LibrarySearchResults extends StatefulWidget {
+  final String query;
+  final ApplicationState state;
+  final void Function(Track) onSelected;
+
+  const _LibrarySearchResults({required this.query, required this.state, required this.onSelected, super.key});
+
+  @override
+  State<_LibrarySearchResults> createState() => _LibrarySearchResultsState();
+}
+
+class _LibrarySearchResultsState extends State<_LibrarySearchResults> {
+  static const _pageSize = 64;
+
+  final _tracks = <Track>[];
+  int? _total;
+  bool _loading = false;
+
+  // The number of results requested so far, some of them may have been dropped by Track.search
+  int _offset = 0;
+
+  Future<void> _loadNextPage() async {
+    if (_loading) return;
+    _loading = true;
+
+    try {
+      var results = await Track.search(widget.query, state: widget.state, offset: _offset, limit: _pageSize);
+      if (!mounted) return;
+
+      setState(() {
+        _total = results.key;
+        _offset += _pageSize;
+        _tracks.addAll(results.value);
+      });
+    } finally {
+      _loading = false;
+    }
+  }
+
+  @override
+  void initState() {
+    super.initState();
+    _loadNextPage();
+  }
+
+  @override
+  Widget build(BuildContext context) {
+    var total = _total;
+    if (total == null) return const Center(child: CircularProgressIndicator());
+    if (total == 0) return const Center(child: Text("No matching tracks"));
+
+    var hasMore = _offset < total;
+    return ListView.builder(
+      itemCount: _tracks.length + (hasMore ? 1 : 0),
+      itemBuilder: (context, index) {
+        if (index == _tracks.length) {
+          // Reached the end of the loaded pages
+          WidgetsBinding.instance.addPostFrameCallback((_) => _loadNextPage());
+          return const Padding(
+            padding: EdgeInsets.all(8.0),
+            child: Center(child: CircularProgressIndicator()),
+          );
+        }
+
+        var track = _tracks[index];
+        var artist = track.trackInfo.artist;
+        return ListTile(
+          leading: ConstrainedBox(
+            constraints: const BoxConstraints(maxWidth: 45.0, maxHeight: 45.0),
+            child: fallbackToLogo(track.trackInfo.thumbnailPath),
+          ),
+          title: Text(track.title),
+          subtitle: artist != null ? Text(artist) : null,
+          onTap: () => widget.onSelected(track),
+        );
+      },
+    );
+  }
+}
@@ -117,6 +117,7 @@ class _YouTubeChannelPageState extends State<YouTubeChannelPage> with PageStateW
                                 var video = videos[index];
                                 return MiniVideoWidget(
                                   video: video,
+                                  state: state,
                                   width: screenSize.width,
                                 );
                               },
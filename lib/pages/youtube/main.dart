@@ -38,11 +38,21 @@ class _YouTubePageState extends State<YouTubePage> with PageStateWithDrawer<YouT
   }
 
   void resetSearchingState({required String query}) {
+    if (query != currentQuery) state.ytClient.cancelPrefetches();
     currentQuery = query;
     searchResult.empty();
     page.clear();
   }
 
+  /// Fetch the page after the last loaded one in the background, so that "Load more results" is served from cache
+  void prefetchNextPage({required SearchType type}) {
+    var query = currentQuery;
+    var current = page[type];
+    if (query == null || current == null) return;
+
+    SearchResult.prefetch(query, page: current + 1, type: type, client: state.ytClient);
+  }
+
   Future<void> newSearch() async {
     if (searchingState != YouTubeSearchingState.IDLING) return;
 
@@ -66,6 +76,10 @@ class _YouTubePageState extends State<YouTubePage> with PageStateWithDrawer<YouT
       }
     }
 
+    for (var type in SearchType.values) {
+      prefetchNextPage(type: type);
+    }
+
     if (error) {
       await showToast("Some results couldn't be loaded.");
     }
@@ -95,6 +109,7 @@ class _YouTubePageState extends State<YouTubePage> with PageStateWithDrawer<YouT
             } else {
               searchResult.update(result);
               page[type] = newPage;
+              prefetchNextPage(type: type);
               return true;
             }
           } finally {
@@ -164,7 +179,7 @@ class _YouTubePageState extends State<YouTubePage> with PageStateWithDrawer<YouT
                             children: [
                               ListView.builder(
                                 itemBuilder: (context, index) => index < searchResult.videos.length
-                                    ? VideoWidget(video: searchResult.videos[index], width: screenSize.width)
+                                    ? VideoWidget(video: searchResult.videos[index], state: state, width: screenSize.width)
                                     : TextButton(
                                         onPressed: () => loadMore(type: SearchType.video),
                                         child: const Text("Load more results"),
@@ -98,6 +98,7 @@ class _YouTubePlaylistPageState extends State<YouTubePlaylistPage> with PageStat
                           var video = data.videos[index] as Video;
                           return MiniVideoWidget(
                             video: video,
+                            state: state,
                             width: screenSize.width,
                           );
                         } on Object {
@@ -1,3 +1,5 @@
+import "dart:async";
+
 import "package:async_locks/async_locks.dart";
 import "package:flutter/services.dart";
 
@@ -6,6 +8,28 @@ import "utils.dart";
 const _platform = MethodChannel("com.haruka.mp3_player/downloader", JSONMethodCodec());
 final _lock = Lock();
 
+final _libraryChanges = StreamController<Map<String, dynamic>>.broadcast();
+var _handlerInstalled = false;
+
+/// Files saved by [download] and [promote], once the native side has extracted their metadata and artwork
+///
+/// Each event has the same format as the items of `hydratePlaylist`: the `path`, `isAudio`, `metadata` and
+/// `thumbnailPath` of the file.
+Stream<Map<String, dynamic>> get libraryChanges {
+  if (!_handlerInstalled) {
+    _handlerInstalled = true;
+    _platform.setMethodCallHandler(
+      (call) async {
+        if (call.method == "onLibraryChanged") {
+          _libraryChanges.add(Map<String, dynamic>.from(call.arguments));
+        }
+      },
+    );
+  }
+
+  return _libraryChanges.stream;
+}
+
 Future<void> download({
   required String url,
   required String outputFilePath,
@@ -32,3 +56,34 @@ Future<void> download({
     print(stackTrace);
   }
 }
+
+/// Save a track that was streamed from [url] (and cached under [cacheKey]) to [outputFilePath]
+///
+/// The bytes already cached during playback are reused, only the missing parts are downloaded. When playback runs
+/// in its own process (see [ApplicationState.setSeparatePlaybackProcess]) the cache cannot be shared with this
+/// process, and the whole track is downloaded again.
+Future<void> promote({
+  required String url,
+  required String? cacheKey,
+  required String outputFilePath,
+  required String description,
+}) async {
+  try {
+    await _lock.run(
+      () async {
+        await showToast("Saving $description");
+        await _platform.invokeMethod(
+          "promote",
+          {
+            "url": url,
+            "cacheKey": cacheKey,
+            "outputFilePath": outputFilePath,
+          },
+        );
+      },
+    );
+  } on Object catch (error, stackTrace) {
+    print(error);
+    print(stackTrace);
+  }
+}
@@ -1,6 +1,5 @@
-import "dart:convert";
-
 import "package:async_locks/async_locks.dart";
+import "package:sqflite/sqflite.dart";
 
 import "state.dart";
 import "tracks.dart";
@@ -15,6 +14,45 @@ enum PlaylistsFetchingState {
   FETCHING,
 }
 
+/// Queries on the `playlist_items` table, which holds the [Track] paths of every [Playlist] ordered by position
+class PlaylistItems {
+  /// Add the statements creating the `playlist_items` table and its index to [batch]
+  static void createTable(Batch batch) {
+    batch.execute(
+      "CREATE TABLE IF NOT EXISTS playlist_items (id INTEGER PRIMARY KEY AUTOINCREMENT, playlist_id INTEGER NOT NULL, position INTEGER NOT NULL, path TEXT NOT NULL);",
+    );
+    batch.execute("CREATE INDEX IF NOT EXISTS playlist_items_order ON playlist_items (playlist_id, position);");
+  }
+
+  /// Append [paths] to the end of a playlist
+  ///
+  /// The last position is looked up in the same transaction as the inserts, so concurrent appends never share a
+  /// position. Returns the IDs of the new rows, in the same order as [paths].
+  static Future<List<int>> append(Database database, int playlistId, List<String> paths) => database.transaction(
+        (transaction) async {
+          var rows = await transaction.rawQuery(
+            "SELECT COALESCE(MAX(position), -1) AS last FROM playlist_items WHERE playlist_id = ?",
+            [playlistId],
+          );
+          var position = (rows.single["last"] as int) + 1;
+
+          var batch = transaction.batch();
+          for (var path in paths) {
+            batch.insert("playlist_items", {"playlist_id": playlistId, "position": position++, "path": path});
+          }
+
+          return List<int>.from(await batch.commit());
+        },
+      );
+
+  /// Delete the row with the given ID
+  ///
+  /// Positions are left with a gap, they only need to keep the order of the remaining rows.
+  static Future<void> delete(DatabaseExecutor executor, int itemId) async {
+    await executor.delete("playlist_items", where: "id = ?", whereArgs: [itemId]);
+  }
+}
+
 /// Represents a playlist, which contains a list of playable [Track]s
 class Playlist {
   /// Mapping of IDs to their corresponding [Playlist]s
@@ -31,6 +69,9 @@ class Playlist {
   /// List of [Track]s in this playlist
   final List<Track> items;
 
+  /// The `playlist_items` row IDs of [items], in the same order
+  final List<int> _itemIds;
+
   /// The [DateTime] when this playlist was created
   final DateTime createdAt;
 
@@ -75,8 +116,15 @@ class Playlist {
     return "Unknown artists";
   }
 
-  Playlist._({required this.id, required String title, required this.items, required this.createdAt, required ApplicationState state})
-      : _title = title,
+  Playlist._({
+    required this.id,
+    required String title,
+    required this.items,
+    required List<int> itemIds,
+    required this.createdAt,
+    required ApplicationState state,
+  })  : _title = title,
+        _itemIds = itemIds,
         _state = state {
     playlists[id] = this;
   }
@@ -86,11 +134,14 @@ class Playlist {
 
   /// Add a number of [Track]s to this playlist
   Future<void> addAll(Iterable<Track> tracks) async {
-    items.addAll(tracks);
-    await push();
+    var added = List<Track>.from(tracks);
+    var ids = await PlaylistItems.append(_state.database, id, [for (var track in added) track.uri]);
+
+    items.addAll(added);
+    _itemIds.addAll(ids);
 
     if (isPlaying) {
-      await _state.add(tracks: List<Track>.from(tracks));
+      await _state.add(tracks: added);
     }
   }
 
@@ -101,24 +152,34 @@ class Playlist {
   }
 
   /// Remove a [Track] from this playlist
+  ///
+  /// The row is deleted before the in-memory list and the native queue are touched, so that a failed delete leaves
+  /// all three unchanged.
   Future<void> remove(int index) async {
+    var itemId = _itemIds[index];
+    await PlaylistItems.delete(_state.database, itemId);
+
+    // Another call may have moved the item while the row was being deleted
+    index = _itemIds.indexOf(itemId);
+    if (index < 0) return;
+
     items.removeAt(index);
+    _itemIds.removeAt(index);
 
     if (isPlaying) {
       await _state.remove(index);
     }
-
-    await push();
   }
 
-  /// Sync this playlist data to the local database
+  /// Sync this playlist metadata to the local database
+  ///
+  /// The tracks are stored in the `playlist_items` table, which is updated row by row on every [addAll] and [remove].
   Future<void> push() async {
     await _state.database.update(
       "playlists",
       {
         "id": id,
         "title": _title,
-        "items": jsonEncode(List<String>.generate(items.length, (index) => items[index].uri)),
         "created_at": createdAt.toIso8601String(),
       },
       where: "id = ?",
@@ -128,10 +189,11 @@ class Playlist {
 
   /// Delete this playlist
   Future<void> delete() async {
-    await _state.database.delete(
-      "playlists",
-      where: "id = ?",
-      whereArgs: [id],
+    await _state.database.transaction(
+      (transaction) async {
+        await transaction.delete("playlist_items", where: "playlist_id = ?", whereArgs: [id]);
+        await transaction.delete("playlists", where: "id = ?", whereArgs: [id]);
+      },
     );
 
     playlists.remove(id);
@@ -149,16 +211,36 @@ class Playlist {
         var cached = playlists[row["id"]];
         if (cached != null) return cached;
 
-        var rawItems = List<String>.from(jsonDecode(row["items"]));
+        var rows = await state.database.query(
+          "playlist_items",
+          columns: ["id", "path"],
+          where: "playlist_id = ?",
+          whereArgs: [row["id"]],
+          orderBy: "position",
+        );
+
         var items = <Track>[];
-        for (var path in rawItems) {
-          var track = await Track.fromPath(path, state: state);
-          if (track != null) {
-            items.add(track);
+        var itemIds = <int>[];
+        var index = 0;
+        await for (var tracks in Track.fromPaths([for (var item in rows) item["path"] as String], state: state)) {
+          for (var track in tracks) {
+            if (track != null) {
+              items.add(track);
+              itemIds.add(rows[index]["id"] as int);
+            }
+
+            index++;
           }
         }
 
-        return Playlist._(id: row["id"], title: row["title"], items: items, createdAt: DateTime.parse(row["created_at"]), state: state);
+        return Playlist._(
+          id: row["id"],
+          title: row["title"],
+          items: items,
+          itemIds: itemIds,
+          createdAt: DateTime.parse(row["created_at"]),
+          state: state,
+        );
       },
     );
 
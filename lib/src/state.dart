@@ -1,12 +1,27 @@
+import "dart:convert";
+
 import "package:async_locks/async_locks.dart";
 import "package:flutter/services.dart";
 import "package:path/path.dart";
 import "package:sqflite/sqflite.dart";
 
+import "downloader.dart";
 import "playlists.dart";
 import "tracks.dart";
 import "youtube/client.dart";
 
+/// Buffering strategies of the native player, must match the names of `BufferProfile` in the native side
+enum BufferProfile {
+  /// Keep only a few seconds of audio in memory
+  LOW_MEMORY_LOCAL,
+
+  /// Buffer local tracks far ahead so that transitions between tracks have no gap
+  GAPLESS_LOCAL,
+
+  /// Tolerate network jitter when playing remote audio
+  NETWORK_STREAM,
+}
+
 /// The global, singleton [ApplicationState]
 class ApplicationState {
   static const UPDATE_STATE_CHANNEL_METHOD = "UPDATE_STATE_CHANNEL_METHOD";
@@ -18,12 +33,13 @@ class ApplicationState {
   static const PLAYLIST_ID_KEY = "PLAYLIST_ID";
   static const REPEAT_KEY = "REPEAT";
   static const SHUFFLE_KEY = "SHUFFLE";
+  static const UP_NEXT_KEY = "UP_NEXT";
 
   /// The application SQLite [Database]
   final Database database;
 
   /// The application [YouTubeClient]
-  final YouTubeClient ytClient = YouTubeClient();
+  late final YouTubeClient ytClient = YouTubeClient(database: database);
 
   static const _platform = MethodChannel("com.haruka.mp3_player/player", JSONMethodCodec());
 
@@ -62,6 +78,25 @@ class ApplicationState {
   /// See also: https://developer.android.com/reference/androidx/media3/common/Player#getShuffleModeEnabled()
   bool shuffle = false;
 
+  /// The indices in [currentPlaylist] of the tracks that will be played after [currentTrack], in playback order
+  ///
+  /// This follows the native shuffle order and repeat mode, and only covers the next few tracks.
+  List<int> upNext = <int>[];
+
+  /// The number of tracks the native player holds on each side of [currentTrack]
+  ///
+  /// Playlists longer than `2 * queueWindowRadius + 1` are played in windowed mode, where the native side only
+  /// builds media items for the tracks around the current one. Set to 0 to always hand the whole playlist to the player.
+  int queueWindowRadius = 32;
+
+  /// The [BufferProfile] to use for the next [play] request
+  BufferProfile bufferProfile = BufferProfile.GAPLESS_LOCAL;
+
+  bool _powerSaving = false;
+
+  /// Whether the native player runs in power-saving mode, see [setPowerSaving]
+  bool get powerSaving => _powerSaving;
+
   /// The current position (in milliseconds) of [currentTrack]. This value shouldn't be rely on when no track is playing.
   int currentPosition = 0;
 
@@ -86,11 +121,15 @@ class ApplicationState {
         isPlaying = arguments[IS_PLAYING_KEY];
         repeat = arguments[REPEAT_KEY];
         shuffle = arguments[SHUFFLE_KEY];
+        upNext = List<int>.from(arguments[UP_NEXT_KEY]);
         currentPosition = arguments[CURRENT_POSITION_KEY];
         duration = arguments[DURATION_KEY];
         _streamStateEvent.set();
       },
     );
+
+    // Populate the track cache with new downloads as soon as they are ingested
+    libraryChanges.listen((item) => Track.fromExtracted(item, state: this));
   }
 
   Stream<ApplicationState>? _streamState;
@@ -126,6 +165,27 @@ class ApplicationState {
         "tracks": List<Map<String, String?>>.generate(playlist.items.length, (index) => playlist.items[index].data),
         "playlistId": playlist.id,
         "index": index,
+        "windowRadius": queueWindowRadius,
+        "bufferProfile": bufferProfile.name,
+      },
+    );
+  }
+
+  /// Stream a remote track from [url]
+  ///
+  /// The native side caches the audio under [cacheKey] (e.g. the YouTube video ID, since stream URLs expire), so
+  /// that replays start from disk and [promote] reuses the bytes already streamed.
+  Future<void> stream({required String url, required String cacheKey, required String title, String? artist}) async {
+    await _platform.invokeMethod(
+      "play",
+      {
+        "tracks": [
+          {"title": title, "artist": artist, "uri": url, "thumbnailPath": null, "cacheKey": cacheKey},
+        ],
+        "playlistId": -1,
+        "index": 0,
+        "windowRadius": queueWindowRadius,
+        "bufferProfile": BufferProfile.NETWORK_STREAM.name,
       },
     );
   }
@@ -157,6 +217,75 @@ class ApplicationState {
   /// Toggle the shuffle mode of the player
   Future<void> toggleShuffle() => _platform.invokeMethod("toggleShuffle");
 
+  /// Enable or disable the power-saving mode of the native player
+  ///
+  /// While enabled, audio is offloaded to the hardware where supported (from the next [play] request), decoders
+  /// are released after [idleRelease] of pause and the playback service stops after [idleStop] without playback.
+  Future<void> setPowerSaving(
+    bool enabled, {
+    Duration idleRelease = const Duration(seconds: 30),
+    Duration idleStop = const Duration(minutes: 10),
+  }) async {
+    _powerSaving = enabled;
+    await _platform.invokeMethod(
+      "setPowerSaving",
+      {
+        "enabled": enabled,
+        "idleReleaseMs": idleRelease.inMilliseconds,
+        "idleStopMs": idleStop.inMilliseconds,
+      },
+    );
+  }
+
+  /// Get the power counters of the native player (wake-ups, decoder releases, idle stops...) and the memory of its
+  /// process (`pid`, `totalPssKb`), or `null` if the playback service is not running
+  Future<Map<String, dynamic>?> getPowerStats() => _platform.invokeMapMethod<String, dynamic>("getPowerStats");
+
+  /// Get the playback quality-of-service histograms of the native player, or `null` if the playback service is
+  /// not running
+  ///
+  /// Each entry (`playToReady`, `playToFirstAudio`, `transitionGaps`, `rebuffers`, `decoderInit`, `underruns`,
+  /// `commands`) holds a `count`, `meanMs`, `maxMs` and log2 millisecond buckets since the service started
+  /// (`histogram`) and over the last 15 to 30 minutes (`recent`).
+  ///
+  /// `artwork` holds the `hits` and `misses` of the notification artwork cache, which prefetches the upcoming
+  /// tracks.
+  Future<Map<String, dynamic>?> getPlaybackQos() => _platform.invokeMapMethod<String, dynamic>("getPlaybackQos");
+
+  /// Get the number of bytes held by each native in-memory cache of the playback process, by cache name
+  ///
+  /// Returns `null` if the playback service is not running or runs in the application process, whose caches are
+  /// all reported by [getCacheSizes].
+  Future<Map<String, dynamic>?> getPlaybackCacheSizes() => _platform.invokeMapMethod<String, dynamic>("getCacheSizes");
+
+  /// Choose whether the native player runs in its own process, away from the Flutter engines, from the next playback
+  ///
+  /// Throws a [PlatformException] if playback is running, it must be stopped first.
+  Future<void> setSeparatePlaybackProcess(bool enabled) => _platform.invokeMethod("setSeparateProcess", {"enabled": enabled});
+
+  /// Move the tracks of playlists created before the `playlist_items` table existed out of the JSON-encoded
+  /// `playlists.items` column
+  static Future<void> _migratePlaylistItems(Database database) async {
+    var rows = await database.query("playlists", columns: ["id", "items"], where: "items != ?", whereArgs: ["[]"]);
+    if (rows.isEmpty) return;
+
+    await database.transaction(
+      (transaction) async {
+        var batch = transaction.batch();
+        for (var row in rows) {
+          var paths = List<String>.from(jsonDecode(row["items"] as String));
+          for (var position = 0; position < paths.length; position++) {
+            batch.insert("playlist_items", {"playlist_id": row["id"], "position": position, "path": paths[position]});
+          }
+
+          batch.update("playlists", {"items": "[]"}, where: "id = ?", whereArgs: [row["id"]]);
+        }
+
+        await batch.commit(noResult: true);
+      },
+    );
+  }
+
   static ApplicationState? _instance;
   static final _instanceLock = Lock();
 
@@ -170,7 +299,16 @@ class ApplicationState {
                 var batch = database.batch();
                 batch.execute("CREATE TABLE IF NOT EXISTS playlists (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT NOT NULL, items TEXT NOT NULL, created_at TEXT NOT NULL);");
                 batch.execute("CREATE TABLE IF NOT EXISTS titles (path TEXT NOT NULL PRIMARY KEY, title TEXT NOT NULL)");
+                PlaylistItems.createTable(batch);
+                batch.execute(
+                  "CREATE TABLE IF NOT EXISTS invidious_hosts (host TEXT NOT NULL PRIMARY KEY, latency_ms REAL NOT NULL, failure_rate REAL NOT NULL, failure_rate_updated TEXT);",
+                );
+                batch.execute(
+                  "CREATE TABLE IF NOT EXISTS youtube_responses (key TEXT NOT NULL PRIMARY KEY, body BLOB NOT NULL, expires_at INTEGER NOT NULL);",
+                );
                 await batch.commit(noResult: true);
+
+                await _migratePlaylistItems(database);
               },
             );
 
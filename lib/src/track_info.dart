@@ -1,3 +1,5 @@
+import "dart:async";
+
 import "package:flutter/services.dart";
 import "package:path/path.dart";
 import "package:sqflite/sqflite.dart";
@@ -5,6 +7,20 @@ import "package:sqflite/sqflite.dart";
 import "state.dart";
 import "tracks.dart";
 
+/// A page of results of [TrackInfo.search]
+class LibrarySearchResults {
+  /// The total number of matching tracks
+  final int total;
+
+  /// The paths of the matching tracks in this page, best matches first
+  final List<String> paths;
+
+  /// The time the native side spent executing the query
+  final Duration elapsed;
+
+  LibrarySearchResults._({required this.total, required this.paths, required this.elapsed});
+}
+
 /// Contains the metadata of a [Track], obtained from the native side
 ///
 /// See also: https://developer.android.com/reference/android/media/MediaMetadataRetriever
@@ -80,9 +96,10 @@ class TrackInfo {
     }
   }
 
-  Future<void> editTitle(String newTitle) {
+  Future<void> editTitle(String newTitle) async {
     title = newTitle;
-    return _state.database.update("titles", {"title": newTitle}, where: "path = ?", whereArgs: [path]);
+    await _state.database.update("titles", {"title": newTitle}, where: "path = ?", whereArgs: [path]);
+    await _platform.invokeMethod("setIndexedTitle", {"path": path, "title": newTitle});
   }
 
   /// Fetch information from [path] and [update] this track metadata
@@ -104,6 +121,144 @@ class TrackInfo {
     update(info: info, title: rows.single["title"] as String, thumbnailPath: thumbnailData?["path"]);
   }
 
+  // Pending hydratePlaylist requests: request ID -> pages sent from the native side
+  static final _hydrations = <int, StreamController<List<Map<String, dynamic>>>>{};
+  static var _nextHydrationId = 0;
+  static var _handlerInstalled = false;
+
+  static void _installHandler() {
+    if (_handlerInstalled) return;
+    _handlerInstalled = true;
+
+    _platform.setMethodCallHandler(
+      (call) async {
+        if (call.method == "hydratePlaylistPage") {
+          var page = call.arguments as Map<String, dynamic>;
+          _hydrations[page["requestId"]]?.add(List<Map<String, dynamic>>.from(page["items"]));
+        }
+      },
+    );
+  }
+
+  /// Query the stored titles of [paths], in chunks that fit within SQLite's host parameter limit
+  static Future<Map<String, String>> _queryTitles(List<String> paths, {required ApplicationState state}) async {
+    var titles = <String, String>{};
+    for (var start = 0; start < paths.length; start += 500) {
+      var chunk = paths.sublist(start, start + 500 < paths.length ? start + 500 : paths.length);
+      var rows = await state.database.query(
+        "titles",
+        columns: ["path", "title"],
+        where: "path IN (${List.filled(chunk.length, "?").join(", ")})",
+        whereArgs: chunk,
+      );
+
+      for (var row in rows) {
+        titles[row["path"] as String] = row["title"] as String;
+      }
+    }
+
+    return titles;
+  }
+
+  /// Build the [TrackInfo]s of a page of hydrated items, reading and storing their titles in bulk
+  static Future<List<TrackInfo?>> _fromPage(List<Map<String, dynamic>> items, {required ApplicationState state}) async {
+    var paths = [for (var item in items) if (item["isAudio"] == true) item["path"] as String];
+    var titles = await _queryTitles(paths, state: state);
+
+    var missing = paths.where((path) => !titles.containsKey(path)).toList();
+    if (missing.isNotEmpty) {
+      var batch = state.database.batch();
+      for (var item in items) {
+        var path = item["path"] as String;
+        if (item["isAudio"] == true && !titles.containsKey(path)) {
+          batch.insert(
+            "titles",
+            {"path": path, "title": item["metadata"]?["title"] ?? basenameWithoutExtension(path)},
+            conflictAlgorithm: ConflictAlgorithm.ignore,
+          );
+        }
+      }
+
+      await batch.commit(noResult: true);
+      titles.addAll(await _queryTitles(missing, state: state));
+    }
+
+    return [
+      for (var item in items)
+        if (item["isAudio"] == true)
+          (TrackInfo._(path: item["path"], state: state)
+            ..update(
+              info: Map<String, String?>.from(item["metadata"] ?? {}),
+              title: titles[item["path"]],
+              thumbnailPath: item["thumbnailPath"],
+            ))
+        else
+          null
+    ];
+  }
+
+  /// Build the [TrackInfo] of a file whose metadata was already extracted on the native side (e.g. a page item of
+  /// [hydrate] or an event of `libraryChanges`), will be `null` if it is not an audio file
+  static Future<TrackInfo?> fromExtracted(Map<String, dynamic> item, {required ApplicationState state}) async {
+    var infos = await _fromPage([item], state: state);
+    return infos.single;
+  }
+
+  /// Extract the metadata of many files at [paths] in a single native batch
+  ///
+  /// The files are read in parallel on the native side and sent back page by page. Each yielded list holds the
+  /// next page of [TrackInfo]s, in the order of [paths], with `null` for paths that do not point to audio files.
+  static Stream<List<TrackInfo?>> hydrate(List<String> paths, {required ApplicationState state, int? pageSize}) async* {
+    if (paths.isEmpty) return;
+    _installHandler();
+
+    var requestId = _nextHydrationId++;
+    var pages = StreamController<List<Map<String, dynamic>>>();
+    _hydrations[requestId] = pages;
+
+    // Every page is sent before the call completes
+    _platform.invokeMethod("hydratePlaylist", {
+      "paths": paths,
+      "requestId": requestId,
+      if (pageSize != null) "pageSize": pageSize,
+    }).then(
+      (_) => pages.close(),
+      onError: (Object error, StackTrace stackTrace) {
+        pages.addError(error, stackTrace);
+        pages.close();
+      },
+    );
+
+    try {
+      await for (var items in pages.stream) {
+        yield await _fromPage(items, state: state);
+      }
+    } finally {
+      _hydrations.remove(requestId);
+    }
+  }
+
+  /// Search the native library index for tracks whose title, artist, album or genre contain words starting with
+  /// every word of [query]
+  ///
+  /// Only tracks whose metadata has been extracted at least once are indexed.
+  static Future<LibrarySearchResults> search(String query, {int offset = 0, int limit = 64}) async {
+    var data = await _platform.invokeMapMethod<String, dynamic>(
+      "searchLibrary",
+      {"query": query, "offset": offset, "limit": limit},
+    );
+
+    return LibrarySearchResults._(
+      total: data?["total"] ?? 0,
+      paths: [for (var item in data?["items"] ?? []) item["path"] as String],
+      elapsed: Duration(microseconds: data?["elapsedMicros"] ?? 0),
+    );
+  }
+
+  /// Remove the tracks whose files were deleted or modified from the native library index, returns the number of
+  /// removed tracks
+  static Future<int> pruneIndex() async => await _platform.invokeMethod<int>("pruneLibraryIndex") ?? 0;
+
   /// Extract metadata of a given audio file at [path]
   static Future<TrackInfo> extractInfo(String path, {required ApplicationState state}) async {
     var trackInfo = TrackInfo._(path: path, state: state);
@@ -1,3 +1,5 @@
+import "dart:async";
+
 import "package:async_locks/async_locks.dart";
 import "package:path/path.dart";
 
@@ -9,6 +11,10 @@ import "utils.dart";
 class Track {
   static final _cache = <String, Track>{};
   static final _cacheLock = Lock();
+  static final _added = StreamController<Track>.broadcast();
+
+  /// The [Track]s of files that were just downloaded, already populated with their metadata and artwork
+  static Stream<Track> get added => _added.stream;
 
   /// Path to the audio file in the filesystem (should be the same as [TrackInfo.thumbnailPath])
   final String uri;
@@ -43,6 +49,79 @@ class Track {
         },
       );
 
+  /// Create a [Track] from a file whose metadata was already extracted on the native side, replacing any cached
+  /// [Track] of the same file, will be `null` if it is not an audio file
+  static Future<Track?> fromExtracted(Map<String, dynamic> item, {required ApplicationState state}) async {
+    var trackInfo = await TrackInfo.fromExtracted(item, state: state);
+    if (trackInfo == null) return null;
+
+    var track = Track._(uri: trackInfo.path, trackInfo: trackInfo);
+    _added.add(track);
+    return track;
+  }
+
+  /// Create [Track]s from many audio file [paths] at once, the uncached ones are hydrated in a single native batch
+  ///
+  /// Each yielded list holds the next [Track]s in the order of [paths], with `null` for paths that do not point
+  /// to audio files.
+  static Stream<List<Track?>> fromPaths(List<String> paths, {required ApplicationState state, int? pageSize}) async* {
+    var uncached = paths.where((path) => !_cache.containsKey(path)).toSet().toList();
+    var hydrated = <String, Track?>{};
+    var emitted = 0;
+
+    // The longest prefix of paths that has not been yielded yet and is ready
+    List<Track?> ready() {
+      var page = <Track?>[];
+      while (emitted < paths.length) {
+        var path = paths[emitted];
+        var cached = _cache[path];
+        if (cached != null) {
+          page.add(cached);
+        } else if (hydrated.containsKey(path)) {
+          page.add(hydrated[path]);
+        } else {
+          break;
+        }
+
+        emitted++;
+      }
+
+      return page;
+    }
+
+    var page = ready();
+    if (page.isNotEmpty) yield page;
+
+    var offset = 0;
+    await for (var infos in TrackInfo.hydrate(uncached, state: state, pageSize: pageSize)) {
+      for (var trackInfo in infos) {
+        var path = uncached[offset++];
+        hydrated[path] = trackInfo == null ? null : _cache[path] ?? Track._(uri: path, trackInfo: trackInfo);
+      }
+
+      page = ready();
+      if (page.isNotEmpty) yield page;
+    }
+  }
+
+  /// Search the local library for [Track]s matching [query], see [TrackInfo.search]
+  ///
+  /// Returns the total number of matches and the [Track]s of the requested page, best matches first.
+  static Future<MapEntry<int, List<Track>>> search(
+    String query, {
+    required ApplicationState state,
+    int offset = 0,
+    int limit = 64,
+  }) async {
+    var results = await TrackInfo.search(query, offset: offset, limit: limit);
+    var tracks = <Track>[];
+    await for (var page in fromPaths(results.paths, state: state)) {
+      tracks.addAll(page.whereType<Track>());
+    }
+
+    return MapEntry(results.total, tracks);
+  }
+
   @override
   String toString() => "<Track title=$title>";
 }
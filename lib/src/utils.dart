@@ -169,6 +169,30 @@ Future<void> shareFile(String path) async {
 /// Display a toast message
 Future<void> showToast(String content) => _platform.invokeMethod("showToast", {"content": content});
 
+/// Get the method channel statistics of the native side, as channel name -> method name -> statistics
+///
+/// Each entry holds call, error and not-implemented counts, total/mean/max latencies in microseconds, the total
+/// size of received arguments in bytes and a latency histogram (bucket `i` counts calls faster than `2^i` us).
+Future<Map<String, dynamic>?> getMetrics() => _platform.invokeMapMethod<String, dynamic>("getMetrics");
+
+/// Get the number of bytes held by each native in-memory cache of the application process, by cache name
+///
+/// When playback runs in its own process, the caches of the playback service are reported by
+/// [ApplicationState.getPlaybackCacheSizes] instead.
+Future<Map<String, dynamic>?> getCacheSizes() => _platform.invokeMapMethod<String, dynamic>("getCacheSizes");
+
+/// Write the recent native log messages (kept in a fixed-size in-memory buffer) to the file at [path]
+Future<void> dumpLogs(String path) => _platform.invokeMethod("dumpLogs", {"path": path});
+
+/// Set the minimum level of native log messages: "DEBUG", "INFO" or "ERROR"
+Future<void> setLogLevel(String level) => _platform.invokeMethod("setLogLevel", {"level": level});
+
+/// Periodically write the native method channel statistics to the log, or stop if [period] is `null`
+Future<void> setMetricsDumpPeriod(Duration? period) => _platform.invokeMethod(
+      "setMetricsDumpPeriod",
+      {"periodMs": period?.inMilliseconds ?? 0},
+    );
+
 // https://stackoverflow.com/a/2703882
 final _reserved = {"|", "\\", "?", "*", "<", "\"", ":", ">", "/", "'"};
 
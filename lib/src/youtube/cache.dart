@@ -0,0 +1,105 @@
+import "dart:collection";
+import "dart:typed_data";
+
+import "package:sqflite/sqflite.dart";
+
+class _CachedResponse {
+  final Uint8List body;
+  final DateTime expiresAt;
+
+  _CachedResponse(this.body, this.expiresAt);
+
+  bool get isExpired => DateTime.now().isAfter(expiresAt);
+}
+
+/// A size- and TTL-bounded cache of successful Invidious responses, keyed by path and query parameters
+///
+/// Recent responses are kept in memory, bounded by [maxMemoryBytes]. Every response is also written to the
+/// `youtube_responses` table of the application database, bounded by [maxDiskEntries], so that responses evicted
+/// from memory or from a previous launch can still be reused until they expire.
+class ResponseCache {
+  /// How long a response is reused
+  static const timeToLive = Duration(minutes: 15);
+
+  static const maxMemoryBytes = 4 << 20;
+  static const maxDiskEntries = 256;
+
+  final Database? _database;
+
+  // Least recently used first
+  final _memory = LinkedHashMap<String, _CachedResponse>();
+  var _memoryBytes = 0;
+
+  ResponseCache({Database? database}) : _database = database;
+
+  /// The cache key of a request, independent of the host and of the order of the query parameters
+  static String keyOf(Iterable<String>? pathSegments, Map<String, String>? queryParameters) {
+    var query = queryParameters == null ? <String, String>{} : SplayTreeMap<String, String>.of(queryParameters);
+    return Uri(pathSegments: pathSegments, queryParameters: query.isEmpty ? null : query).toString();
+  }
+
+  /// Get the body of a cached response, or `null` if there is none or it has expired
+  Future<Uint8List?> get(String key) async {
+    var cached = _memory.remove(key);
+    if (cached != null) {
+      if (!cached.isExpired) {
+        _memory[key] = cached;
+        return cached.body;
+      }
+
+      _memoryBytes -= cached.body.length;
+    }
+
+    var database = _database;
+    if (database == null) return null;
+
+    var rows = await database.query(
+      "youtube_responses",
+      columns: ["body", "expires_at"],
+      where: "key = ? AND expires_at > ?",
+      whereArgs: [key, DateTime.now().millisecondsSinceEpoch],
+    );
+    if (rows.isEmpty) return null;
+
+    var body = rows.first["body"] as Uint8List;
+    _putMemory(key, _CachedResponse(body, DateTime.fromMillisecondsSinceEpoch(rows.first["expires_at"] as int)));
+    return body;
+  }
+
+  /// Store the body of a successful response
+  Future<void> put(String key, Uint8List body) async {
+    var expiresAt = DateTime.now().add(timeToLive);
+    _putMemory(key, _CachedResponse(body, expiresAt));
+
+    var database = _database;
+    if (database == null) return;
+
+    var batch = database.batch();
+    batch.insert(
+      "youtube_responses",
+      {"key": key, "body": body, "expires_at": expiresAt.millisecondsSinceEpoch},
+      conflictAlgorithm: ConflictAlgorithm.replace,
+    );
+    batch.delete("youtube_responses", where: "expires_at <= ?", whereArgs: [DateTime.now().millisecondsSinceEpoch]);
+    batch.execute(
+      "DELETE FROM youtube_responses WHERE key NOT IN (SELECT key FROM youtube_responses ORDER BY expires_at DESC LIMIT ?)",
+      [maxDiskEntries],
+    );
+    await batch.commit(noResult: true);
+  }
+
+  void _putMemory(String key, _CachedResponse response) {
+    var previous = _memory.remove(key);
+    if (previous != null) _memoryBytes -= previous.body.length;
+
+    // A response larger than the whole memory budget only lives on disk
+    if (response.body.length > maxMemoryBytes) return;
+
+    _memory[key] = response;
+    _memoryBytes += response.body.length;
+    while (_memoryBytes > maxMemoryBytes) {
+      var oldest = _memory.keys.first;
+      _memoryBytes -= _memory.remove(oldest)!.body.length;
+    }
+  }
+}
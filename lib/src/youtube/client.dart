@@ -1,18 +1,52 @@
+import "dart:async";
+import "dart:collection";
 import "dart:convert";
 
 import "package:async_locks/async_locks.dart";
 import "package:http/http.dart";
+import "package:sqflite/sqflite.dart";
+
+import "cache.dart";
+import "hosts.dart";
+
+class _Prefetch {
+  final Iterable<String>? pathSegments;
+  final Map<String, String>? queryParameters;
+
+  _Prefetch(this.pathSegments, this.queryParameters);
+}
 
 class YouTubeClient {
   static final invidiousInstanceUrl = Uri.https("api.invidious.io", "/instances.json");
 
+  /// The time after which a request to a single host is considered failed
+  static const requestTimeout = Duration(seconds: 10);
+
   final http = Client();
-  final _hosts = <Uri>[];
+  final HostPool _hosts;
   final _hostsLock = Lock();
+  final ResponseCache _cache;
+
+  // Requests being sent, by cache key, so that a request already sent by a prefetch is not sent again
+  final _inFlight = <String, Future<Response?>>{};
 
-  YouTubeClient();
+  final _prefetches = ListQueue<_Prefetch>();
+  var _prefetching = false;
+
+  /// Construct a new [YouTubeClient]
+  ///
+  /// The Invidious instances are fetched from [invidiousInstanceUrl] on the first request, unless [hosts] are
+  /// given.
+  YouTubeClient({Database? database, Iterable<Uri>? hosts})
+      : _hosts = HostPool(database: database),
+        _cache = ResponseCache(database: database) {
+    if (hosts != null) _hosts.addAll(hosts);
+  }
 
   Future<void> fillInvidiousInstances() async {
+    // Only the first fill has to wait, later requests do not touch the lock
+    if (!_hosts.isEmpty) return;
+
     await _hostsLock.run(
       () async {
         try {
@@ -20,14 +54,18 @@ class YouTubeClient {
             var response = await http.get(invidiousInstanceUrl);
             if (response.statusCode != 200) return;
 
+            var hosts = <Uri>[];
             var data = jsonDecode(utf8.decode(response.bodyBytes)) as List<dynamic>;
             for (var instanceData in data) {
               var hostName = instanceData[0] as String;
               var hostData = instanceData[1] as Map<String, dynamic>;
               if (hostName.endsWith(".i2p") || hostName.endsWith(".onion") || hostData["api"] != true) continue;
 
-              _hosts.add(Uri.https(hostName));
+              hosts.add(Uri.https(hostName));
             }
+
+            _hosts.addAll(hosts);
+            await _hosts.load();
           }
         } on ClientException {
           // pass
@@ -36,55 +74,155 @@ class YouTubeClient {
     );
   }
 
+  /// Send a request to a single host, updating its estimates
+  ///
+  /// Returns `null` if the host cannot be reached or the request failed in any other way, which counts as a
+  /// failure of the host.
+  Future<Response?> _send(InvidiousHost host, Uri uri, Map<String, String>? headers) async {
+    var stopwatch = Stopwatch()..start();
+    try {
+      var response = await http.get(uri, headers: headers).timeout(requestTimeout);
+
+      // Some errors are due to Invidious bugs, in these cases the host is not ranked down.
+      if (response.statusCode == 200) _hosts.recordSuccess(host, stopwatch.elapsedMilliseconds);
+      return response;
+    } on Object {
+      // Unreachable host, timeout, malformed response...
+    }
+
+    _hosts.recordFailure(host);
+    return null;
+  }
+
+  /// Send a GET request to an Invidious host, or reuse a recent response to the same request
+  ///
+  /// Successful responses are kept in a [ResponseCache] for [ResponseCache.timeToLive], keyed by path and query
+  /// parameters (not by [headers]). Returns `null` if no host returned a successful response.
   Future<Response?> get({
     Iterable<String>? pathSegments,
     Map<String, String>? queryParameters,
     Map<String, String>? headers,
   }) async {
-    await fillInvidiousInstances();
     queryParameters?.putIfAbsent("hl", () => "en-US");
+    var key = ResponseCache.keyOf(pathSegments, queryParameters);
 
-    var failed = <Uri>[];
-    var result = await _hostsLock.run(
-      () async {
-        for (var i = 0; i < _hosts.length; i++) {
-          var host = _hosts[i];
-
-          try {
-            var response = await http.get(
-              host.replace(
-                pathSegments: pathSegments,
-                queryParameters: queryParameters,
-              ),
-              headers: headers,
-            );
-
-            if (response.statusCode != 200) {
-              // Some errors are due to Invidious bugs, in these cases we do not perform hosts optimization.
-              return null;
-            }
+    var body = await _cache.get(key);
+    if (body != null) return Response.bytes(body, 200);
 
-            _hosts.removeAt(i);
-            _hosts.insert(0, host);
-
-            var j = failed.length - 1;
-            while (i > 0 && j >= 0) {
-              i--;
-              if (failed[j] == _hosts[i]) {
-                _hosts.removeAt(i);
-                _hosts.add(host);
-                j--;
-              }
-            }
+    var pending = _inFlight[key];
+    if (pending != null) return pending;
 
-            return response;
-          } on ClientException {
-            failed.add(host);
-          }
+    var request = _inFlight[key] = _fetch(pathSegments, queryParameters, headers);
+    try {
+      var response = await request;
+      if (response != null) {
+        // The response is kept in memory right away, it is returned without waiting for the database write
+        unawaited(
+          _cache.put(key, response.bodyBytes).catchError(
+            (Object error, StackTrace stackTrace) {
+              print(error);
+              print(stackTrace);
+            },
+          ),
+        );
+      }
+
+      return response;
+    } finally {
+      _inFlight.remove(key);
+    }
+  }
+
+  /// Fetch a response in the background, so that a later [get] of the same request is served from the cache
+  ///
+  /// Prefetches are sent one at a time, after the requests already queued.
+  void prefetch({Iterable<String>? pathSegments, Map<String, String>? queryParameters}) {
+    _prefetches.add(_Prefetch(pathSegments, queryParameters));
+    if (!_prefetching) _runPrefetches();
+  }
+
+  /// Drop the prefetches that have not been sent yet, e.g. when the search query changes
+  ///
+  /// A prefetch already sent still completes and fills the cache.
+  void cancelPrefetches() => _prefetches.clear();
+
+  Future<void> _runPrefetches() async {
+    _prefetching = true;
+    try {
+      while (_prefetches.isNotEmpty) {
+        var prefetch = _prefetches.removeFirst();
+
+        // Nobody awaits a prefetch, a failed one must neither surface as an uncaught error nor stop the others
+        try {
+          await get(pathSegments: prefetch.pathSegments, queryParameters: prefetch.queryParameters);
+        } on Object catch (error, stackTrace) {
+          print(error);
+          print(stackTrace);
         }
-      },
-    );
+      }
+    } finally {
+      _prefetching = false;
+    }
+  }
+
+  /// Send a GET request to the best ranked Invidious host
+  ///
+  /// A host that cannot be reached is skipped immediately. If the host does not answer within
+  /// [HostPool.hedgeDelay], the same request is also sent to the next host and the first response wins.
+  Future<Response?> _fetch(
+    Iterable<String>? pathSegments,
+    Map<String, String>? queryParameters,
+    Map<String, String>? headers,
+  ) async {
+    await fillInvidiousInstances();
+
+    var candidates = _hosts.ranked();
+    var completer = Completer<Response?>();
+    var next = 0;
+    var pending = 0;
+    var hedged = false;
+    Timer? hedge;
+
+    void launch() {
+      if (completer.isCompleted) return;
+      if (next >= candidates.length) {
+        if (pending == 0) completer.complete(null);
+        return;
+      }
+
+      var host = candidates[next++];
+      pending++;
+
+      if (!hedged) {
+        hedge?.cancel();
+        hedge = Timer(
+          _hosts.hedgeDelay,
+          () {
+            hedged = true;
+            launch();
+          },
+        );
+      }
+
+      void onResponse(Response? response) {
+        pending--;
+        if (response == null) {
+          launch();
+        } else if (!completer.isCompleted) {
+          completer.complete(response.statusCode == 200 ? response : null);
+        }
+      }
+
+      // _send does not throw, a failure is still handled as an unreachable host so that the request never hangs
+      _send(host, host.uri.replace(pathSegments: pathSegments, queryParameters: queryParameters), headers).then(
+        onResponse,
+        onError: (Object error) => onResponse(null),
+      );
+    }
 
+    launch();
+    var result = await completer.future;
+    hedge?.cancel();
     return result;
   }
 }
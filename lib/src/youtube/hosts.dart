@@ -0,0 +1,191 @@
+import "dart:async";
+import "dart:math";
+
+import "package:sqflite/sqflite.dart";
+
+/// Latency and reliability estimates of an Invidious instance
+class InvidiousHost {
+  /// The base URI of the instance
+  final Uri uri;
+
+  /// The position of the instance in the instance list, used to rank hosts without estimates yet
+  final int order;
+
+  /// Exponentially weighted moving average of the response time of successful requests, in milliseconds
+  double latencyMs;
+
+  /// Exponentially weighted moving average of request failures, between 0 and 1
+  double failureRate;
+
+  /// The time [failureRate] was last updated, from which it decays
+  DateTime? failureRateUpdated;
+
+  /// Whether [latencyMs] comes from an actual request
+  bool measured;
+
+  InvidiousHost(
+    this.uri, {
+    required this.order,
+    this.latencyMs = HostPool.defaultLatencyMs,
+    this.failureRate = 0,
+    this.failureRateUpdated,
+    this.measured = false,
+  });
+
+  /// The failure rate, halved for every [HostPool.failureHalfLife] since it was updated so that an instance that
+  /// went down is retried eventually
+  double get effectiveFailureRate {
+    var updated = failureRateUpdated;
+    if (updated == null) return failureRate;
+
+    var halfLives = DateTime.now().difference(updated).inMilliseconds / HostPool.failureHalfLife.inMilliseconds;
+    return failureRate * pow(0.5, halfLives);
+  }
+
+  /// The expected cost of a request to this host, lower is better
+  double get score => latencyMs / max(0.05, 1 - effectiveFailureRate);
+}
+
+/// A pool of [InvidiousHost]s ranked by their observed latency and failure rate
+///
+/// Estimates are updated as requests complete, without any lock: all updates happen on the event loop. They are
+/// persisted to the `invidious_hosts` table of the application database, so that a new launch starts from the
+/// last known ranking.
+class HostPool {
+  /// The weight of a new sample in the moving averages
+  static const alpha = 0.2;
+
+  /// The assumed latency of a host without samples
+  static const defaultLatencyMs = 1000.0;
+
+  static const failureHalfLife = Duration(minutes: 10);
+
+  /// The percentile of recent latencies after which a request is hedged
+  static const hedgePercentile = 0.9;
+  static const minHedgeDelay = Duration(milliseconds: 250);
+  static const maxHedgeDelay = Duration(seconds: 3);
+
+  static const _recentCapacity = 64;
+  static const _minRecentSamples = 8;
+  static const _saveDelay = Duration(seconds: 5);
+
+  final Database? _database;
+  // By URI authority, which is the host name of the public instances
+  final _hosts = <String, InvidiousHost>{};
+
+  // Latencies of the last successful requests across all hosts, a ring buffer
+  final _recent = <double>[];
+  var _recentNext = 0;
+
+  Timer? _saveTimer;
+
+  HostPool({Database? database}) : _database = database;
+
+  bool get isEmpty => _hosts.isEmpty;
+
+  /// Add instances in the order of the instance list, keeping the estimates of known ones
+  void addAll(Iterable<Uri> uris) {
+    for (var uri in uris) {
+      _hosts.putIfAbsent(uri.authority, () => InvidiousHost(uri, order: _hosts.length));
+    }
+  }
+
+  /// Restore the estimates saved by a previous launch
+  Future<void> load() async {
+    var database = _database;
+    if (database == null) return;
+
+    var rows = await database.query("invidious_hosts");
+    for (var row in rows) {
+      var host = _hosts[row["host"] as String];
+      if (host == null) continue;
+
+      host.latencyMs = (row["latency_ms"] as num).toDouble();
+      host.failureRate = (row["failure_rate"] as num).toDouble();
+      var updated = row["failure_rate_updated"] as String?;
+      host.failureRateUpdated = updated != null ? DateTime.tryParse(updated) : null;
+      host.measured = true;
+    }
+  }
+
+  /// All hosts, best first
+  List<InvidiousHost> ranked() {
+    var hosts = _hosts.values.toList();
+    hosts.sort(
+      (first, second) {
+        var result = first.score.compareTo(second.score);
+        return result != 0 ? result : first.order.compareTo(second.order);
+      },
+    );
+
+    return hosts;
+  }
+
+  /// The time to wait for a response before sending the same request to the next host
+  Duration get hedgeDelay {
+    if (_recent.length < _minRecentSamples) return maxHedgeDelay;
+
+    var sorted = List<double>.of(_recent)..sort();
+    var percentile = sorted[min(sorted.length - 1, (sorted.length * hedgePercentile).floor())];
+    var delay = Duration(milliseconds: percentile.round());
+    if (delay < minHedgeDelay) return minHedgeDelay;
+    if (delay > maxHedgeDelay) return maxHedgeDelay;
+    return delay;
+  }
+
+  void recordSuccess(InvidiousHost host, int elapsedMs) {
+    host.latencyMs = host.measured ? host.latencyMs + alpha * (elapsedMs - host.latencyMs) : elapsedMs.toDouble();
+    host.failureRate = host.effectiveFailureRate * (1 - alpha);
+    host.failureRateUpdated = DateTime.now();
+    host.measured = true;
+
+    if (_recent.length < _recentCapacity) {
+      _recent.add(elapsedMs.toDouble());
+    } else {
+      _recent[_recentNext] = elapsedMs.toDouble();
+      _recentNext = (_recentNext + 1) % _recentCapacity;
+    }
+
+    _scheduleSave();
+  }
+
+  void recordFailure(InvidiousHost host) {
+    var failureRate = host.effectiveFailureRate;
+    host.failureRate = failureRate + alpha * (1 - failureRate);
+    host.failureRateUpdated = DateTime.now();
+    _scheduleSave();
+  }
+
+  void _scheduleSave() {
+    if (_database == null) return;
+    _saveTimer ??= Timer(
+      _saveDelay,
+      () {
+        _saveTimer = null;
+        _save();
+      },
+    );
+  }
+
+  Future<void> _save() async {
+    var database = _database;
+    if (database == null) return;
+
+    var batch = database.batch();
+    for (var host in _hosts.values) {
+      if (!host.measured && host.failureRateUpdated == null) continue;
+      batch.insert(
+        "invidious_hosts",
+        {
+          "host": host.uri.authority,
+          "latency_ms": host.latencyMs,
+          "failure_rate": host.failureRate,
+          "failure_rate_updated": host.failureRateUpdated?.toIso8601String(),
+        },
+        conflictAlgorithm: ConflictAlgorithm.replace,
+      );
+    }
+
+    await batch.commit(noResult: true);
+  }
+}
@@ -68,13 +68,26 @@ class SearchResult {
     videos.addAll(other.videos);
   }
 
+  static const _pathSegments = ["api", "v1", "search"];
+
+  static Map<String, String> _queryParameters(String query, int page, SearchType type) => {
+        "q": query,
+        "page": page.toString(),
+        "type": type.asString(),
+      };
+
   static Future<SearchResult?> get(String query, {required int page, required SearchType type, required YouTubeClient client}) async {
     var response = await client.get(
-      pathSegments: ["api", "v1", "search"],
-      queryParameters: {"q": query, "page": page.toString(), "type": type.asString()},
+      pathSegments: _pathSegments,
+      queryParameters: _queryParameters(query, page, type),
     );
 
     if (response == null) return null;
     return SearchResult.fromJson(List<Map<String, dynamic>>.from(jsonDecode(utf8.decode(response.bodyBytes))), client: client);
   }
+
+  /// Fetch a page of results in the background, so that a later [get] of the same page is served from the cache
+  static void prefetch(String query, {required int page, required SearchType type, required YouTubeClient client}) {
+    client.prefetch(pathSegments: _pathSegments, queryParameters: _queryParameters(query, page, type));
+  }
 }
@@ -9,6 +9,7 @@ import "channels.dart";
 import "playlists.dart";
 import "videos.dart";
 import "../downloader.dart";
+import "../state.dart";
 import "../utils.dart";
 
 double _imageHeight(double width) => 9.0 * width / 16.0;
@@ -72,6 +73,74 @@ Future<void> _downloadVideoFromUrl(PartialVideo video, String pickedPath, String
   }
 }
 
+enum _VideoAction { play, keep, download }
+
+/// Let the user play a video, keep it in the library or download it
+///
+/// Playing streams the audio through the native cache, keyed by the video ID. Keeping it afterwards reuses the
+/// bytes already streamed instead of downloading the whole track again.
+Future<void> tapVideo(BuildContext context, Video video, {required ApplicationState state}) async {
+  var action = await showDialog<_VideoAction>(
+    context: context,
+    builder: (context) => SimpleDialog(
+      title: Text(video.title),
+      children: [
+        SimpleDialogOption(
+          onPressed: () => Navigator.pop(context, _VideoAction.play),
+          child: const Text("Play"),
+        ),
+        SimpleDialogOption(
+          onPressed: () => Navigator.pop(context, _VideoAction.keep),
+          child: const Text("Keep in library"),
+        ),
+        SimpleDialogOption(
+          onPressed: () => Navigator.pop(context, _VideoAction.download),
+          child: const Text("Download"),
+        ),
+      ],
+    ),
+  );
+
+  if (action == null) return;
+  switch (action) {
+    case _VideoAction.play:
+      var url = await video.getAudioUrl();
+      if (url == null) {
+        await showToast("Cannot play ${video.title}");
+      } else {
+        await state.stream(url: url, cacheKey: video.videoId, title: video.title, artist: video.channel.author);
+      }
+      break;
+
+    case _VideoAction.keep:
+      if (context.mounted) await tapToKeepVideo(context, video);
+      break;
+
+    case _VideoAction.download:
+      if (context.mounted) await tapToDownloadVideo(context, video);
+      break;
+  }
+}
+
+/// Save a video that may have been streamed to the library, reusing its cached audio
+Future<void> tapToKeepVideo(BuildContext context, Video video) async {
+  var urlFuture = video.getAudioUrl();
+  var pickedPath = await _selectDownloadLocation(context, "Keep video");
+  if (pickedPath == null) return;
+
+  var url = await urlFuture;
+  if (url == null) {
+    await showToast("Cannot keep ${video.title}");
+  } else {
+    await promote(
+      url: url,
+      cacheKey: video.videoId,
+      outputFilePath: join(pickedPath, "${removeReservedCharacters(video.title)}.mp3"),
+      description: video.title,
+    );
+  }
+}
+
 Future<void> tapToDownloadVideo(BuildContext context, Video video) async {
   var urlFuture = video.getAudioUrl();
   var pickedPath = await _selectDownloadLocation(context, "Download video");
@@ -160,6 +229,7 @@ class _ThumbnailWidget extends StatelessWidget {
 
 class VideoWidget extends StatelessWidget {
   final Video video;
+  final ApplicationState state;
   final Color? color;
   final Decoration? decoration;
   final double width;
@@ -169,6 +239,7 @@ class VideoWidget extends StatelessWidget {
   VideoWidget({
     Key? key,
     required this.video,
+    required this.state,
     this.color,
     this.decoration,
     required this.width,
@@ -178,7 +249,7 @@ class VideoWidget extends StatelessWidget {
   @override
   Widget build(BuildContext context) {
     return GestureDetector(
-      onTap: () => tapToDownloadVideo(context, video),
+      onTap: () => tapVideo(context, video, state: state),
       child: Container(
         padding: const EdgeInsets.only(bottom: 10.0, top: 10.0),
         color: color,
@@ -417,9 +488,10 @@ class _MiniWidget extends StatelessWidget {
 
 class MiniVideoWidget extends StatelessWidget {
   final Video video;
+  final ApplicationState state;
   final double width;
 
-  const MiniVideoWidget({Key? key, required this.video, required this.width}) : super(key: key);
+  const MiniVideoWidget({Key? key, required this.video, required this.state, required this.width}) : super(key: key);
 
   @override
   Widget build(BuildContext context) {
@@ -428,7 +500,7 @@ class MiniVideoWidget extends StatelessWidget {
       subtitle: video.channel.author,
       thumbnailUrl: video.thumbnailUri.toString(),
       width: width,
-      onTap: () => tapToDownloadVideo(context, video),
+      onTap: () => tapVideo(context, video, state: state),
     );
   }
 }
@@ -0,0 +1,110 @@
+import "package:flutter_test/flutter_test.dart";
+import "package:sqflite_common_ffi/sqflite_ffi.dart";
+
+import "package:mp3_player/src/playlists.dart";
+
+/// The time budget of a single add or remove, one frame at 60 fps
+const budget = Duration(milliseconds: 16);
+
+/// The number of timed operations at each playlist size
+const samples = 200;
+
+Future<Database> _open() async {
+  sqfliteFfiInit();
+  var database = await databaseFactoryFfi.openDatabase(inMemoryDatabasePath, options: OpenDatabaseOptions(singleInstance: false));
+  var batch = database.batch();
+  PlaylistItems.createTable(batch);
+  await batch.commit(noResult: true);
+  return database;
+}
+
+Duration _median(List<Duration> values) {
+  var sorted = List<Duration>.from(values)..sort();
+  return sorted[sorted.length ~/ 2];
+}
+
+/// Time [samples] single-track appends then [samples] removes on a playlist of [size] tracks
+Future<List<Duration>> _measure(Database database, int playlistId, int size) async {
+  var ids = await PlaylistItems.append(database, playlistId, [for (var i = 0; i < size; i++) "/music/$i.mp3"]);
+
+  var adds = <Duration>[];
+  var stopwatch = Stopwatch();
+  for (var i = 0; i < samples; i++) {
+    stopwatch
+      ..reset()
+      ..start();
+    ids.addAll(await PlaylistItems.append(database, playlistId, ["/music/extra/$i.mp3"]));
+    adds.add(stopwatch.elapsed);
+  }
+
+  var removes = <Duration>[];
+  for (var i = 0; i < samples; i++) {
+    // Spread the removed rows over the whole playlist
+    var itemId = ids.removeAt((i * 7919) % ids.length);
+    stopwatch
+      ..reset()
+      ..start();
+    await PlaylistItems.delete(database, itemId);
+    removes.add(stopwatch.elapsed);
+  }
+
+  var rows = await database.query("playlist_items", columns: ["id"], where: "playlist_id = ?", whereArgs: [playlistId], orderBy: "position");
+  expect([for (var row in rows) row["id"]], ids);
+
+  return [_median(adds), _median(removes)];
+}
+
+void main() {
+  late Database database;
+
+  setUp(() async {
+    database = await _open();
+  });
+
+  tearDown(() async {
+    await database.close();
+  });
+
+  test("append keeps positions in order across calls", () async {
+    var first = await PlaylistItems.append(database, 1, ["/a.mp3", "/b.mp3"]);
+    var other = await PlaylistItems.append(database, 2, ["/c.mp3"]);
+    var second = await PlaylistItems.append(database, 1, ["/d.mp3"]);
+
+    var rows = await database.query("playlist_items", where: "playlist_id = ?", whereArgs: [1], orderBy: "position");
+    expect([for (var row in rows) row["id"]], [...first, ...second]);
+    expect([for (var row in rows) row["position"]], [0, 1, 2]);
+
+    rows = await database.query("playlist_items", where: "playlist_id = ?", whereArgs: [2]);
+    expect([for (var row in rows) row["id"]], other);
+    expect(rows.single["position"], 0);
+  });
+
+  test("concurrent appends never share a position", () async {
+    await Future.wait([for (var i = 0; i < 20; i++) PlaylistItems.append(database, 1, ["/$i.mp3", "/$i-bis.mp3"])]);
+
+    var rows = await database.rawQuery("SELECT COUNT(DISTINCT position) AS positions FROM playlist_items WHERE playlist_id = 1");
+    expect(rows.single["positions"], 40);
+  });
+
+  test("add and remove latency does not grow with the playlist size", () async {
+    // Warm up the statement cache of the database
+    await _measure(database, 1, 100);
+
+    var results = <int, List<Duration>>{};
+    for (var size in [1000, 10000, 50000]) {
+      var medians = await _measure(database, size, size);
+      results[size] = medians;
+
+      print("$size tracks: add ${medians[0].inMicroseconds} us, remove ${medians[1].inMicroseconds} us");
+      expect(medians[0], lessThanOrEqualTo(budget), reason: "add at $size tracks");
+      expect(medians[1], lessThanOrEqualTo(budget), reason: "remove at $size tracks");
+    }
+
+    // Both lookups go through an index, so a 50x larger playlist should cost about the same
+    for (var i = 0; i < 2; i++) {
+      var small = results[1000]![i];
+      var large = results[50000]![i];
+      expect(large, lessThanOrEqualTo(small * 2 + const Duration(milliseconds: 1)));
+    }
+  }, timeout: const Timeout(Duration(minutes: 2)));
+}
@@ -0,0 +1,198 @@
+import "dart:async";
+import "dart:convert";
+import "dart:io";
+
+import "package:flutter_test/flutter_test.dart";
+import "package:sqflite_common_ffi/sqflite_ffi.dart";
+
+import "package:mp3_player/src/youtube/client.dart";
+
+/// A loopback stand-in for an Invidious instance, answering every request with its port after [delay]
+class _StandIn {
+  final HttpServer _server;
+
+  /// The time to wait before answering
+  Duration delay;
+
+  /// Whether to drop the connection instead of answering
+  bool broken = false;
+
+  /// The number of requests received
+  var requests = 0;
+
+  _StandIn._(this._server, this.delay);
+
+  static Future<_StandIn> start({Duration delay = Duration.zero}) async {
+    var server = await HttpServer.bind(InternetAddress.loopbackIPv4, 0);
+    var standIn = _StandIn._(server, delay);
+    server.listen(standIn._serve);
+    return standIn;
+  }
+
+  Uri get uri => Uri.http("${_server.address.host}:${_server.port}");
+
+  int get port => _server.port;
+
+  Future<void> _serve(HttpRequest request) async {
+    requests++;
+    await Future.delayed(delay);
+
+    if (broken) {
+      var socket = await request.response.detachSocket(writeHeaders: false);
+      socket.destroy();
+      return;
+    }
+
+    request.response
+      ..statusCode = 200
+      ..headers.contentType = ContentType.json
+      ..write(jsonEncode({"port": _server.port}));
+    await request.response.close();
+  }
+
+  Future<void> close() => _server.close(force: true);
+}
+
+/// Send a request that is not in the cache yet, returning the port of the stand-in that answered
+Future<int?> _request(YouTubeClient client, int id) async {
+  var response = await client.get(pathSegments: ["api", "v1", "search"], queryParameters: {"q": "request $id"});
+  if (response == null) return null;
+  return jsonDecode(response.body)["port"] as int;
+}
+
+void main() {
+  var standIns = <_StandIn>[];
+  var clients = <YouTubeClient>[];
+  var id = 0;
+
+  Future<_StandIn> startStandIn({Duration delay = Duration.zero}) async {
+    var standIn = await _StandIn.start(delay: delay);
+    standIns.add(standIn);
+    return standIn;
+  }
+
+  YouTubeClient createClient(List<_StandIn> hosts, {Database? database}) {
+    var client = YouTubeClient(database: database, hosts: [for (var standIn in hosts) standIn.uri]);
+    clients.add(client);
+    return client;
+  }
+
+  tearDown(() async {
+    for (var client in clients) {
+      client.http.close();
+    }
+
+    for (var standIn in standIns) {
+      await standIn.close();
+    }
+
+    clients.clear();
+    standIns.clear();
+  });
+
+  test("ranks hosts by measured latency", () async {
+    // Hosts without samples are assumed to answer in 1 s, the first one is tried first
+    var slow = await startStandIn(delay: const Duration(milliseconds: 1200));
+    var fast = await startStandIn(delay: const Duration(milliseconds: 5));
+    var client = createClient([slow, fast]);
+
+    expect(await _request(client, id++), slow.port);
+    expect(await _request(client, id++), fast.port);
+
+    slow.requests = fast.requests = 0;
+    for (var i = 0; i < 5; i++) {
+      expect(await _request(client, id++), fast.port);
+    }
+
+    expect(slow.requests, 0);
+    expect(fast.requests, 5);
+  });
+
+  test("hedges a request to a stalled host", () async {
+    var first = await startStandIn(delay: const Duration(milliseconds: 5));
+    var second = await startStandIn(delay: const Duration(milliseconds: 5));
+    var client = createClient([first, second]);
+
+    // Enough fast samples bring the hedge delay down to its minimum
+    for (var i = 0; i < 10; i++) {
+      expect(await _request(client, id++), first.port);
+    }
+
+    expect(second.requests, 0);
+
+    first.delay = const Duration(seconds: 5);
+    var stopwatch = Stopwatch()..start();
+    expect(await _request(client, id++), second.port);
+    expect(stopwatch.elapsed, lessThan(const Duration(seconds: 2)));
+    expect(first.requests, 11);
+    expect(second.requests, 1);
+  });
+
+  test("moves on from a host that drops the connection", () async {
+    var broken = await startStandIn();
+    broken.broken = true;
+    var healthy = await startStandIn(delay: const Duration(milliseconds: 5));
+    var client = createClient([broken, healthy]);
+
+    expect(await _request(client, id++), healthy.port);
+    expect(broken.requests, 1);
+
+    // The failure ranks the broken host down
+    expect(await _request(client, id++), healthy.port);
+    expect(broken.requests, 1);
+  });
+
+  test("returns null when every host fails", () async {
+    var first = await startStandIn();
+    var second = await startStandIn();
+    first.broken = second.broken = true;
+    var client = createClient([first, second]);
+
+    expect(await _request(client, id++), isNull);
+    expect(first.requests, 1);
+    expect(second.requests, 1);
+  });
+
+  test("a failed cache write does not fail the request", () async {
+    sqfliteFfiInit();
+    var database = await databaseFactoryFfi.openDatabase(inMemoryDatabasePath, options: OpenDatabaseOptions(singleInstance: false));
+    addTearDown(database.close);
+
+    var batch = database.batch();
+    batch.execute("CREATE TABLE youtube_responses (key TEXT NOT NULL PRIMARY KEY, body BLOB NOT NULL, expires_at INTEGER NOT NULL);");
+    batch.execute("CREATE TRIGGER full_disk BEFORE INSERT ON youtube_responses BEGIN SELECT RAISE(ABORT, 'database or disk is full'); END;");
+    await batch.commit(noResult: true);
+
+    var standIn = await startStandIn();
+    var client = createClient([standIn], database: database);
+
+    var requestId = id++;
+    expect(await _request(client, requestId), standIn.port);
+
+    // Let the write fail, then check the response was still kept in memory
+    await Future.delayed(const Duration(milliseconds: 100));
+    expect(await _request(client, requestId), standIn.port);
+    expect(standIn.requests, 1);
+  });
+
+  test("a failed prefetch does not stop the next ones", () async {
+    var standIn = await startStandIn();
+    var client = createClient([standIn]);
+
+    // get adds the language to the query parameters, which a constant map rejects
+    client.prefetch(pathSegments: ["api", "v1", "search"], queryParameters: const {"q": "constant"});
+    client.prefetch(pathSegments: ["api", "v1", "search"], queryParameters: {"q": "prefetched"});
+
+    var deadline = DateTime.now().add(const Duration(seconds: 5));
+    while (standIn.requests == 0 && DateTime.now().isBefore(deadline)) {
+      await Future.delayed(const Duration(milliseconds: 10));
+    }
+
+    expect(standIn.requests, 1);
+
+    // Served from the cache
+    var response = await client.get(pathSegments: ["api", "v1", "search"], queryParameters: {"q": "prefetched"});
+    expect(response?.statusCode, 200);
+    expect(standIn.requests, 1);
+  });
+}